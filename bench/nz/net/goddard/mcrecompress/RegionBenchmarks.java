@@ -0,0 +1,191 @@
+package nz.net.goddard.mcrecompress;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import nz.net.goddard.mcrecompress.nbt.NBTCompound;
+import nz.net.goddard.mcrecompress.nbt.NBTReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+// Throughput of the region codec's hot paths, on assets/test.mca and on synthetic regions
+// built from its chunks: "dense" fills all 1024 slots, "sparse" only every 16th. Run with
+// -prof gc for the allocation rate per operation (gc.alloc.rate.norm). Everything runs
+// single threaded, with no pool, so results don't depend on the machine's core count.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RegionBenchmarks {
+	@State(Scope.Benchmark)
+	public static class Region {
+		@Param({"test", "dense", "sparse"})
+		public String layout;
+
+		ByteBuffer mca;
+		RegionFile region;
+		ChunkData chunk;
+		int chunkLocation;
+		int chunkTimestamp;
+		byte[] rawArchive;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			byte[] test = Files.readAllBytes(new File("assets/test.mca").toPath());
+			if (layout.equals("test")) {
+				mca = ByteBuffer.wrap(test);
+			} else {
+				mca = tile(ByteBuffer.wrap(test), layout.equals("dense") ? 1 : 16);
+			}
+			region = RegionFile.parse(mca.duplicate());
+
+			// The chunk with the most sections
+			for (int i = 0; i < 1024; ++i) {
+				ChunkData candidate = region.chunkAt(i);
+				if (candidate != null && (chunk == null || sectionCount(candidate) > sectionCount(chunk))) {
+					chunk = candidate;
+					chunkLocation = mca.getInt(i * 4) >> 8;
+					chunkTimestamp = mca.getInt(4096 + i * 4);
+				}
+			}
+
+			ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+			region.writeArchive(bytesOut, ArchiveCompression.NONE, null, new ArchiveOptions());
+			rawArchive = bytesOut.toByteArray();
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Compressed {
+		@Param({"NONE", "GZIP", "BZIP2"})
+		public ArchiveCompression compression;
+
+		byte[] archive;
+
+		@Setup(Level.Trial)
+		public void setUp(Region region) throws IOException {
+			ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+			region.region.writeArchive(bytesOut, compression, null, new ArchiveOptions());
+			archive = bytesOut.toByteArray();
+		}
+	}
+
+	// fromArchive builds chunks out of the tree it is given, so each call needs a fresh one
+	@State(Scope.Thread)
+	public static class ArchiveTree {
+		NBTCompound root;
+
+		@Setup(Level.Invocation)
+		public void setUp(Region region) throws IOException {
+			NBTReader reader = new NBTReader(new ByteArrayInputStream(region.rawArchive));
+			try {
+				root = reader.readRootCompound();
+			} finally {
+				reader.release();
+			}
+		}
+	}
+
+	private static int sectionCount(ChunkData chunk) {
+		int count = 0;
+		for (int y = 0; y < 16; ++y) {
+			if (chunk.getSection(y) != null) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	// A region of test.mca's chunks in turn, in every step'th slot, each moved to its slot
+	static ByteBuffer tile(ByteBuffer source, int step) throws IOException {
+		List<Integer> filled = new ArrayList<Integer>();
+		for (int i = 0; i < 1024; ++i) {
+			if (source.getInt(i * 4) != 0) {
+				filled.add(i);
+			}
+		}
+
+		RegionFile region = RegionFile.empty();
+		int originX = -1;
+		int originZ = -1;
+		for (int i = 0, next = 0; i < 1024; i += step, ++next) {
+			int slot = filled.get(next % filled.size());
+			ChunkData chunk = ChunkData.parse(source, source.getInt(slot * 4) >> 8, source.getInt(4096 + slot * 4));
+			if (originX == -1) {
+				originX = chunk.getX() - chunk.getRegionLocalX();
+				originZ = chunk.getZ() - chunk.getRegionLocalZ();
+			}
+			NBTCompound level = chunk.getChunkRootTag().getCompound("Level");
+			level.put("xPos", originX + (i & 31));
+			level.put("zPos", originZ + (i >> 5));
+			region.setChunk(i, chunk);
+		}
+
+		ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+		region.writeRegionFile(bytesOut, null);
+		return ByteBuffer.wrap(bytesOut.toByteArray());
+	}
+
+	@Benchmark
+	public RegionFile parseRegion(Region state) throws IOException {
+		return RegionFile.parse(state.mca.duplicate());
+	}
+
+	@Benchmark
+	public ChunkData parseChunk(Region state) throws IOException {
+		return ChunkData.parse(state.mca, state.chunkLocation, state.chunkTimestamp);
+	}
+
+	@Benchmark
+	public NBTCompound makeArchive(Region state) throws IOException {
+		return state.region.makeArchive();
+	}
+
+	@Benchmark
+	public byte[] writeArchive(Region state, Compressed compressed) throws IOException {
+		ByteArrayOutputStream bytesOut = new ByteArrayOutputStream(compressed.archive.length);
+		state.region.writeArchive(bytesOut, compressed.compression, null, new ArchiveOptions());
+		return bytesOut.toByteArray();
+	}
+
+	@Benchmark
+	public RegionFile readArchive(Compressed compressed) throws IOException {
+		return RegionFile.readArchive(ByteBuffer.wrap(compressed.archive), compressed.compression, null, null);
+	}
+
+	@Benchmark
+	public RegionFile fromArchive(ArchiveTree tree) throws IOException {
+		return RegionFile.fromArchive(tree.root);
+	}
+
+	@Benchmark
+	public byte[] generateChunkBlock(Region state) throws IOException {
+		return state.chunk.generateChunkBlock();
+	}
+
+	@Benchmark
+	public byte[] writeRegionFile(Region state) throws IOException {
+		ByteArrayOutputStream bytesOut = new ByteArrayOutputStream(state.mca.capacity());
+		state.region.writeRegionFile(bytesOut, null);
+		return bytesOut.toByteArray();
+	}
+}
@@ -0,0 +1,56 @@
+package nz.net.goddard.mcrecompress;
+
+// Optional features of the MRI format. The defaults write plain MRI 1.0 archives.
+public class ArchiveOptions {
+	private boolean filterBlocks = false;
+	private boolean stripLighting = false;
+	private SectionStore sectionStore = null;
+	private boolean paletteBlocks = false;
+	private boolean checksums = false;
+	
+	public boolean isFilteringBlocks() {
+		return filterBlocks;
+	}
+	
+	// Splits nibble columns into planes and bit-plane shuffles Blocks (MRI 1.1)
+	public void setFilterBlocks(boolean filterBlocks) {
+		this.filterBlocks = filterBlocks;
+	}
+	
+	public boolean isStrippingLighting() {
+		return stripLighting;
+	}
+	
+	// Leaves out BlockLight, SkyLight and HeightMap, which are recomputed on restore (MRI 1.1)
+	public void setStripLighting(boolean stripLighting) {
+		this.stripLighting = stripLighting;
+	}
+	
+	public boolean isPalettingBlocks() {
+		return paletteBlocks;
+	}
+	
+	// Stores Blocks, Add and Data as a palette and packed indices per section (MRI 1.1)
+	public void setPaletteBlocks(boolean paletteBlocks) {
+		this.paletteBlocks = paletteBlocks;
+	}
+	
+	public boolean isWritingChecksums() {
+		return checksums;
+	}
+	
+	// Stores CRC-32C checksums of each chunk and section, for verifying the archive without
+	// restoring it. Readers that don't know them skip them, so the version is unchanged.
+	public void setChecksums(boolean checksums) {
+		this.checksums = checksums;
+	}
+	
+	public SectionStore getSectionStore() {
+		return sectionStore;
+	}
+	
+	// Moves section arrays into a store shared by the whole world, leaving references (MRI 1.1)
+	public void setSectionStore(SectionStore sectionStore) {
+		this.sectionStore = sectionStore;
+	}
+}
@@ -0,0 +1,341 @@
+package nz.net.goddard.mcrecompress;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import nz.net.goddard.mcrecompress.nbt.NBTCompound;
+import nz.net.goddard.mcrecompress.nbt.NBTList;
+import nz.net.goddard.mcrecompress.nbt.NBTReader;
+import nz.net.goddard.mcrecompress.nbt.NBTTypes;
+
+
+// Pull parser for MRI archives. Chunks are built as the "Chunks" list is read, and
+// the "BlockData" columns are copied into the sections as they stream past, so the
+// archive's tag tree is never held in memory. Columns that appear before the chunk
+// list, or before the archive's version, are buffered until both are known.
+public class ArchiveReader {
+	private final NBTReader in;
+	private final SectionStore sectionStore;
+	private String version = null;
+	private final Map<String, BlockFilter> filters = new HashMap<String, BlockFilter>();
+	// Palette columns are small next to the others, so they are always read in full
+	private byte[] paletteColumn = null;
+	private byte[] indexColumn = null;
+	private final Map<String, byte[]> deferredColumns = new HashMap<String, byte[]>();
+	
+	public ArchiveReader(InputStream in) {
+		this(in, null);
+	}
+	
+	// The section store is only needed for archives written with one
+	public ArchiveReader(InputStream in, SectionStore sectionStore) {
+		this.in = new NBTReader(in);
+		this.sectionStore = sectionStore;
+	}
+	
+	public RegionFile readRegion() throws IOException {
+		try {
+			return readRegionTag();
+		} finally {
+			in.release();
+		}
+	}
+	
+	private RegionFile readRegionTag() throws IOException {
+		if (in.readType() != NBTTypes.TYPE_COMPOUND) {
+			throw new IOException("MRI archive must start with a compound tag");
+		}
+		in.readName();
+		
+		RegionFile region = RegionFile.empty();
+		boolean chunksRead = false;
+		boolean usesStore = false;
+		
+		int type;
+		while ((type = in.readType()) != NBTTypes.TYPE_END) {
+			String name = in.readName();
+			if (name.equals("MRI Version") && type == NBTTypes.TYPE_STRING) {
+				version = (String) in.readPayload(type);
+				checkVersion(version);
+			} else if (name.equals("Section Store") && type == NBTTypes.TYPE_STRING) {
+				checkStore((String) in.readPayload(type), sectionStore);
+				usesStore = true;
+			} else if (name.equals("Stripped") && type == NBTTypes.TYPE_LIST) {
+				readStripped(region, (NBTList) in.readPayload(type));
+			} else if (name.equals("Chunks") && type == NBTTypes.TYPE_LIST) {
+				readChunks(region);
+				chunksRead = true;
+			} else if (name.equals("BlockData") && type == NBTTypes.TYPE_COMPOUND) {
+				readBlockData(region, chunksRead);
+			} else if (name.equals("Checksums") && type == NBTTypes.TYPE_COMPOUND) {
+				region.setStoredChecksums(RegionChecksums.fromTag((NBTCompound) in.readPayload(type)));
+			} else {
+				in.skipPayload(type);
+			}
+		}
+		
+		for (Map.Entry<String, byte[]> column : deferredColumns.entrySet()) {
+			restoreColumn(region, column.getKey(), column.getValue(), filterFor(filters, column.getKey()));
+		}
+		if (usesStore) {
+			restoreStoredSections(region, sectionStore);
+		}
+		if (paletteColumn != null || indexColumn != null) {
+			restorePalettes(region, paletteColumn, indexColumn);
+		}
+		
+		return region;
+	}
+	
+	static void checkVersion(String version) throws IOException {
+		if (!"1.0".equals(version) && !"1.1".equals(version)) {
+			throw new IOException("Unsupported MRI version " + version);
+		}
+	}
+	
+	private static void checkStore(String storeId, SectionStore store) throws IOException {
+		if (store == null) {
+			throw new IOException("Archive needs section store " + storeId);
+		} else if (!store.getStoreId().equals(storeId)) {
+			throw new IOException("Archive was written with section store " + storeId + ", not " + store.getStoreId());
+		}
+	}
+	
+	// Puts arrays kept in the section store back in place of their storage markers
+	private static void restoreStoredSections(RegionFile region, SectionStore store) throws IOException {
+		for (int i = 0; i < 1024; ++i) {
+			ChunkData chunk = region.chunkAt(i);
+			for (int y = 0; chunk != null && y < 16; y++) {
+				SectionData section = chunk.getSection(y);
+				Object ref = (section == null) ? null : section.getSectionTag().remove("SectionRef");
+				if (!(ref instanceof Integer)) {
+					continue;
+				}
+				
+				byte[][] arrays = store.get((Integer) ref);
+				for (int k = 0; k < RegionFile.combineKeys.length; ++k) {
+					String key = RegionFile.combineKeys[k];
+					if (section.isStoredIn(key, "SectionStore")) {
+						if (arrays[k] == null) {
+							throw new IOException("Section store entry " + ref + " has no " + key);
+						}
+						// Stored arrays are shared between sections, so each gets its own copy
+						section.restoreByteBlock(key, arrays[k].clone());
+					}
+				}
+			}
+		}
+	}
+	
+	// Lighting is the only data an archive may leave out
+	private static void readStripped(RegionFile region, NBTList stripped) throws IOException {
+		for (int i = 0; i < stripped.size(); ++i) {
+			if (!ArchiveWriter.lightingKeys.contains(stripped.get(i))) {
+				throw new IOException("Archive leaves out unrecognised data " + stripped.get(i));
+			}
+			region.setLightingStripped(true);
+		}
+	}
+	
+	private void readChunks(RegionFile region) throws IOException {
+		int elementType = in.readType();
+		int length = in.readInt();
+		if (length > 0 && elementType != NBTTypes.TYPE_COMPOUND) {
+			throw new IOException("MRI chunk list must contain compounds");
+		}
+		
+		for (int i = 0; i < length; ++i) {
+			addChunk(region, in.readCompound());
+		}
+	}
+	
+	// The root "Last Modified" is the region timestamp, not part of the chunk
+	static void addChunk(RegionFile region, NBTCompound chunkRoot) {
+		Object timestamp = chunkRoot.remove("Last Modified");
+		ChunkData chunk = new ChunkData((timestamp instanceof Integer) ? (Integer) timestamp : 0, chunkRoot);
+		region.setChunk(chunk.getRegionIndex(), chunk);
+	}
+	
+	private void readBlockData(RegionFile region, boolean chunksRead) throws IOException {
+		// MRI 1.0 has no filters, and later versions list them ahead of the columns, so columns
+		// reached without them are unfiltered. Only archives giving their version late are held back.
+		boolean filtersKnown = (version != null);
+		boolean columnsStreamed = false;
+		
+		int type;
+		while ((type = in.readType()) != NBTTypes.TYPE_END) {
+			String name = in.readName();
+			if (name.equals("Filters") && type == NBTTypes.TYPE_COMPOUND) {
+				if (columnsStreamed) {
+					throw new IOException("BlockData filters come after the columns they apply to");
+				}
+				readFilters(in.readCompound(), filters);
+				filtersKnown = true;
+			} else if (name.equals("Palette") && type == NBTTypes.TYPE_BYTE_ARRAY) {
+				paletteColumn = readByteArray();
+			} else if (name.equals("Indices") && type == NBTTypes.TYPE_BYTE_ARRAY) {
+				indexColumn = readByteArray();
+			} else if (type == NBTTypes.TYPE_BYTE_ARRAY && RegionFile.combineBlockLengths.containsKey(name)) {
+				int length = in.readInt();
+				if (chunksRead && filtersKnown) {
+					restoreColumn(region, name, length, in, filterFor(filters, name));
+					columnsStreamed = true;
+				} else {
+					byte[] column = new byte[length];
+					in.readFully(column);
+					deferredColumns.put(name, column);
+				}
+			} else {
+				// "Order" and anything unrecognised
+				in.skipPayload(type);
+			}
+		}
+	}
+	
+	// Columns that had to be read in full before they could be restored
+	int countDeferredColumns() {
+		return deferredColumns.size();
+	}
+	
+	private byte[] readByteArray() throws IOException {
+		byte[] array = new byte[in.readInt()];
+		in.readFully(array);
+		return array;
+	}
+	
+	// Expands paletted sections, in section YZX order, back to Blocks, Add and Data
+	private static void restorePalettes(RegionFile region, byte[] paletteColumn, byte[] indexColumn) throws IOException {
+		if (paletteColumn == null || indexColumn == null) {
+			throw new IOException("BlockData has only one of Palette and Indices");
+		}
+		
+		DataInputStream palettes = new DataInputStream(new ByteArrayInputStream(paletteColumn));
+		DataInputStream indices = new DataInputStream(new ByteArrayInputStream(indexColumn));
+		for (int y = 0; y < 16; y++) {
+			for (int i = 0; i < 1024; ++i) {
+				ChunkData chunk = region.chunkAt(i);
+				SectionData section = (chunk == null) ? null : chunk.getSection(y);
+				if (section == null || !section.isStoredIn("Blocks", "Palette")) {
+					continue;
+				}
+				
+				short[] entries = new short[palettes.readUnsignedByte() + 1];
+				for (int e = 0; e < entries.length; ++e) {
+					entries[e] = palettes.readShort();
+				}
+				byte[] packed = new byte[BlockPalette.indexLength(entries.length)];
+				indices.readFully(packed);
+				
+				byte[] blocks = new byte[4096];
+				byte[] data = new byte[2048];
+				byte[] add = section.isStoredIn("Add", "Palette") ? new byte[2048] : null;
+				BlockPalette.fromParts(entries, packed).decode(blocks, add, data);
+				section.restoreByteBlock("Blocks", blocks);
+				section.restoreByteBlock("Data", data);
+				if (add != null) {
+					section.restoreByteBlock("Add", add);
+				}
+			}
+		}
+		
+		if (palettes.available() != 0 || indices.available() != 0) {
+			throw new IOException("BlockData palette columns are longer than their sections");
+		}
+	}
+	
+	private static void readFilters(NBTCompound filterTag, Map<String, BlockFilter> filters) throws IOException {
+		for (int i = 0; i < filterTag.size(); ++i) {
+			Object value = filterTag.getValue(i);
+			BlockFilter filter = (value instanceof String) ? BlockFilter.forName((String) value) : null;
+			if (filter == null) {
+				throw new IOException("Unknown BlockData filter " + value + " on " + filterTag.getName(i));
+			}
+			filters.put(filterTag.getName(i), filter);
+		}
+	}
+	
+	private static BlockFilter filterFor(Map<String, BlockFilter> filters, String key) {
+		BlockFilter filter = filters.get(key);
+		return (filter == null) ? BlockFilter.NONE : filter;
+	}
+	
+	static void restoreColumn(RegionFile region, String key, byte[] column, BlockFilter filter) throws IOException {
+		NBTReader columnReader = new NBTReader(new ByteArrayInputStream(column));
+		try {
+			restoreColumn(region, key, column.length, columnReader, filter);
+		} finally {
+			columnReader.release();
+		}
+	}
+	
+	// Copies one grouped column into the sections that refer to it, in section YZX order
+	private static void restoreColumn(RegionFile region, String key, int length, NBTReader column, BlockFilter filter) throws IOException {
+		int blockSize = RegionFile.combineBlockLengths.get(key);
+		int remaining = length;
+		for (int y = 0; y < 16; y++) {
+			for (int i = 0; i < 1024; ++i) {
+				ChunkData chunk = region.chunkAt(i);
+				SectionData section = (chunk == null) ? null : chunk.getSection(y);
+				if (section != null && section.isStoredInBlockData(key)) {
+					if (remaining < blockSize) {
+						throw new IOException("BlockData column " + key + " is shorter than its sections");
+					}
+					byte[] sectionData = new byte[blockSize];
+					column.readFully(sectionData);
+					section.restoreByteBlock(key, filter.decode(sectionData));
+					remaining -= blockSize;
+				}
+			}
+		}
+		
+		if (remaining != 0) {
+			throw new IOException("BlockData column " + key + " is longer than its sections");
+		}
+	}
+	
+	// Rebuilds a region from an archive tree that has already been read in full
+	static RegionFile fromArchiveTree(NBTCompound root) throws IOException {
+		return fromArchiveTree(root, null);
+	}
+	
+	static RegionFile fromArchiveTree(NBTCompound root, SectionStore sectionStore) throws IOException {
+		checkVersion(root.getString("MRI Version"));
+		String storeId = root.getString("Section Store");
+		if (storeId != null) {
+			checkStore(storeId, sectionStore);
+		}
+		
+		RegionFile region = RegionFile.empty();
+		NBTList stripped = root.getList("Stripped");
+		if (stripped != null) {
+			readStripped(region, stripped);
+		}
+		NBTList chunkList = root.getList("Chunks");
+		for (int i = 0; i < chunkList.size(); ++i) {
+			addChunk(region, (NBTCompound) chunkList.get(i));
+		}
+		
+		NBTCompound blockData = root.getCompound("BlockData");
+		Map<String, BlockFilter> filters = new HashMap<String, BlockFilter>();
+		NBTCompound filterTag = blockData.getCompound("Filters");
+		if (filterTag != null) {
+			readFilters(filterTag, filters);
+		}
+		for (String key : RegionFile.combineKeys) {
+			byte[] column = blockData.getByteArray(key);
+			if (column != null) {
+				restoreColumn(region, key, column, filterFor(filters, key));
+			}
+		}
+		if (storeId != null) {
+			restoreStoredSections(region, sectionStore);
+		}
+		if (blockData.containsKey("Palette") || blockData.containsKey("Indices")) {
+			restorePalettes(region, blockData.getByteArray("Palette"), blockData.getByteArray("Indices"));
+		}
+		return region;
+	}
+}
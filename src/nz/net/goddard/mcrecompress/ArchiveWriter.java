@@ -0,0 +1,303 @@
+package nz.net.goddard.mcrecompress;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import nz.net.goddard.mcrecompress.nbt.NBTCompound;
+import nz.net.goddard.mcrecompress.nbt.NBTList;
+import nz.net.goddard.mcrecompress.nbt.NBTTypes;
+import nz.net.goddard.mcrecompress.nbt.NBTWriter;
+
+
+// Writes the MRI structure straight to a stream instead of building the archive tag tree.
+// Chunk tags are written one at a time from the chunks' own trees, with grouped arrays
+// swapped for storage markers on the way out, and each BlockData column is written by a
+// pass over the sections.
+public class ArchiveWriter {
+	// Recomputed by Relighter when the archive is restored
+	static final List<String> lightingKeys = Arrays.asList("BlockLight", "SkyLight", "HeightMap");
+	static final List<String> paletteKeys = Arrays.asList("Blocks", "Add", "Data");
+	
+	private final NBTWriter out;
+	private final ArchiveOptions options;
+	private boolean stripLighting;
+	// Section store id for each chunk slot and section Y, or -1 where the section is in BlockData
+	private int[] sectionRefs;
+	// Palette for each chunk slot and section Y, where the section's blocks are paletted
+	private BlockPalette[] palettes;
+	
+	public ArchiveWriter(OutputStream out) {
+		this(out, new ArchiveOptions());
+	}
+	
+	public ArchiveWriter(OutputStream out, ArchiveOptions options) {
+		this.out = new NBTWriter(out);
+		this.options = options;
+	}
+	
+	public void writeRegion(RegionFile region) throws IOException {
+		Map<String, Integer> blockSizes = RegionFile.combineBlockLengths;
+		
+		// A region read from a stripped archive and not yet relit has no lighting to write
+		stripLighting = options.isStrippingLighting() || region.isLightingStripped();
+		
+		SectionStore store = options.getSectionStore();
+		sectionRefs = (store == null) ? null : storeSections(region, store);
+		
+		out.beginCompound("Region");
+		palettes = options.isPalettingBlocks() ? paletteSections(region) : null;
+		
+		boolean extended = options.isFilteringBlocks() || stripLighting || store != null || palettes != null;
+		out.writeField("MRI Version", extended ? "1.1" : "1.0");
+		if (store != null) {
+			out.writeField("Section Store", store.getStoreId());
+		}
+		if (stripLighting) {
+			NBTList stripped = new NBTList(NBTTypes.TYPE_STRING, lightingKeys.size());
+			for (String key : lightingKeys) {
+				stripped.add(key);
+			}
+			out.writeField("Stripped", stripped);
+		}
+		
+		// Chunk tags, with grouped arrays replaced by storage markers
+		int chunkCount = 0;
+		for (int i = 0; i < 1024; ++i) {
+			if (region.chunkAt(i) != null) {
+				chunkCount++;
+			}
+		}
+		out.beginList("Chunks", NBTTypes.TYPE_COMPOUND, chunkCount);
+		for (int i = 0; i < 1024; ++i) {
+			ChunkData chunk = region.chunkAt(i);
+			if (chunk != null) {
+				writeChunk(i, chunk, blockSizes);
+			}
+		}
+		
+		// Grouped columns, each in section YZX order
+		out.beginCompound("BlockData");
+		out.writeField("Order", "Section YZX");
+		if (extended) {
+			// Written ahead of the columns so readers can decode them as they stream past
+			out.beginCompound("Filters");
+			for (String key : RegionFile.combineKeys) {
+				if (!isStripped(key)) {
+					BlockFilter filter = options.isFilteringBlocks() ? BlockFilter.forBlockSize(blockSizes.get(key)) : BlockFilter.NONE;
+					out.writeField(key, filter.getName());
+				}
+			}
+			out.endCompound();
+		}
+		for (String key : RegionFile.combineKeys) {
+			if (isStripped(key)) {
+				continue;
+			}
+			int blockSize = blockSizes.get(key);
+			BlockFilter filter = options.isFilteringBlocks() ? BlockFilter.forBlockSize(blockSize) : BlockFilter.NONE;
+			int sectionCount = 0;
+			for (int y = 0; y < 16; y++) {
+				for (int i = 0; i < 1024; ++i) {
+					if (groupedSection(region, i, y, key) != null) {
+						sectionCount++;
+					}
+				}
+			}
+			
+			out.beginByteArray(key, sectionCount * blockSize);
+			for (int y = 0; y < 16; y++) {
+				for (int i = 0; i < 1024; ++i) {
+					SectionData section = groupedSection(region, i, y, key);
+					if (section != null) {
+						out.writeBytes(filter.encode(section.getByteBlock(key)));
+					}
+				}
+			}
+		}
+		if (palettes != null) {
+			writePaletteColumns();
+		}
+		out.endCompound();
+		
+		if (options.isWritingChecksums()) {
+			out.writeField("Checksums", RegionChecksums.compute(region, !stripLighting, null).toTag());
+		}
+		
+		out.endCompound();
+	}
+	
+	// "Palette" holds each section's entry count less one and its entries, "Indices" the packed indices
+	private void writePaletteColumns() throws IOException {
+		int paletteLength = 0;
+		int indexLength = 0;
+		for (BlockPalette palette : palettes) {
+			if (palette != null) {
+				paletteLength += 1 + palette.size() * 2;
+				indexLength += palette.getIndices().length;
+			}
+		}
+		
+		out.beginByteArray("Palette", paletteLength);
+		for (int y = 0; y < 16; y++) {
+			for (int i = 0; i < 1024; ++i) {
+				BlockPalette palette = palettes[i * 16 + y];
+				if (palette != null) {
+					out.writeByte(palette.size() - 1);
+					for (short entry : palette.getEntries()) {
+						out.writeShort(entry);
+					}
+				}
+			}
+		}
+		
+		out.beginByteArray("Indices", indexLength);
+		for (int y = 0; y < 16; y++) {
+			for (int i = 0; i < 1024; ++i) {
+				BlockPalette palette = palettes[i * 16 + y];
+				if (palette != null) {
+					out.writeBytes(palette.getIndices());
+				}
+			}
+		}
+	}
+	
+	// Chunk compound payload as MRI 1.0 stores it, with "Last Modified" in both the root and Level
+	private void writeChunk(int index, ChunkData chunk, Map<String, Integer> blockSizes) throws IOException {
+		NBTCompound root = chunk.getChunkRootTag();
+		for (int i = 0; i < root.size(); ++i) {
+			String name = root.getName(i);
+			Object value = root.getValue(i);
+			if (name.equals("Last Modified")) {
+				continue;
+			} else if (name.equals("Level") && value instanceof NBTCompound) {
+				writeLevel(index, chunk, (NBTCompound) value, blockSizes);
+			} else {
+				out.writeField(name, value);
+			}
+		}
+		out.writeField("Last Modified", chunk.getTimestamp());
+		out.endCompound();
+	}
+	
+	private void writeLevel(int index, ChunkData chunk, NBTCompound level, Map<String, Integer> blockSizes) throws IOException {
+		out.beginCompound("Level");
+		for (int i = 0; i < level.size(); ++i) {
+			String name = level.getName(i);
+			Object value = level.getValue(i);
+			if (name.equals("Last Modified") || isStripped(name)) {
+				continue;
+			} else if (name.equals("Sections") && value instanceof NBTList && ((NBTList) value).getElementType() == NBTTypes.TYPE_COMPOUND) {
+				NBTList sections = (NBTList) value;
+				out.beginList(name, NBTTypes.TYPE_COMPOUND, sections.size());
+				for (int s = 0; s < sections.size(); ++s) {
+					writeSection(index, chunk, (NBTCompound) sections.get(s), blockSizes);
+				}
+			} else {
+				out.writeField(name, value);
+			}
+		}
+		out.writeField("Last Modified", chunk.getTimestamp());
+		out.endCompound();
+	}
+	
+	private void writeSection(int index, ChunkData chunk, NBTCompound sectionTag, Map<String, Integer> blockSizes) throws IOException {
+		// Only sections reachable by a Y the columns cover, 0 to 15, are grouped; modded worlds
+		// may have others, which are written whole
+		SectionData section = null;
+		Object y = sectionTag.get("Y");
+		if (y instanceof Number) {
+			section = chunk.getSection(((Number) y).intValue());
+		}
+		boolean columnsCoverSection = (section != null && section.getSectionTag() == sectionTag && section.getY() < 16);
+		int ref = (columnsCoverSection && sectionRefs != null) ? sectionRefs[index * 16 + section.getY()] : -1;
+		BlockPalette palette = (columnsCoverSection && palettes != null) ? palettes[index * 16 + section.getY()] : null;
+		String storage = (ref >= 0) ? "SectionStore" : "BlockData";
+		
+		for (int i = 0; i < sectionTag.size(); ++i) {
+			String name = sectionTag.getName(i);
+			if (isStripped(name)) {
+				continue;
+			} else if (columnsCoverSection && section.isGrouped(name, blockSizes)) {
+				out.writeField(name + "Storage", (palette != null && paletteKeys.contains(name)) ? "Palette" : storage);
+			} else {
+				out.writeField(name, sectionTag.getValue(i));
+			}
+		}
+		if (ref >= 0) {
+			out.writeField("SectionRef", ref);
+		}
+		out.endCompound();
+	}
+	
+	private boolean isStripped(String key) {
+		return stripLighting && lightingKeys.contains(key);
+	}
+	
+	// Adds every section with Blocks to the store
+	private int[] storeSections(RegionFile region, SectionStore store) throws IOException {
+		List<String> storedKeys = new ArrayList<String>();
+		for (String key : RegionFile.combineKeys) {
+			if (!isStripped(key)) {
+				storedKeys.add(key);
+			}
+		}
+		
+		int[] refs = new int[1024 * 16];
+		Arrays.fill(refs, -1);
+		for (int i = 0; i < 1024; ++i) {
+			ChunkData chunk = region.chunkAt(i);
+			for (int y = 0; chunk != null && y < 16; y++) {
+				SectionData section = chunk.getSection(y);
+				if (section != null && section.isGrouped("Blocks", RegionFile.combineBlockLengths)) {
+					refs[i * 16 + y] = store.add(SectionStore.sectionArrays(section, storedKeys));
+				}
+			}
+		}
+		return refs;
+	}
+	
+	// Palettes sections that aren't going to the section store and have at most 256 block values
+	private BlockPalette[] paletteSections(RegionFile region) {
+		Map<String, Integer> blockSizes = RegionFile.combineBlockLengths;
+		BlockPalette[] palettes = new BlockPalette[1024 * 16];
+		for (int i = 0; i < 1024; ++i) {
+			ChunkData chunk = region.chunkAt(i);
+			for (int y = 0; chunk != null && y < 16; y++) {
+				SectionData section = chunk.getSection(y);
+				if (section == null || (sectionRefs != null && sectionRefs[i * 16 + y] >= 0)
+						|| !section.isGrouped("Blocks", blockSizes) || !section.isGrouped("Data", blockSizes)) {
+					continue;
+				}
+				byte[] add = null;
+				if (section.getSectionTag().containsKey("Add")) {
+					if (!section.isGrouped("Add", blockSizes)) {
+						continue;
+					}
+					add = section.getByteBlock("Add");
+				}
+				palettes[i * 16 + y] = BlockPalette.encode(section.getBlocks(), add, section.getData());
+			}
+		}
+		return palettes;
+	}
+	
+	private SectionData groupedSection(RegionFile region, int index, int y, String key) {
+		ChunkData chunk = region.chunkAt(index);
+		if (chunk == null || (sectionRefs != null && sectionRefs[index * 16 + y] >= 0)
+				|| (palettes != null && palettes[index * 16 + y] != null && paletteKeys.contains(key))) {
+			return null;
+		}
+		SectionData section = chunk.getSection(y);
+		if (section == null || !section.isGrouped(key, RegionFile.combineBlockLengths)) {
+			return null;
+		}
+		return section;
+	}
+	
+	public void close() throws IOException {
+		out.close();
+	}
+}
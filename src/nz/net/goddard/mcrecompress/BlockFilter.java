@@ -0,0 +1,108 @@
+package nz.net.goddard.mcrecompress;
+
+// Reversible per-section transforms applied to BlockData columns before compression.
+// Each filter maps a section's block to a block of the same length.
+public enum BlockFilter {
+	NONE("None") {
+		@Override
+		public byte[] encode(byte[] block) {
+			return block;
+		}
+		
+		@Override
+		public byte[] decode(byte[] block) {
+			return block;
+		}
+	},
+	
+	// Low nibbles of the block first, then high nibbles, each plane packed two to a byte
+	NIBBLE_PLANES("Nibble Planes") {
+		@Override
+		public byte[] encode(byte[] block) {
+			int half = block.length / 2;
+			byte[] planes = new byte[block.length];
+			for (int i = 0; i < half; ++i) {
+				int even = block[2 * i];
+				int odd = block[2 * i + 1];
+				planes[i] = (byte) ((even & 0x0F) | ((odd & 0x0F) << 4));
+				planes[half + i] = (byte) (((even >> 4) & 0x0F) | (odd & 0xF0));
+			}
+			return planes;
+		}
+		
+		@Override
+		public byte[] decode(byte[] planes) {
+			int half = planes.length / 2;
+			byte[] block = new byte[planes.length];
+			for (int i = 0; i < half; ++i) {
+				int low = planes[i];
+				int high = planes[half + i];
+				block[2 * i] = (byte) ((low & 0x0F) | ((high & 0x0F) << 4));
+				block[2 * i + 1] = (byte) (((low >> 4) & 0x0F) | (high & 0xF0));
+			}
+			return block;
+		}
+	},
+	
+	// Bit b of byte 8j+t becomes bit t of byte j in plane b
+	BIT_PLANES("Bit Planes") {
+		@Override
+		public byte[] encode(byte[] block) {
+			int planeLength = block.length / 8;
+			byte[] planes = new byte[block.length];
+			for (int j = 0; j < planeLength; ++j) {
+				for (int bit = 0; bit < 8; ++bit) {
+					int packed = 0;
+					for (int t = 0; t < 8; ++t) {
+						packed |= ((block[8 * j + t] >> bit) & 1) << t;
+					}
+					planes[bit * planeLength + j] = (byte) packed;
+				}
+			}
+			return planes;
+		}
+		
+		@Override
+		public byte[] decode(byte[] planes) {
+			int planeLength = planes.length / 8;
+			byte[] block = new byte[planes.length];
+			for (int j = 0; j < planeLength; ++j) {
+				for (int bit = 0; bit < 8; ++bit) {
+					int packed = planes[bit * planeLength + j];
+					for (int t = 0; t < 8; ++t) {
+						block[8 * j + t] |= ((packed >> t) & 1) << bit;
+					}
+				}
+			}
+			return block;
+		}
+	};
+	
+	private final String name;
+	
+	private BlockFilter(String name) {
+		this.name = name;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public abstract byte[] encode(byte[] block);
+	
+	public abstract byte[] decode(byte[] block);
+	
+	public static BlockFilter forName(String name) {
+		for (BlockFilter filter : values()) {
+			if (filter.name.equals(name)) {
+				return filter;
+			}
+		}
+		return null;
+	}
+	
+	// Byte-per-block arrays are bit-plane shuffled, nibble arrays are split into planes
+	public static BlockFilter forBlockSize(int blockSize) {
+		return (blockSize == 4096) ? BIT_PLANES : NIBBLE_PLANES;
+	}
+}
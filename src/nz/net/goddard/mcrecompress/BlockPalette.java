@@ -0,0 +1,122 @@
+package nz.net.goddard.mcrecompress;
+import java.io.IOException;
+
+
+// A section's Blocks, Add and Data arrays as a palette of distinct (id, add, data) values
+// and one index per block. Indices are packed at 0, 1, 2, 4 or 8 bits, the smallest
+// width that fits the palette, so they never straddle a byte.
+public class BlockPalette {
+	static final int MAX_ENTRIES = 256;
+
+	// Entries are id << 4 | data, id including the Add nibble
+	private final short[] entries;
+	private final byte[] indices;
+
+	private BlockPalette(short[] entries, byte[] indices) {
+		this.entries = entries;
+		this.indices = indices;
+	}
+
+	public int size() {
+		return entries.length;
+	}
+
+	public short[] getEntries() {
+		return entries;
+	}
+
+	public byte[] getIndices() {
+		return indices;
+	}
+
+	// Null if the section has more distinct values than a palette holds
+	public static BlockPalette encode(byte[] blocks, byte[] add, byte[] data) {
+		short[] lookup = new short[65536];
+		short[] entries = new short[MAX_ENTRIES];
+		byte[] values = new byte[4096];
+		int size = 0;
+		for (int i = 0; i < 4096; ++i) {
+			int value = ((blocks[i] & 255) << 4) | nibble(data, i);
+			if (add != null) {
+				value |= nibble(add, i) << 12;
+			}
+
+			int slot = lookup[value];
+			if (slot == 0) {
+				if (size == MAX_ENTRIES) {
+					return null;
+				}
+				entries[size] = (short) value;
+				slot = ++size;
+				lookup[value] = (short) slot;
+			}
+			values[i] = (byte) (slot - 1);
+		}
+
+		short[] palette = new short[size];
+		System.arraycopy(entries, 0, palette, 0, size);
+		return new BlockPalette(palette, pack(values, bitsFor(size)));
+	}
+
+	static int bitsFor(int size) {
+		int bits = 0;
+		while ((1 << bits) < size) {
+			bits = (bits == 0) ? 1 : bits * 2;
+		}
+		return bits;
+	}
+
+	public static int indexLength(int size) {
+		return 4096 * bitsFor(size) / 8;
+	}
+
+	private static byte[] pack(byte[] values, int bits) {
+		byte[] packed = new byte[4096 * bits / 8];
+		if (bits == 0) {
+			return packed;
+		}
+		int perByte = 8 / bits;
+		for (int i = 0; i < 4096; ++i) {
+			packed[i / perByte] |= (values[i] & 255) << ((i % perByte) * bits);
+		}
+		return packed;
+	}
+
+	public static BlockPalette fromParts(short[] entries, byte[] indices) throws IOException {
+		if (entries.length == 0 || entries.length > MAX_ENTRIES || indices.length != indexLength(entries.length)) {
+			throw new IOException("Malformed block palette");
+		}
+		return new BlockPalette(entries, indices);
+	}
+
+	// Expands back to the legacy arrays. Add is only filled in if it is given.
+	public void decode(byte[] blocks, byte[] add, byte[] data) throws IOException {
+		int bits = bitsFor(entries.length);
+		int perByte = (bits == 0) ? 0 : 8 / bits;
+		int mask = (1 << bits) - 1;
+		for (int i = 0; i < 4096; ++i) {
+			int index = (bits == 0) ? 0 : ((indices[i / perByte] & 255) >> ((i % perByte) * bits)) & mask;
+			if (index >= entries.length) {
+				throw new IOException("Block palette index out of range");
+			}
+			int value = entries[index] & 0xFFFF;
+			blocks[i] = (byte) (value >> 4);
+			setNibble(data, i, value & 15);
+			if (add != null) {
+				setNibble(add, i, value >> 12);
+			}
+		}
+	}
+
+	private static int nibble(byte[] array, int index) {
+		return ((index & 1) == 0) ? (array[index >> 1] & 15) : ((array[index >> 1] >> 4) & 15);
+	}
+
+	private static void setNibble(byte[] array, int index, int value) {
+		if ((index & 1) == 0) {
+			array[index >> 1] = (byte) ((array[index >> 1] & 0xF0) | value);
+		} else {
+			array[index >> 1] = (byte) ((array[index >> 1] & 0x0F) | (value << 4));
+		}
+	}
+}
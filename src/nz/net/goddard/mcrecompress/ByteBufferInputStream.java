@@ -0,0 +1,46 @@
+package nz.net.goddard.mcrecompress;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+
+// Streams the remaining bytes of a buffer (e.g. a slice of a mapped file) without copying
+public class ByteBufferInputStream extends InputStream {
+	private final ByteBuffer buffer;
+	
+	public ByteBufferInputStream(ByteBuffer buffer) {
+		this.buffer = buffer.duplicate();
+	}
+	
+	@Override
+	public int read() {
+		if (!buffer.hasRemaining()) {
+			return -1;
+		}
+		return buffer.get() & 0xFF;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) {
+			return 0;
+		}
+		if (!buffer.hasRemaining()) {
+			return -1;
+		}
+		int count = Math.min(len, buffer.remaining());
+		buffer.get(b, off, count);
+		return count;
+	}
+	
+	@Override
+	public long skip(long n) {
+		int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+		buffer.position(buffer.position() + count);
+		return count;
+	}
+	
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+}
@@ -0,0 +1,72 @@
+package nz.net.goddard.mcrecompress;
+import java.util.zip.Checksum;
+
+
+// CRC-32C (Castagnoli), as used by iSCSI and ext4. java.util.zip only has it from Java 9,
+// so this is the table driven form, taking eight bytes a step.
+class CRC32C implements Checksum {
+	private static final int POLYNOMIAL = 0x82F63B78;
+	private static final int[] T0 = new int[256];
+	private static final int[] T1 = new int[256];
+	private static final int[] T2 = new int[256];
+	private static final int[] T3 = new int[256];
+	private static final int[] T4 = new int[256];
+	private static final int[] T5 = new int[256];
+	private static final int[] T6 = new int[256];
+	private static final int[] T7 = new int[256];
+
+	static {
+		for (int n = 0; n < 256; ++n) {
+			int c = n;
+			for (int k = 0; k < 8; ++k) {
+				c = ((c & 1) != 0) ? (c >>> 1) ^ POLYNOMIAL : c >>> 1;
+			}
+			T0[n] = c;
+		}
+		int[][] tables = {T0, T1, T2, T3, T4, T5, T6, T7};
+		for (int t = 1; t < tables.length; ++t) {
+			for (int n = 0; n < 256; ++n) {
+				int previous = tables[t - 1][n];
+				tables[t][n] = (previous >>> 8) ^ T0[previous & 0xff];
+			}
+		}
+	}
+
+	private int crc = 0xffffffff;
+
+	@Override
+	public void update(int b) {
+		crc = (crc >>> 8) ^ T0[(crc ^ b) & 0xff];
+	}
+
+	public void update(byte[] b) {
+		update(b, 0, b.length);
+	}
+
+	@Override
+	public void update(byte[] b, int off, int len) {
+		int c = crc;
+		while (len >= 8) {
+			int lo = c ^ ((b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24);
+			int hi = (b[off + 4] & 0xff) | (b[off + 5] & 0xff) << 8 | (b[off + 6] & 0xff) << 16 | (b[off + 7] & 0xff) << 24;
+			c = T7[lo & 0xff] ^ T6[(lo >>> 8) & 0xff] ^ T5[(lo >>> 16) & 0xff] ^ T4[lo >>> 24]
+					^ T3[hi & 0xff] ^ T2[(hi >>> 8) & 0xff] ^ T1[(hi >>> 16) & 0xff] ^ T0[hi >>> 24];
+			off += 8;
+			len -= 8;
+		}
+		while (len-- > 0) {
+			c = (c >>> 8) ^ T0[(c ^ b[off++]) & 0xff];
+		}
+		crc = c;
+	}
+
+	@Override
+	public long getValue() {
+		return ~crc & 0xffffffffL;
+	}
+
+	@Override
+	public void reset() {
+		crc = 0xffffffff;
+	}
+}
@@ -0,0 +1,26 @@
+package nz.net.goddard.mcrecompress;
+import java.util.zip.Deflater;
+
+// Deflate settings for the chunks of regenerated .mca files: FAST for quick restores,
+// DEFAULT as the game writes them, and MAX for regions that will sit in cold storage
+public enum ChunkCompressionProfile {
+	FAST(Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY),
+	DEFAULT(Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY),
+	MAX(Deflater.BEST_COMPRESSION, Deflater.DEFAULT_STRATEGY);
+	
+	private final int level;
+	private final int strategy;
+	
+	private ChunkCompressionProfile(int level, int strategy) {
+		this.level = level;
+		this.strategy = strategy;
+	}
+	
+	public int getLevel() {
+		return level;
+	}
+	
+	public int getStrategy() {
+		return strategy;
+	}
+}
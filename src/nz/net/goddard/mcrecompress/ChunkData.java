@@ -1,89 +1,112 @@
 package nz.net.goddard.mcrecompress;
 import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
-import org.jnbt.ByteTag;
-import org.jnbt.CompoundTag;
-import org.jnbt.IntTag;
-import org.jnbt.ListTag;
-import org.jnbt.NBTInputStream;
-import org.jnbt.NBTOutputStream;
-import org.jnbt.Tag;
+import nz.net.goddard.mcrecompress.nbt.NBTCompound;
+import nz.net.goddard.mcrecompress.nbt.NBTList;
+import nz.net.goddard.mcrecompress.nbt.NBTReader;
+import nz.net.goddard.mcrecompress.nbt.NBTWriter;
 
 
 public class ChunkData {
+	// Larger than the streams' default 512 bytes, so zlib is called a few times per chunk
+	// rather than a few hundred
+	private static final int INFLATE_BUFFER_SIZE = 8192;
+	private static final int DEFLATE_BUFFER_SIZE = 8192;
+	
 	private int timestamp;
-	private CompoundTag chunkRootTag;
+	private NBTCompound chunkRootTag;
 	private Map<Integer, SectionData> sections;
 	
-	public ChunkData(int timestamp, Tag chunkRootTag) {
+	public ChunkData(int timestamp, NBTCompound chunkRootTag) {
 		this.setTimestamp(timestamp);
-		this.setChunkRootTag((CompoundTag) chunkRootTag);
+		this.setChunkRootTag(chunkRootTag);
 	}
 	
-	private void setChunkRootTag(CompoundTag chunkRootTag) {
+	private void setChunkRootTag(NBTCompound chunkRootTag) {
 		this.chunkRootTag = chunkRootTag;
 		extractSections();
 	}
 
 	private void extractSections() {
 		this.sections = new HashMap<Integer, SectionData>();
-		try {
-			CompoundTag level = (CompoundTag) chunkRootTag.getValue().get("Level");
-			ListTag sections = (ListTag) level.getValue().get("Sections");
-			for (Tag entry : sections.getValue()) {
-				CompoundTag section = (CompoundTag) entry;
-				byte y = ((ByteTag) section.getValue().get("Y")).getValue();
-				this.sections.put((int) y, new SectionData(section));
+		NBTCompound level = chunkRootTag.getCompound("Level");
+		NBTList sections = (level == null) ? null : level.getList("Sections");
+		if (sections == null) {
+			return;
+		}
+		for (int i = 0; i < sections.size(); ++i) {
+			if (sections.get(i) instanceof NBTCompound) {
+				SectionData section = new SectionData((NBTCompound) sections.get(i));
+				int y = section.getY();
+				if (y >= 0) {
+					this.sections.put(y, section);
+				}
 			}
-		} catch (Exception e) {
-			
 		}
 	}
 
 	public static ChunkData parse(byte[] data, int location, int timestamp) throws IOException {
-		NBTInputStream nbtInput;
-		ChunkData chunk = null;
+		return parse(ByteBuffer.wrap(data), location, timestamp);
+	}
+	
+	public static ChunkData parse(ByteBuffer data, int location, int timestamp) throws IOException {
+		int offset_sectors = location * 4096;
+		ByteBuffer headerStream = data.duplicate();
+		headerStream.order(ByteOrder.BIG_ENDIAN);
+		
+		int length = headerStream.getInt(offset_sectors);
+		byte compression = headerStream.get(offset_sectors + 4);
+		if ((compression & RegionFileWriter.EXTERNAL_FLAG) != 0) {
+			throw new IOException("Chunk is stored in an external .mcc file");
+		}
 		
-			int offset_sectors = location * 4096;
-			byte[] header = Arrays.copyOfRange(data, offset_sectors, offset_sectors + 5);
-			ByteBuffer headerStream = ByteBuffer.wrap(header);
-			headerStream.order(ByteOrder.BIG_ENDIAN);
-			
-			int length = headerStream.getInt();
-			byte compression = headerStream.get();
-			
-			byte[] chunkData = Arrays.copyOfRange(data, offset_sectors + 5, offset_sectors + 5 + length);
-			
-			InputStream chunkReader = new ByteArrayInputStream(chunkData);
-			if (compression == 1) {
-				// Gzip compression
-				chunkReader = new BufferedInputStream(new GZIPInputStream(chunkReader));
-			} else if (compression == 2) {
-				// Deflate compression
-				chunkReader = new InflaterInputStream(chunkReader, new Inflater());
-			}
-			
-			nbtInput = new NBTInputStream(chunkReader, false);
-			chunk = new ChunkData(timestamp, nbtInput.readTag());
+		// Read the payload straight out of the (possibly mapped) region buffer
+		ByteBuffer chunkData = data.duplicate();
+		chunkData.position(offset_sectors + 5);
+		chunkData.limit(offset_sectors + 4 + length);
+		return decode(chunkData, compression, timestamp);
+	}
+	
+	// A chunk too large for its region, from the c.X.Z.mcc file holding its compressed NBT
+	static ChunkData parseExternal(byte[] data, int compression, int timestamp) throws IOException {
+		return decode(ByteBuffer.wrap(data), compression, timestamp);
+	}
+	
+	private static ChunkData decode(ByteBuffer chunkData, int compression, int timestamp) throws IOException {
+		InputStream chunkReader = new ByteBufferInputStream(chunkData);
+		Inflater inflater = null;
+		if (compression == 1) {
+			// Gzip compression; closing the stream ends its inflater
+			chunkReader = new BufferedInputStream(new GZIPInputStream(chunkReader));
+		} else if (compression == 2) {
+			// Deflate compression
+			inflater = ZlibPool.takeInflater();
+			chunkReader = new InflaterInputStream(chunkReader, inflater, INFLATE_BUFFER_SIZE);
+		}
 		
-		return chunk;
+		NBTReader nbtInput = new NBTReader(chunkReader);
+		try {
+			return new ChunkData(timestamp, nbtInput.readRootCompound());
+		} finally {
+			nbtInput.release();
+			chunkReader.close();
+			if (inflater != null) {
+				ZlibPool.returnInflater(inflater);
+			}
+		}
 	}
 
 	public int getTimestamp() {
@@ -94,33 +117,14 @@ public class ChunkData {
 		this.timestamp = timestamp;
 	}
 
-	public CompoundTag getChunkRootTag() {
-		CompoundTag levelTag = (CompoundTag) chunkRootTag.getValue().get("Level");
-		Map<String, Tag> chunkFields = new HashMap<String, Tag>(levelTag.getValue());
-		Tag origSectionTag = chunkFields.remove("Sections");
-		
-		List<Tag> sections = new ArrayList<Tag>();
-		
-		for (int i = 0; i < 16; ++i) {
-			SectionData section = getSection(i);
-			if (section != null) {
-				sections.add(section.getSectionTag());
-			}
-		}
-		
-		chunkFields.put("Sections", new ListTag(origSectionTag.getName(), CompoundTag.class, sections));
-		
-		levelTag = new CompoundTag(levelTag.getName(), chunkFields);
-		
-		Map<String, Tag> topFields = new HashMap<String, Tag>();
-		topFields.put("Level", levelTag);
-		return new CompoundTag(chunkRootTag.getName(), topFields);
+	// The chunk's NBT as stored in a region file. Sections are edited in place, so this is
+	// the live tree rather than a copy.
+	public NBTCompound getChunkRootTag() {
+		return chunkRootTag;
 	}
 	
 	public int getX() {
-		CompoundTag level = (CompoundTag) chunkRootTag.getValue().get("Level");
-		IntTag xPos = (IntTag) level.getValue().get("xPos");
-		return xPos.getValue();
+		return chunkRootTag.getCompound("Level").getInt("xPos", 0);
 	}
 	
 	public int getRegionLocalX() {
@@ -129,9 +133,7 @@ public class ChunkData {
 	}
 	
 	public int getZ() {
-		CompoundTag level = (CompoundTag) chunkRootTag.getValue().get("Level");
-		IntTag zPos = (IntTag) level.getValue().get("zPos");
-		return zPos.getValue();
+		return chunkRootTag.getCompound("Level").getInt("zPos", 0);
 	}
 	
 	public int getRegionLocalZ() {
@@ -143,70 +145,45 @@ public class ChunkData {
 		return this.sections.get(y);
 	}
 	
-	public void extractYLayerData(int y, Map<String, Integer> blockSizes, Map<String, OutputStream> combinedStreams) throws IOException {
-		SectionData section = getSection(y);
-		if (section != null) {
-			section.extractBlockData(blockSizes, combinedStreams);
-		}
+	// The chunk as stored in a region file: length, compression type and deflated NBT,
+	// padded to whole sectors
+	public byte[] generateChunkBlock() throws IOException {
+		return generateChunkBlock(ChunkCompressionProfile.DEFAULT);
 	}
 	
-	public void regenerateYLayerData(int y, Map<String, Integer> blockSizes, Map<String, InputStream> combinedStreams) throws IOException {
-		SectionData section = getSection(y);
-		if (section != null) {
-			section.regenerateBlockData(blockSizes, combinedStreams);
+	public byte[] generateChunkBlock(ChunkCompressionProfile profile) throws IOException {
+		BlockOutputStream bytesOut = new BlockOutputStream();
+		Deflater deflater = ZlibPool.takeDeflater(profile);
+		try {
+			DeflaterOutputStream deflateOut = new DeflaterOutputStream(bytesOut, deflater, DEFLATE_BUFFER_SIZE);
+			NBTWriter nbtOut = new NBTWriter(deflateOut);
+			nbtOut.writeRootCompound("", getChunkRootTag());
+			nbtOut.close();
+		} finally {
+			ZlibPool.returnDeflater(profile, deflater);
 		}
+		return bytesOut.toBlock();
 	}
 	
-	public Tag generateChunkTag() {
-		CompoundTag levelTag = (CompoundTag) chunkRootTag.getValue().get("Level");
-		Map<String, Tag> chunkFields = new HashMap<String, Tag>(levelTag.getValue());
-		Tag origSectionTag = chunkFields.remove("Sections");
-		
-		List<Tag> sections = new ArrayList<Tag>();
-		
-		for (int i = 0; i < 16; ++i) {
-			SectionData section = getSection(i);
-			if (section != null) {
-				sections.add(new CompoundTag(section.getTagName(), section.getTagFields()));
-			}
+	// Compresses straight into the block, after room for its header, so the block is
+	// only copied if its buffer isn't already a whole number of sectors
+	private static class BlockOutputStream extends ByteArrayOutputStream {
+		private static final int HEADER_LENGTH = 5;
+		
+		BlockOutputStream() {
+			// Most chunks deflate to a few sectors
+			super(4 * 4096);
+			count = HEADER_LENGTH;
 		}
 		
-		chunkFields.put("Sections", new ListTag(origSectionTag.getName(), CompoundTag.class, sections));
-		chunkFields.put("Last Modified", new IntTag("Last Modified", timestamp));
-		
-		levelTag = new CompoundTag(levelTag.getName(), chunkFields);
-		
-		Map<String, Tag> topFields = new HashMap<String, Tag>();
-		topFields.put("Level", levelTag);
-		topFields.put("Last Modified", new IntTag("Last Modified", timestamp));
-		return new CompoundTag(chunkRootTag.getName(), topFields);
-	}
-
-	public byte[] generateChunkBlock() throws IOException {
-		ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
-		DeflaterOutputStream deflateOut = new DeflaterOutputStream(bytesOut);
-		NBTOutputStream nbtOut = new NBTOutputStream(deflateOut, false);
-		nbtOut.writeTag(getChunkRootTag());
-		nbtOut.close();
-		deflateOut.close();
-		byte[] compressedData = bytesOut.toByteArray();
-		
-		// Prepend header
-		bytesOut = new ByteArrayOutputStream();
-		DataOutputStream dataOut = new DataOutputStream(bytesOut);
-		int sz = compressedData.length + 1;
-		
-		dataOut.writeInt(sz);
-		dataOut.writeByte(2);
-		dataOut.write(compressedData);
-		
-		int blockOverage = (sz + 4) % 4096;
-		if (blockOverage > 0) {
-			dataOut.write(new byte[4096 - blockOverage]);
+		byte[] toBlock() {
+			int padded = (count + 4095) / 4096 * 4096;
+			byte[] block = (buf.length == padded) ? buf : Arrays.copyOf(buf, padded);
+			ByteBuffer header = ByteBuffer.wrap(block);
+			header.putInt(0, count - 4);
+			header.put(4, (byte) 2);
+			return block;
 		}
-		
-		dataOut.close();
-		return bytesOut.toByteArray();
 	}
 
 	public int getRegionIndex() {
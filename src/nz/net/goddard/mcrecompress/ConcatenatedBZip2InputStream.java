@@ -0,0 +1,59 @@
+package nz.net.goddard.mcrecompress;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+
+import org.itadaki.bzip2.BZip2InputStream;
+
+
+// BZip2InputStream stops at the end of the first stream. Parallel compression writes
+// several streams back to back (as pbzip2 does), so keep decoding until the input ends.
+public class ConcatenatedBZip2InputStream extends InputStream {
+	private final PushbackInputStream input;
+	private BZip2InputStream current;
+	
+	public ConcatenatedBZip2InputStream(InputStream input) {
+		this.input = new PushbackInputStream(input);
+	}
+	
+	@Override
+	public int read() throws IOException {
+		byte[] single = new byte[1];
+		int count;
+		while ((count = read(single, 0, 1)) == 0) {
+		}
+		return (count < 0) ? -1 : (single[0] & 0xFF);
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (true) {
+			if (current == null && !nextStream()) {
+				return -1;
+			}
+			int count = current.read(b, off, len);
+			if (count >= 0) {
+				return count;
+			}
+			current = null;
+		}
+	}
+	
+	private boolean nextStream() throws IOException {
+		int next = input.read();
+		if (next < 0) {
+			return false;
+		}
+		input.unread(next);
+		current = new BZip2InputStream(input, false);
+		return true;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		input.close();
+	}
+}
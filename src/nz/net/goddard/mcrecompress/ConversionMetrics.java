@@ -0,0 +1,255 @@
+package nz.net.goddard.mcrecompress;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+
+// Process-wide timers and counters for each stage of a conversion: the RegionFile codec
+// operations, and the stages of a world pipeline. Each stage is registered as an MBean
+// under nz.net.goddard.mcrecompress:type=ConversionMetrics,stage=<name>, and a run's
+// totals can be written out as a JSON report.
+//
+// Allocation is only counted where the JVM can report it per thread, and only for the
+// thread that ran the stage, not work it handed to a pool.
+public class ConversionMetrics {
+	public static final String PARSE = "parse";
+	public static final String MAKE_ARCHIVE = "makeArchive";
+	public static final String WRITE_ARCHIVE = "writeArchive";
+	public static final String READ_ARCHIVE = "readArchive";
+	public static final String FROM_ARCHIVE = "fromArchive";
+	public static final String WRITE_REGION_FILE = "writeRegionFile";
+
+	private static final int COUNT = 0;
+	private static final int NANOS = 1;
+	private static final int WAIT_NANOS = 2;
+	private static final int BYTES_IN = 3;
+	private static final int BYTES_OUT = 4;
+	private static final int CHUNKS = 5;
+	private static final int SECTIONS = 6;
+	private static final int ALLOCATED = 7;
+	private static final int FIELDS = 8;
+
+	private static final Map<String, Stage> stages = new HashMap<String, Stage>();
+	private static final com.sun.management.ThreadMXBean allocationBean = allocationBean();
+
+	private ConversionMetrics() {
+	}
+
+	public interface StageMBean {
+		long getCount();
+		long getTotalMillis();
+		long getWaitMillis();
+		long getBytesIn();
+		long getBytesOut();
+		long getChunks();
+		long getSections();
+		long getAllocatedBytes();
+		double getCompressionRatio();
+	}
+
+	public static class Stage implements StageMBean {
+		private final long[] totals = new long[FIELDS];
+
+		synchronized void record(long nanos, long allocated, long bytesIn, long bytesOut, int chunks, int sections) {
+			totals[COUNT]++;
+			totals[NANOS] += nanos;
+			totals[ALLOCATED] += allocated;
+			totals[BYTES_IN] += bytesIn;
+			totals[BYTES_OUT] += bytesOut;
+			totals[CHUNKS] += chunks;
+			totals[SECTIONS] += sections;
+		}
+
+		// Time spent waiting for input or for room to pass work on
+		synchronized void recordWait(long nanos) {
+			totals[WAIT_NANOS] += nanos;
+		}
+
+		synchronized long[] values() {
+			return totals.clone();
+		}
+
+		@Override
+		public synchronized long getCount() {
+			return totals[COUNT];
+		}
+
+		@Override
+		public synchronized long getTotalMillis() {
+			return totals[NANOS] / 1000000;
+		}
+
+		@Override
+		public synchronized long getWaitMillis() {
+			return totals[WAIT_NANOS] / 1000000;
+		}
+
+		@Override
+		public synchronized long getBytesIn() {
+			return totals[BYTES_IN];
+		}
+
+		@Override
+		public synchronized long getBytesOut() {
+			return totals[BYTES_OUT];
+		}
+
+		@Override
+		public synchronized long getChunks() {
+			return totals[CHUNKS];
+		}
+
+		@Override
+		public synchronized long getSections() {
+			return totals[SECTIONS];
+		}
+
+		@Override
+		public synchronized long getAllocatedBytes() {
+			return totals[ALLOCATED];
+		}
+
+		@Override
+		public synchronized double getCompressionRatio() {
+			return ratio(totals);
+		}
+	}
+
+	public static class Timer {
+		private final Stage stage;
+		private final long startNanos;
+		private final long startAllocated;
+
+		private Timer(Stage stage) {
+			this.stage = stage;
+			this.startAllocated = allocatedBytes();
+			this.startNanos = System.nanoTime();
+		}
+
+		public void stop(long bytesIn, long bytesOut, int chunks, int sections) {
+			long nanos = System.nanoTime() - startNanos;
+			long allocated = (startAllocated < 0) ? 0 : allocatedBytes() - startAllocated;
+			stage.record(nanos, allocated, bytesIn, bytesOut, chunks, sections);
+		}
+	}
+
+	public static Timer start(String stage) {
+		return new Timer(stage(stage));
+	}
+
+	public static Stage stage(String name) {
+		synchronized (stages) {
+			Stage stage = stages.get(name);
+			if (stage == null) {
+				stage = new Stage();
+				stages.put(name, stage);
+				register(name, stage);
+			}
+			return stage;
+		}
+	}
+
+	private static void register(String name, Stage stage) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName("nz.net.goddard.mcrecompress:type=ConversionMetrics,stage=" + ObjectName.quote(name));
+			if (!server.isRegistered(objectName)) {
+				server.registerMBean(new StandardMBean(stage, StageMBean.class), objectName);
+			}
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static com.sun.management.ThreadMXBean allocationBean() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+			if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+				return bean;
+			}
+		}
+		return null;
+	}
+
+	// -1 where the JVM can't tell
+	private static long allocatedBytes() {
+		if (allocationBean == null) {
+			return -1;
+		}
+		return allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static double ratio(long[] totals) {
+		return (totals[BYTES_IN] == 0) ? 0 : (double) totals[BYTES_OUT] / totals[BYTES_IN];
+	}
+
+	// Totals of every stage so far, to report a single run against
+	public static Map<String, long[]> snapshot() {
+		Map<String, long[]> snapshot = new TreeMap<String, long[]>();
+		synchronized (stages) {
+			for (Map.Entry<String, Stage> entry : stages.entrySet()) {
+				snapshot.put(entry.getKey(), entry.getValue().values());
+			}
+		}
+		return snapshot;
+	}
+
+	// Writes what every stage did since the snapshot was taken
+	public static void writeReport(File file, String operation, long elapsedNanos, int regions, int failed, Map<String, long[]> since) throws IOException {
+		PrintWriter out = new PrintWriter(file, "UTF-8");
+		try {
+			out.println("{");
+			out.println("  \"operation\": \"" + operation + "\",");
+			out.println("  \"elapsedMillis\": " + elapsedNanos / 1000000 + ",");
+			out.println("  \"regions\": " + regions + ",");
+			out.println("  \"failedRegions\": " + failed + ",");
+			out.print("  \"stages\": {");
+
+			boolean first = true;
+			for (Map.Entry<String, long[]> entry : snapshot().entrySet()) {
+				long[] totals = entry.getValue();
+				long[] earlier = since.get(entry.getKey());
+				for (int i = 0; earlier != null && i < FIELDS; ++i) {
+					totals[i] -= earlier[i];
+				}
+				if (totals[COUNT] == 0 && totals[WAIT_NANOS] == 0) {
+					continue;
+				}
+
+				out.println(first ? "" : ",");
+				first = false;
+				out.print("    \"" + entry.getKey() + "\": {"
+						+ "\"count\": " + totals[COUNT]
+						+ ", \"millis\": " + totals[NANOS] / 1000000
+						+ ", \"waitMillis\": " + totals[WAIT_NANOS] / 1000000
+						+ ", \"bytesIn\": " + totals[BYTES_IN]
+						+ ", \"bytesOut\": " + totals[BYTES_OUT]
+						+ ", \"chunks\": " + totals[CHUNKS]
+						+ ", \"sections\": " + totals[SECTIONS]
+						+ ", \"allocatedBytes\": " + (allocationBean == null ? "null" : Long.toString(totals[ALLOCATED]))
+						+ ", \"compressionRatio\": " + (totals[BYTES_IN] == 0 || totals[BYTES_OUT] == 0 ? "null" : String.format(Locale.ROOT, "%.4f", ratio(totals)))
+						+ "}");
+			}
+			out.println();
+			out.println("  }");
+			out.println("}");
+		} finally {
+			out.close();
+		}
+		if (out.checkError()) {
+			throw new IOException("Failed to write metrics report " + file);
+		}
+	}
+}
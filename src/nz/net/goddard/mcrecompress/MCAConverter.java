@@ -1,106 +1,261 @@
 package nz.net.goddard.mcrecompress;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
 public class MCAConverter extends SimpleFileVisitor<Path> {
 	private Path directory;
-	private int threads;
-	private ExecutorService workers;
+	private int ioThreads = 1;
+	private int decodeThreads;
+	private int compressThreads;
+	private List<ConversionJob> jobs;
+	private int regionThreads = 1;
+	// Only exists while a run is in progress
+	private ForkJoinPool regionPool;
+	private File reportFile = null;
+	private MemoryBudget memoryBudget = MemoryBudget.forHeap();
 	private final ArchiveCompression compressionMode;
+	private ArchiveOptions archiveOptions = new ArchiveOptions();
+	private RepackManifest manifest = null;
+	private boolean seekable = false;
 	private final Logger logger;
 	
 	public MCAConverter(Path tempDir, int threads) {
 		this.directory = tempDir;
-		this.threads = threads;
+		this.decodeThreads = threads;
+		this.compressThreads = threads;
 		this.compressionMode = ArchiveCompression.BZIP2;
 		this.logger = Logger.getLogger("main");
 	}
 	
 	public MCAConverter(Path tempDir, int threads, ArchiveCompression compressionMode) {
 		this.directory = tempDir;
-		this.threads = threads;
+		this.decodeThreads = threads;
+		this.compressThreads = threads;
 		this.compressionMode = compressionMode;
 		this.logger = Logger.getLogger("main");
 	}
 
-	public synchronized void convertMCAFiles() throws IOException {
-		this.workers = Executors.newFixedThreadPool(threads);
+	// Threads used to decode the chunks of a single region and to compress its archive
+	public void setRegionParallelism(int regionThreads) {
+		this.regionThreads = regionThreads;
+	}
+
+	// Bytes of heap the regions being converted may take between them, from estimates of
+	// each region's working set. Defaults to three quarters of the heap.
+	public void setMemoryBudget(long bytes) {
+		this.memoryBudget = new MemoryBudget(bytes);
+	}
+
+	// Writes a JSON report of each run's stage timings and counters
+	public void setReportFile(File reportFile) {
+		this.reportFile = reportFile;
+	}
+
+	// Threads for each pipeline stage: reading and writing files, decoding regions, and
+	// building and compressing archives
+	public void setStageThreads(int ioThreads, int decodeThreads, int compressThreads) {
+		this.ioThreads = ioThreads;
+		this.decodeThreads = decodeThreads;
+		this.compressThreads = compressThreads;
+	}
+
+	public void setArchiveOptions(ArchiveOptions archiveOptions) {
+		this.archiveOptions = archiveOptions;
+	}
+
+	// Writes seekable .mrs archives instead of .mri files
+	public void setSeekable(boolean seekable) {
+		this.seekable = seekable;
+	}
+
+	// Skips regions whose chunks are unchanged since the manifest recorded them. The caller saves the manifest.
+	public void setManifest(RepackManifest manifest) {
+		this.manifest = manifest;
+	}
+
+	private String manifestKey(Path file) {
+		return directory.toAbsolutePath().normalize().relativize(file.toAbsolutePath().normalize()).toString();
+	}
+
+	// Returns the number of regions that failed, which are left as they were
+	public synchronized int convertMCAFiles() throws IOException {
 		logger.info("Packing MCAs");
+		jobs = new ArrayList<ConversionJob>();
 		Files.walkFileTree(directory, this);
-		workers.shutdown();
-		try {
-			workers.awaitTermination(5, TimeUnit.MINUTES);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
+		int failed = runPipeline(jobs);
+		jobs = null;
 		logger.info("Done packing MCAs");
+		return failed;
 	}
 	
-	public synchronized void convertSingleMCA(Path file) throws IOException {
-		new ConversionTask(file, false).run();
+	public synchronized int convertSingleMCA(Path file) throws IOException {
+		return runPipeline(Collections.singletonList(new ConversionJob(file, false)));
 	}
 
     @Override
     public FileVisitResult visitFile(Path file,
-            BasicFileAttributes attrs) {
+            BasicFileAttributes attrs) throws IOException {
         if (file.toString().endsWith(".mca")) {
-        	workers.execute(new ConversionTask(file, true));
+        	// Incremental runs keep the regions to compare against next time
+        	jobs.add(new ConversionJob(file, manifest == null));
         }
         return FileVisitResult.CONTINUE;
     }
     
-    private class ConversionTask implements Runnable {
-
-    	private Path file;
-    	private boolean delete;
+    private void commitSectionStore() throws IOException {
+    	if (archiveOptions.getSectionStore() != null) {
+    		archiveOptions.getSectionStore().commit();
+    	}
+    }
+    
+    private void closeRegionPool() {
+    	if (regionPool != null) {
+    		regionPool.shutdown();
+    		regionPool = null;
+    	}
+    }
+    
+    // Returns once every region is written, since a shared section store is closed straight after
+    private int runPipeline(List<ConversionJob> regions) throws IOException {
+    	RegionPipeline<ConversionJob> pipeline = new RegionPipeline<ConversionJob>(logger, "pack");
+    	pipeline.addStage("read", ioThreads, new RegionPipeline.Stage<ConversionJob>() {
+    		@Override
+    		public void process(ConversionJob job) throws IOException {
+    			job.read();
+    		}
+    	});
+    	pipeline.addStage("decode", decodeThreads, new RegionPipeline.Stage<ConversionJob>() {
+    		@Override
+    		public void process(ConversionJob job) throws IOException {
+    			job.decode();
+    		}
+    	});
+    	pipeline.addStage("compress", compressThreads, new RegionPipeline.Stage<ConversionJob>() {
+    		@Override
+    		public void process(ConversionJob job) throws IOException {
+    			job.compress();
+    		}
+    	});
+    	pipeline.addStage("write", ioThreads, new RegionPipeline.Stage<ConversionJob>() {
+    		@Override
+    		public void process(ConversionJob job) throws IOException {
+    			job.write();
+    		}
+    	});
+    	
+    	pipeline.setMemoryBudget(memoryBudget);
+    	Map<String, long[]> metricsBefore = ConversionMetrics.snapshot();
+    	long start = System.nanoTime();
+    	int failed;
+    	regionPool = RegionFile.newChunkPool(regionThreads);
+    	try {
+    		failed = pipeline.run(regions);
+    	} catch (InterruptedException e) {
+    		throw new IOException("Interrupted while packing regions", e);
+    	} finally {
+    		ZlibPool.endAll();
+    		closeRegionPool();
+    	}
+    	if (reportFile != null) {
+    		ConversionMetrics.writeReport(reportFile, "pack", System.nanoTime() - start, regions.size(), failed, metricsBefore);
+    	}
+    	return failed;
+    }
+    
+    private class ConversionJob extends RegionPipeline.Job {
+    	private final boolean delete;
+    	private final Path newPath;
+    	private ByteBuffer fileData;
+    	private RepackManifest.RegionSummary summary = null;
+    	private RegionFile region;
+    	private byte[] archive;
 
-		public ConversionTask(Path file, boolean delete) {
-    		this.file = file;
+		public ConversionJob(Path file, boolean delete) throws IOException {
+			super(file);
     		this.delete = delete;
+    		this.workingSet = MemoryBudget.estimateRegion(file, size);
+    		
+        	String newFileName;
+        	if (seekable) {
+        		newFileName = file.getFileName().toString().replace(".mca", ".mrs");
+        	} else if (compressionMode == ArchiveCompression.BZIP2) {
+        		newFileName = file.getFileName().toString().replace(".mca", ".mri.bz2");
+        	} else if (compressionMode == ArchiveCompression.GZIP) {
+        		newFileName = file.getFileName().toString().replace(".mca", ".mri.gz");
+        	} else {
+        		newFileName = file.getFileName().toString().replace(".mca", ".mri");
+        	}
+        	this.newPath = file.resolveSibling(newFileName);
     	}
-    	
-		@Override
-		public void run() {
-			try {
+		
+		// Mapped and paged in here, so disk waits stay out of the decode stage without
+		// copying the region onto the heap
+		void read() throws IOException {
+			fileData = RegionFile.loadMapped(file);
+			if (manifest == null) {
 				logger.log(Level.INFO, "Compressing " + file.toString());
-				
-	        	byte[] fileData = Files.readAllBytes(file);
-	        	RegionFile region = RegionFile.parse(fileData);
-	        	
-	        	File tempFile = File.createTempFile("conversion", ".mri.t", file.toAbsolutePath().getParent().toFile());
-	        	
-	        	String newFileName;
-	        	if (compressionMode == ArchiveCompression.BZIP2) {
-	        		newFileName = file.getFileName().toString().replace(".mca", ".mri.bz2");
-	        	} else if (compressionMode == ArchiveCompression.GZIP) {
-	        		newFileName = file.getFileName().toString().replace(".mca", ".mri.gz");
-	        	} else {
-	        		newFileName = file.getFileName().toString().replace(".mca", ".mri");
-	        	}
-	        	region.writeArchive(tempFile, compressionMode);
-	        	
-	        	Path newPath = file.resolveSibling(newFileName);
-	        	
-	        	Files.deleteIfExists(newPath);
-	        	Files.move(tempFile.toPath(), newPath);
-	        	
-	        	if (delete)
-	        		Files.delete(file);
-			} catch (IOException e) {
-				logger.log(Level.SEVERE, e.toString());
+				return;
 			}
+			
+			// The summary comes from the chunk headers and stored bytes, so an unchanged region is never decoded
+			summary = RepackManifest.RegionSummary.summarise(fileData);
+			int changed = summary.countChangedChunks(manifest.getPacked(manifestKey(file), newPath.toFile()));
+			if (changed == 0) {
+				logger.log(Level.INFO, "Unchanged since last packed " + file.toString());
+				fileData = null;
+				finished = true;
+				return;
+			}
+			logger.log(Level.INFO, "Compressing " + file.toString() + " (" + changed + " chunk slots changed)");
+		}
+		
+		void decode() throws IOException {
+			region = RegionFile.parse(fileData, regionPool, file);
+			fileData = null;
+		}
+		
+		void compress() throws IOException {
+			ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+			if (seekable) {
+				SeekableArchive.write(region, bytesOut, compressionMode, archiveOptions, regionPool);
+			} else {
+				region.writeArchive(bytesOut, compressionMode, regionPool, archiveOptions);
+			}
+			archive = bytesOut.toByteArray();
+			region = null;
+		}
+		
+		void write() throws IOException {
+        	File tempFile = File.createTempFile("conversion", ".mri.t", file.toAbsolutePath().getParent().toFile());
+        	Files.write(tempFile.toPath(), archive);
+        	archive = null;
+        	
+        	Files.deleteIfExists(newPath);
+        	Files.move(tempFile.toPath(), newPath);
+        	
+        	if (summary != null) {
+        		manifest.setPacked(manifestKey(file), newPath.toFile(), summary);
+        	}
+        	
+        	// The archive may refer to sections only held in memory until the store commits
+        	commitSectionStore();
+        	if (delete)
+        		RegionFile.deleteRegionFile(file);
 		}
-    	
     }
 }
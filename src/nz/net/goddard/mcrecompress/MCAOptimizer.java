@@ -0,0 +1,256 @@
+package nz.net.goddard.mcrecompress;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+// Rewrites .mca files in place, for worlds that have to stay live: chunks are packed
+// contiguously in slot order, recompressed with the chosen profile, and the sectors left
+// behind by chunks the game has moved or dropped are trimmed. .mcc files for the
+// region's chunks that the new file doesn't refer to are deleted. A region that fails to
+// decode is left as it was.
+//
+// The new region and its .mcc files are written under temporary names, then moved into
+// place in an order that keeps the old region readable until the new one replaces it:
+// first the .mcc files no file exists for yet, then the region, and only then the .mcc
+// files replacing ones the old region may refer to. If the region can't be moved, the
+// old one is left with its old .mcc files. After a crash or failure in the last step, the
+// new region may meet an old .mcc file, which holds the same chunk, so it is only misread
+// if the old region stored that chunk with a different compression type.
+public class MCAOptimizer extends SimpleFileVisitor<Path> {
+	private static final Pattern externalName = Pattern.compile("c\\.(-?\\d+)\\.(-?\\d+)\\.mcc");
+
+	private Path directory;
+	private int ioThreads = 1;
+	private int decodeThreads;
+	private int encodeThreads;
+	private List<OptimizeJob> jobs;
+	private int regionThreads = 1;
+	// Only exists while a run is in progress
+	private ForkJoinPool regionPool;
+	private File reportFile = null;
+	private MemoryBudget memoryBudget = MemoryBudget.forHeap();
+	private ChunkCompressionProfile chunkCompression = ChunkCompressionProfile.DEFAULT;
+	private final AtomicLong bytesBefore = new AtomicLong();
+	private final AtomicLong bytesAfter = new AtomicLong();
+	private final Logger logger;
+
+	public MCAOptimizer(Path tempDir, int threads) {
+		this.directory = tempDir;
+		this.decodeThreads = threads;
+		this.encodeThreads = threads;
+		this.logger = Logger.getLogger("main");
+	}
+
+	// Threads used to decode and encode the chunks of a single region
+	public void setRegionParallelism(int regionThreads) {
+		this.regionThreads = regionThreads;
+	}
+
+	public void setStageThreads(int ioThreads, int decodeThreads, int encodeThreads) {
+		this.ioThreads = ioThreads;
+		this.decodeThreads = decodeThreads;
+		this.encodeThreads = encodeThreads;
+	}
+
+	public void setMemoryBudget(long bytes) {
+		this.memoryBudget = new MemoryBudget(bytes);
+	}
+
+	public void setReportFile(File reportFile) {
+		this.reportFile = reportFile;
+	}
+
+	public void setChunkCompression(ChunkCompressionProfile chunkCompression) {
+		this.chunkCompression = chunkCompression;
+	}
+
+	// Total sizes of the region files optimized so far, before and after
+	public long getBytesBefore() {
+		return bytesBefore.get();
+	}
+
+	public long getBytesAfter() {
+		return bytesAfter.get();
+	}
+
+	// Returns the number of regions that failed, which are left as they were
+	public synchronized int optimizeMCAFiles() throws IOException {
+		logger.info("Optimizing MCAs");
+		jobs = new ArrayList<OptimizeJob>();
+		Files.walkFileTree(directory, this);
+		int failed = runPipeline(jobs);
+		jobs = null;
+		logger.info("Done optimizing MCAs, " + bytesBefore.get() + " bytes down to " + bytesAfter.get());
+		return failed;
+	}
+
+	public synchronized int optimizeSingleMCA(Path file) throws IOException {
+		return runPipeline(Collections.singletonList(new OptimizeJob(file)));
+	}
+
+    @Override
+    public FileVisitResult visitFile(Path file,
+            BasicFileAttributes attrs) throws IOException {
+        if (file.toString().endsWith(".mca")) {
+        	jobs.add(new OptimizeJob(file));
+        }
+        return FileVisitResult.CONTINUE;
+    }
+
+    private void closeRegionPool() {
+    	if (regionPool != null) {
+    		regionPool.shutdown();
+    		regionPool = null;
+    	}
+    }
+
+    private int runPipeline(List<OptimizeJob> regions) throws IOException {
+    	RegionPipeline<OptimizeJob> pipeline = new RegionPipeline<OptimizeJob>(logger, "optimize");
+    	pipeline.addStage("read", ioThreads, new RegionPipeline.Stage<OptimizeJob>() {
+    		@Override
+    		public void process(OptimizeJob job) throws IOException {
+    			job.read();
+    		}
+    	});
+    	pipeline.addStage("decode", decodeThreads, new RegionPipeline.Stage<OptimizeJob>() {
+    		@Override
+    		public void process(OptimizeJob job) throws IOException {
+    			job.decode();
+    		}
+    	});
+    	pipeline.addStage("encode", encodeThreads, new RegionPipeline.Stage<OptimizeJob>() {
+    		@Override
+    		public void process(OptimizeJob job) throws IOException {
+    			job.encode();
+    		}
+    	});
+    	pipeline.addStage("write", ioThreads, new RegionPipeline.Stage<OptimizeJob>() {
+    		@Override
+    		public void process(OptimizeJob job) throws IOException {
+    			job.write();
+    		}
+    	});
+
+    	pipeline.setMemoryBudget(memoryBudget);
+    	Map<String, long[]> metricsBefore = ConversionMetrics.snapshot();
+    	long start = System.nanoTime();
+    	int failed;
+    	regionPool = RegionFile.newChunkPool(regionThreads);
+    	try {
+    		failed = pipeline.run(regions);
+    	} catch (InterruptedException e) {
+    		throw new IOException("Interrupted while optimizing regions", e);
+    	} finally {
+    		ZlibPool.endAll();
+    		closeRegionPool();
+    	}
+    	if (reportFile != null) {
+    		ConversionMetrics.writeReport(reportFile, "optimize", System.nanoTime() - start, regions.size(), failed, metricsBefore);
+    	}
+    	return failed;
+    }
+
+    private class OptimizeJob extends RegionPipeline.Job {
+    	private ByteBuffer fileData;
+    	private RegionFile region;
+    	private Path tempFile;
+    	private RegionFileWriter writer;
+
+		public OptimizeJob(Path file) throws IOException {
+			super(file);
+			this.workingSet = MemoryBudget.estimateRegion(file, size);
+		}
+
+		void read() throws IOException {
+			logger.info("Optimizing " + file.toString());
+			fileData = RegionFile.loadMapped(file);
+		}
+
+		// External chunks are read here, before the encode stage may replace them
+		void decode() throws IOException {
+			region = RegionFile.parse(fileData, regionPool, file);
+			fileData = null;
+		}
+
+		// Written straight onto a temporary file, with oversized chunks on temporary .mcc files,
+		// so nothing the old region refers to changes until the write stage
+		void encode() throws IOException {
+			Path parent = file.toAbsolutePath().getParent();
+			tempFile = File.createTempFile("optimize", ".mca.t", parent.toFile()).toPath();
+			region.setChunkCompression(chunkCompression);
+			try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+				writer = region.writeRegionFile(channel, regionPool, parent);
+			} catch (IOException | RuntimeException e) {
+				Files.deleteIfExists(tempFile);
+				throw e;
+			}
+			region = null;
+		}
+
+		// In the order described above
+		void write() throws IOException {
+			long newSize = Files.size(tempFile);
+			try {
+				writer.commitNewExternals();
+				Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				writer.discardExternals();
+				Files.deleteIfExists(tempFile);
+				throw e;
+			}
+			try {
+				writer.commitExternals();
+			} catch (IOException e) {
+				writer.discardExternals();
+				throw e;
+			}
+			bytesBefore.addAndGet(size);
+			bytesAfter.addAndGet(newSize);
+
+			int[] coordinates = RegionFile.regionCoordinates(file);
+			if (coordinates != null) {
+				removeStaleExternals(file.toAbsolutePath().getParent(), coordinates, writer.getExternalChunks());
+			}
+			writer = null;
+		}
+
+		private void removeStaleExternals(Path parent, int[] coordinates, Set<List<Integer>> kept) throws IOException {
+			try (DirectoryStream<Path> externals = Files.newDirectoryStream(parent, "c.*.mcc")) {
+				for (Path external : externals) {
+					Matcher matcher = externalName.matcher(external.getFileName().toString());
+					if (!matcher.matches()) {
+						continue;
+					}
+					int chunkX = Integer.parseInt(matcher.group(1));
+					int chunkZ = Integer.parseInt(matcher.group(2));
+					if ((chunkX >> 5) == coordinates[0] && (chunkZ >> 5) == coordinates[1]
+							&& !kept.contains(Arrays.asList(chunkX, chunkZ))) {
+						logger.info("Removing stale " + external);
+						Files.delete(external);
+					}
+				}
+			}
+		}
+    }
+}
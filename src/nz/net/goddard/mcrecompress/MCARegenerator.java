@@ -1,99 +1,243 @@
 package nz.net.goddard.mcrecompress;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Logger;
 
 
 public class MCARegenerator extends SimpleFileVisitor<Path> {
 	private Path directory;
-	private int threads;
-	private ExecutorService workers;
+	private int ioThreads = 1;
+	private int decodeThreads;
+	private int encodeThreads;
+	private List<ConversionJob> jobs;
+	private int regionThreads = 1;
+	// Only exist while a run is in progress
+	private ForkJoinPool regionPool;
+	private ForkJoinPool decodePool;
+	private File reportFile = null;
+	private MemoryBudget memoryBudget = MemoryBudget.forHeap();
+	private SectionStore sectionStore;
+	private ChunkCompressionProfile chunkCompression = ChunkCompressionProfile.DEFAULT;
 	private Logger logger;
 	
 	public MCARegenerator(Path tempDir, int threads) {
 		this.directory = tempDir;
-		this.threads = threads;
+		this.decodeThreads = threads;
+		this.encodeThreads = threads;
 		this.logger = Logger.getLogger("main");
 	}
 
-	public synchronized void regenerateMCAFiles() throws IOException {
-		this.workers = Executors.newFixedThreadPool(threads);
+	// Threads used to decompress a single archive and encode its chunks
+	public void setRegionParallelism(int regionThreads) {
+		this.regionThreads = regionThreads;
+	}
+
+	// Bytes of heap the archives being restored may take between them, estimated from their
+	// sizes. Defaults to three quarters of the heap.
+	public void setMemoryBudget(long bytes) {
+		this.memoryBudget = new MemoryBudget(bytes);
+	}
+
+	// Writes a JSON report of each run's stage timings and counters
+	public void setReportFile(File reportFile) {
+		this.reportFile = reportFile;
+	}
+
+	// Threads for each pipeline stage: reading and writing files, decompressing archives,
+	// and encoding the .mca files
+	public void setStageThreads(int ioThreads, int decodeThreads, int encodeThreads) {
+		this.ioThreads = ioThreads;
+		this.decodeThreads = decodeThreads;
+		this.encodeThreads = encodeThreads;
+	}
+
+	// Store holding the sections of archives packed with one
+	public void setSectionStore(SectionStore sectionStore) {
+		this.sectionStore = sectionStore;
+	}
+
+	// FAST restores sooner, MAX writes smaller region files
+	public void setChunkCompression(ChunkCompressionProfile chunkCompression) {
+		this.chunkCompression = chunkCompression;
+	}
+
+	// Returns the number of regions that failed, which are left as they were
+	public synchronized int regenerateMCAFiles() throws IOException {
 		logger.info("Regenerating MCAs");
+		jobs = new ArrayList<ConversionJob>();
 		Files.walkFileTree(directory, this);
-		workers.shutdown();
-		try {
-			workers.awaitTermination(5, TimeUnit.MINUTES);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
+		int failed = runPipeline(jobs);
+		jobs = null;
 		logger.info("Finished regenerating MCAs");
+		return failed;
 	}
 	
-	public synchronized void regenerateSingleMCA(Path file) throws IOException {
-		new ConversionTask(file, false).run();
+	public synchronized int regenerateSingleMCA(Path file) throws IOException {
+		return runPipeline(Collections.singletonList(new ConversionJob(file, false)));
 	}
 	
-	static final String[] matchExtensions = {".mri", ".mri.gz", ".mri.bz2"};
+	static final String[] matchExtensions = {".mri", ".mri.gz", ".mri.bz2", ".mrs"};
 
     @Override
     public FileVisitResult visitFile(Path file,
-            BasicFileAttributes attrs) {
+            BasicFileAttributes attrs) throws IOException {
     	for (String extension : matchExtensions) {
 	        if (file.toString().endsWith(extension)) {
-	        	workers.execute(new ConversionTask(file, true));
+	        	jobs.add(new ConversionJob(file, true));
 	        }
     	}
         return FileVisitResult.CONTINUE;
     }
     
-    private class ConversionTask implements Runnable {
-
-    	private Path file;
-    	private boolean delete;
+    private void closePools() {
+    	if (regionPool != null) {
+    		regionPool.shutdown();
+    		regionPool = null;
+    	}
+    	if (decodePool != null) {
+    		decodePool.shutdown();
+    		decodePool = null;
+    	}
+    }
+    
+    // Returns once every region is written, since a shared section store is closed straight after
+    private int runPipeline(List<ConversionJob> regions) throws IOException {
+    	RegionPipeline<ConversionJob> pipeline = new RegionPipeline<ConversionJob>(logger, "unpack");
+    	pipeline.addStage("read", ioThreads, new RegionPipeline.Stage<ConversionJob>() {
+    		@Override
+    		public void process(ConversionJob job) throws IOException {
+    			job.read();
+    		}
+    	});
+    	pipeline.addStage("decode", decodeThreads, new RegionPipeline.Stage<ConversionJob>() {
+    		@Override
+    		public void process(ConversionJob job) throws IOException {
+    			job.decode();
+    		}
+    	});
+    	pipeline.addStage("encode", encodeThreads, new RegionPipeline.Stage<ConversionJob>() {
+    		@Override
+    		public void process(ConversionJob job) throws IOException {
+    			job.encode();
+    		}
+    	});
+    	pipeline.addStage("write", ioThreads, new RegionPipeline.Stage<ConversionJob>() {
+    		@Override
+    		public void process(ConversionJob job) throws IOException {
+    			job.write();
+    		}
+    	});
+    	
+    	pipeline.setMemoryBudget(memoryBudget);
+    	Map<String, long[]> metricsBefore = ConversionMetrics.snapshot();
+    	long start = System.nanoTime();
+    	int failed;
+    	regionPool = RegionFile.newChunkPool(regionThreads);
+    	decodePool = RegionFile.newDecodePool();
+    	try {
+    		failed = pipeline.run(regions);
+    	} catch (InterruptedException e) {
+    		throw new IOException("Interrupted while unpacking regions", e);
+    	} finally {
+    		ZlibPool.endAll();
+    		closePools();
+    	}
+    	if (reportFile != null) {
+    		ConversionMetrics.writeReport(reportFile, "unpack", System.nanoTime() - start, regions.size(), failed, metricsBefore);
+    	}
+    	return failed;
+    }
+    
+    private class ConversionJob extends RegionPipeline.Job {
+    	private final boolean delete;
+    	private final boolean seekable;
+    	private ByteBuffer fileData;
+    	private RegionFile region;
+    	private Path tempFile;
+    	private RegionFileWriter writer;
 
-		public ConversionTask(Path file, boolean delete) {
-    		this.file = file;
+		public ConversionJob(Path file, boolean delete) throws IOException {
+			super(file);
     		this.delete = delete;
+    		this.workingSet = MemoryBudget.estimateArchive(size);
+    		this.seekable = file.toString().endsWith(".mrs");
     	}
-    	
-		@Override
-		public void run() {
+		
+		// Seekable archives are read frame by frame in the decode stage instead
+		void read() throws IOException {
+			logger.info("Unpacking " + file.toString());
+			if (!seekable) {
+				fileData = RegionFile.loadMapped(file);
+			}
+		}
+		
+		void decode() throws IOException {
+        	if (seekable) {
+        		try (SeekableArchive archive = SeekableArchive.open(file.toFile(), sectionStore)) {
+        			region = archive.readRegion();
+        		}
+        	} else {
+        		region = RegionFile.readArchive(fileData, RegionFile.deduceCompression(file.toFile()), decodePool, sectionStore);
+        		fileData = null;
+        	}
+		}
+		
+		// Includes relighting regions packed without their lighting. The region is written
+		// straight onto a temporary file, a batch of chunks at a time, and any chunks too
+		// large for it onto temporary .mcc files.
+		void encode() throws IOException {
+			Path parent = file.toAbsolutePath().getParent();
+			tempFile = File.createTempFile("conversion", ".mca.t", parent.toFile()).toPath();
+			region.setChunkCompression(chunkCompression);
+			try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+				writer = region.writeRegionFile(channel, regionPool, parent);
+			} catch (IOException | RuntimeException e) {
+				Files.deleteIfExists(tempFile);
+				throw e;
+			}
+			region = null;
+		}
+		
+		// The .mcc files go into place first, so the new region never refers to missing ones
+		void write() throws IOException {
 			try {
-				logger.info("Unpacking " + file.toString());
-				
-	        	RegionFile region = RegionFile.readArchive(file.toFile());
-	        	
-	        	File tempFile = File.createTempFile("conversion", ".mca.t", file.toAbsolutePath().getParent().toFile());
-	        	region.writeRegionFile(tempFile);
-	        	
-	        	String oldFileName = file.getFileName().toString();
-	        	String newFileName = oldFileName + ".out";
-	        	for (String extension : matchExtensions) {
-	        		if (oldFileName.endsWith(extension)) {
-	        			newFileName = oldFileName.replace(extension, ".mca");
-	        			break;
-	        		}
-	        	}
-	        	
-	        	Path newPath = file.resolveSibling(newFileName);
-	        	
-	        	Files.deleteIfExists(newPath);
-	        	Files.move(tempFile.toPath(), newPath);
-
-	        	if (delete)
-	        		Files.delete(file);
+				writer.commitExternals();
 			} catch (IOException e) {
-				e.printStackTrace();
+				writer.discardExternals();
+				Files.deleteIfExists(tempFile);
+				throw e;
 			}
+			writer = null;
+			
+        	String oldFileName = file.getFileName().toString();
+        	String newFileName = oldFileName + ".out";
+        	for (String extension : matchExtensions) {
+        		if (oldFileName.endsWith(extension)) {
+        			newFileName = oldFileName.replace(extension, ".mca");
+        			break;
+        		}
+        	}
+        	
+        	Path newPath = file.resolveSibling(newFileName);
+        	
+        	Files.deleteIfExists(newPath);
+        	Files.move(tempFile, newPath);
+
+        	if (delete)
+        		Files.delete(file);
 		}
-    	
     }
 }
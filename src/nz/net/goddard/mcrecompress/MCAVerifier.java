@@ -0,0 +1,221 @@
+package nz.net.goddard.mcrecompress;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+
+// Checks archives against the checksums they were packed with (--checksums), decoding each
+// region in memory as a restore would, but without relighting it or encoding and writing
+// .mca files. Archives packed without checksums are counted as unchecked.
+public class MCAVerifier extends SimpleFileVisitor<Path> {
+	private Path directory;
+	private int ioThreads = 1;
+	private int decodeThreads;
+	private List<VerifyJob> jobs;
+	private int regionThreads = 1;
+	// Only exist while a run is in progress
+	private ForkJoinPool regionPool;
+	private ForkJoinPool decodePool;
+	private File reportFile = null;
+	private MemoryBudget memoryBudget = MemoryBudget.forHeap();
+	private SectionStore sectionStore;
+	private final AtomicInteger verified = new AtomicInteger();
+	private final AtomicInteger mismatched = new AtomicInteger();
+	private final AtomicInteger unchecked = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final Logger logger;
+
+	public MCAVerifier(Path tempDir, int threads) {
+		this.directory = tempDir;
+		this.decodeThreads = threads;
+		this.logger = Logger.getLogger("main");
+	}
+
+	// Threads used to decompress a single archive and checksum its chunks
+	public void setRegionParallelism(int regionThreads) {
+		this.regionThreads = regionThreads;
+	}
+
+	// Decoding and checking share the decode threads, as neither writes anything
+	public void setStageThreads(int ioThreads, int decodeThreads) {
+		this.ioThreads = ioThreads;
+		this.decodeThreads = decodeThreads;
+	}
+
+	public void setMemoryBudget(long bytes) {
+		this.memoryBudget = new MemoryBudget(bytes);
+	}
+
+	public void setReportFile(File reportFile) {
+		this.reportFile = reportFile;
+	}
+
+	public void setSectionStore(SectionStore sectionStore) {
+		this.sectionStore = sectionStore;
+	}
+
+	public int getRegionsVerified() {
+		return verified.get();
+	}
+
+	public int getRegionsMismatched() {
+		return mismatched.get();
+	}
+
+	public int getRegionsUnchecked() {
+		return unchecked.get();
+	}
+
+	public int getRegionsFailed() {
+		return failed.get();
+	}
+
+	// True if every region was read back and matched its checksums
+	public boolean isPassed() {
+		return mismatched.get() == 0 && unchecked.get() == 0 && failed.get() == 0;
+	}
+
+	public synchronized boolean verifyArchives() throws IOException {
+		logger.info("Verifying archives");
+		jobs = new ArrayList<VerifyJob>();
+		Files.walkFileTree(directory, this);
+		runPipeline(jobs);
+		jobs = null;
+		logger.info("Done verifying archives, " + verified.get() + " regions matched");
+		return isPassed();
+	}
+
+	public synchronized boolean verifySingleArchive(Path file) throws IOException {
+		runPipeline(Collections.singletonList(new VerifyJob(file)));
+		return isPassed();
+	}
+
+    @Override
+    public FileVisitResult visitFile(Path file,
+            BasicFileAttributes attrs) throws IOException {
+    	for (String extension : MCARegenerator.matchExtensions) {
+	        if (file.toString().endsWith(extension)) {
+	        	jobs.add(new VerifyJob(file));
+	        }
+    	}
+        return FileVisitResult.CONTINUE;
+    }
+
+    private void closePools() {
+    	if (regionPool != null) {
+    		regionPool.shutdown();
+    		regionPool = null;
+    	}
+    	if (decodePool != null) {
+    		decodePool.shutdown();
+    		decodePool = null;
+    	}
+    }
+
+    private void runPipeline(List<VerifyJob> regions) throws IOException {
+    	RegionPipeline<VerifyJob> pipeline = new RegionPipeline<VerifyJob>(logger, "verify");
+    	pipeline.addStage("read", ioThreads, new RegionPipeline.Stage<VerifyJob>() {
+    		@Override
+    		public void process(VerifyJob job) throws IOException {
+    			job.read();
+    		}
+    	});
+    	pipeline.addStage("decode", decodeThreads, new RegionPipeline.Stage<VerifyJob>() {
+    		@Override
+    		public void process(VerifyJob job) throws IOException {
+    			job.decode();
+    		}
+    	});
+    	pipeline.addStage("check", decodeThreads, new RegionPipeline.Stage<VerifyJob>() {
+    		@Override
+    		public void process(VerifyJob job) throws IOException {
+    			job.check();
+    		}
+    	});
+
+    	pipeline.setMemoryBudget(memoryBudget);
+    	Map<String, long[]> metricsBefore = ConversionMetrics.snapshot();
+    	long start = System.nanoTime();
+    	int failedRegions;
+    	regionPool = RegionFile.newChunkPool(regionThreads);
+    	decodePool = RegionFile.newDecodePool();
+    	try {
+    		failedRegions = pipeline.run(regions);
+    	} catch (InterruptedException e) {
+    		throw new IOException("Interrupted while verifying regions", e);
+    	} finally {
+    		ZlibPool.endAll();
+    		closePools();
+    	}
+    	failed.addAndGet(failedRegions);
+    	if (reportFile != null) {
+    		ConversionMetrics.writeReport(reportFile, "verify", System.nanoTime() - start, regions.size(), failedRegions, metricsBefore);
+    	}
+    }
+
+    private void check(String name, RegionFile region) throws IOException {
+    	RegionChecksums expected = region.getStoredChecksums();
+    	if (expected == null) {
+    		logger.warning(name + " has no checksums to verify against");
+    		unchecked.incrementAndGet();
+    		return;
+    	}
+
+    	List<String> mismatches = expected.compare(RegionChecksums.compute(region, expected.includesLighting(), regionPool));
+    	if (mismatches.isEmpty()) {
+    		verified.incrementAndGet();
+    		return;
+    	}
+    	for (String mismatch : mismatches) {
+    		logger.severe(name + ": " + mismatch);
+    	}
+    	mismatched.incrementAndGet();
+    }
+
+    private class VerifyJob extends RegionPipeline.Job {
+    	private final boolean seekable;
+    	private ByteBuffer fileData;
+    	private RegionFile region;
+
+		public VerifyJob(Path file) throws IOException {
+			super(file);
+			this.workingSet = MemoryBudget.estimateArchive(size);
+			this.seekable = file.toString().endsWith(".mrs");
+		}
+
+		void read() throws IOException {
+			logger.info("Verifying " + file.toString());
+			if (!seekable) {
+				fileData = RegionFile.loadMapped(file);
+			}
+		}
+
+		void decode() throws IOException {
+			if (seekable) {
+				try (SeekableArchive archive = SeekableArchive.open(file.toFile(), sectionStore)) {
+					region = archive.readRegion();
+				}
+			} else {
+				region = RegionFile.readArchive(fileData, RegionFile.deduceCompression(file.toFile()), decodePool, sectionStore);
+				fileData = null;
+			}
+		}
+
+		void check() throws IOException {
+			MCAVerifier.this.check(file.toString(), region);
+			region = null;
+		}
+    }
+}
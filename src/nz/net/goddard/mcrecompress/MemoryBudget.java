@@ -0,0 +1,88 @@
+package nz.net.goddard.mcrecompress;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+
+// Limits how much region data is held at once. Each region is admitted with an estimate of
+// its working set, and waits while the regions already admitted would take the total over
+// the budget, or while the heap itself has too little room left for it. One region is
+// always admitted, however large, so a region bigger than the budget is still converted,
+// just on its own.
+class MemoryBudget {
+	// A dense generated region holds around 45KB a chunk once decoded, and peaks at about
+	// twice that while its columns and archive are built
+	static final long BYTES_PER_CHUNK = 96 * 1024;
+	// Archives hold around a kilobyte per chunk, and fewer for simple terrain
+	private static final long ARCHIVE_BYTES_PER_CHUNK = 1024;
+	// How often a waiting region looks at the heap again, since garbage is freed without notice
+	private static final long RECHECK_MILLIS = 100;
+
+	private final long capacity;
+	private long used = 0;
+	private int admitted = 0;
+
+	MemoryBudget(long capacity) {
+		this.capacity = capacity;
+	}
+
+	// Three quarters of the heap, leaving the rest for the section store, caches and garbage
+	static MemoryBudget forHeap() {
+		return new MemoryBudget(Runtime.getRuntime().maxMemory() / 4 * 3);
+	}
+
+	long getCapacity() {
+		return capacity;
+	}
+
+	synchronized long getUsed() {
+		return used;
+	}
+
+	synchronized void acquire(long bytes) throws InterruptedException {
+		while (admitted > 0 && (used + bytes > capacity || bytes > heapHeadroom())) {
+			wait(RECHECK_MILLIS);
+		}
+		used += bytes;
+		admitted++;
+	}
+
+	synchronized void release(long bytes) {
+		used -= bytes;
+		admitted--;
+		notifyAll();
+	}
+
+	private static long heapHeadroom() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+	}
+
+	// The raw file, plus everything built from its chunks
+	static long estimateRegion(Path file, long size) throws IOException {
+		return size + countMCAChunks(file) * BYTES_PER_CHUNK;
+	}
+
+	// Only the file size is known before an archive is decompressed
+	static long estimateArchive(long size) {
+		long chunks = Math.max(1, Math.min(1024, size / ARCHIVE_BYTES_PER_CHUNK));
+		return size + chunks * BYTES_PER_CHUNK;
+	}
+
+	// Chunks present, from the .mca location table
+	static int countMCAChunks(Path file) throws IOException {
+		try (RandomAccessFile in = new RandomAccessFile(file.toFile(), "r")) {
+			byte[] header = new byte[(int) Math.min(4096, in.length())];
+			in.readFully(header);
+			ByteBuffer locations = ByteBuffer.wrap(header);
+			int chunks = 0;
+			while (locations.remaining() >= 4) {
+				if (locations.getInt() != 0) {
+					chunks++;
+				}
+			}
+			return chunks;
+		}
+	}
+}
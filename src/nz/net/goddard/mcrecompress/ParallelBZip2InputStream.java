@@ -0,0 +1,224 @@
+package nz.net.goddard.mcrecompress;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.itadaki.bzip2.BZip2BlockDecompressor;
+import org.itadaki.bzip2.BitInputStream;
+
+
+// Decodes a (possibly multi-stream) bzip2 file with its blocks spread across a pool.
+// Block and end-of-stream markers are found by scanning the compressed bits; every
+// candidate block is decoded independently and checked against its own CRC, and the
+// blocks are then handed out in file order. Candidates that fail to decode are
+// marker patterns that happened to occur inside compressed data, and are skipped.
+// Each stream's combined CRC is still checked against its end-of-stream marker.
+public class ParallelBZip2InputStream extends InputStream {
+	private static final long BLOCK_MAGIC = 0x314159265359L;
+	private static final long END_OF_STREAM_MAGIC = 0x177245385090L;
+	private static final int MAX_BLOCK_SIZE = 900000;
+	// Run-length coding turns at most 5 block bytes back into 259
+	private static final int MAX_DECODED_SIZE = MAX_BLOCK_SIZE / 5 * 259;
+	
+	private final ByteBuffer data;
+	private final ExecutorService pool;
+	private final int maxPendingBlocks;
+	
+	private final List<Long> markers;
+	private final List<Boolean> markerIsBlock;
+	private int nextMarker;
+	private int nextSubmit;
+	private final Deque<Future<DecodedBlock>> pendingBlocks;
+	
+	private int streamCRC;
+	private boolean streamOpen;
+	private byte[] current;
+	private int currentPosition;
+	
+	private static class DecodedBlock {
+		final byte[] data;
+		final int crc;
+		
+		DecodedBlock(byte[] data, int crc) {
+			this.data = data;
+			this.crc = crc;
+		}
+	}
+	
+	public ParallelBZip2InputStream(ByteBuffer data, ExecutorService pool) throws IOException {
+		this.data = data.slice();
+		this.pool = pool;
+		this.maxPendingBlocks = Runtime.getRuntime().availableProcessors() * 2;
+		this.markers = new ArrayList<Long>();
+		this.markerIsBlock = new ArrayList<Boolean>();
+		this.pendingBlocks = new ArrayDeque<Future<DecodedBlock>>();
+		
+		if (this.data.remaining() < 4 || this.data.get(0) != 'B' || this.data.get(1) != 'Z' || this.data.get(2) != 'h') {
+			throw new IOException("Invalid BZip2 header");
+		}
+		findMarkers();
+	}
+	
+	// Records the bit position just after every block or end-of-stream marker
+	private void findMarkers() {
+		long window = 0;
+		int length = data.limit();
+		for (int i = 0; i < length; ++i) {
+			window = (window << 8) | (data.get(i) & 0xFF);
+			if (i < 5) {
+				continue;
+			}
+			for (int shift = 7; shift >= 0; --shift) {
+				long candidate = (window >>> shift) & 0xFFFFFFFFFFFFL;
+				if (candidate == BLOCK_MAGIC || candidate == END_OF_STREAM_MAGIC) {
+					markers.add((long) (i + 1) * 8 - shift);
+					markerIsBlock.add(candidate == BLOCK_MAGIC);
+				}
+			}
+		}
+	}
+	
+	private BitInputStream bitsFrom(long bitPosition) throws IOException {
+		ByteBuffer slice = data.duplicate();
+		slice.position((int) (bitPosition / 8));
+		BitInputStream bits = new BitInputStream(new ByteBufferInputStream(slice));
+		int skip = (int) (bitPosition % 8);
+		if (skip > 0) {
+			bits.readBits(skip);
+		}
+		return bits;
+	}
+	
+	private DecodedBlock decodeBlock(long bitPosition) {
+		try {
+			BZip2BlockDecompressor decompressor = new BZip2BlockDecompressor(bitsFrom(bitPosition), MAX_BLOCK_SIZE);
+			ByteArrayOutputStream decoded = new ByteArrayOutputStream(MAX_BLOCK_SIZE);
+			byte[] buffer = new byte[65536];
+			int count;
+			while ((count = decompressor.read(buffer, 0, buffer.length)) > 0) {
+				decoded.write(buffer, 0, count);
+				if (decoded.size() > MAX_DECODED_SIZE) {
+					return null;
+				}
+			}
+			int crc = decompressor.checkCRC();
+			return new DecodedBlock(decoded.toByteArray(), crc);
+		} catch (IOException | RuntimeException e) {
+			// Not a real block boundary
+			return null;
+		}
+	}
+	
+	private void submitBlocks() {
+		while (nextSubmit < markers.size() && pendingBlocks.size() < maxPendingBlocks) {
+			final int marker = nextSubmit++;
+			if (!markerIsBlock.get(marker)) {
+				continue;
+			}
+			final long bitPosition = markers.get(marker);
+			pendingBlocks.add(pool.submit(new Callable<DecodedBlock>() {
+				@Override
+				public DecodedBlock call() {
+					return decodeBlock(bitPosition);
+				}
+			}));
+		}
+	}
+	
+	// Advances to the next decoded block, returning false at the end of the input
+	private boolean nextBlock() throws IOException {
+		while (true) {
+			submitBlocks();
+			if (nextMarker >= markers.size()) {
+				if (streamOpen) {
+					throw new IOException("BZip2 stream CRC error");
+				}
+				return false;
+			}
+			
+			int marker = nextMarker++;
+			if (markerIsBlock.get(marker)) {
+				DecodedBlock block = takeBlock();
+				if (block != null) {
+					streamCRC = ((streamCRC << 1) | (streamCRC >>> 31)) ^ block.crc;
+					streamOpen = true;
+					current = block.data;
+					currentPosition = 0;
+					if (current.length > 0) {
+						return true;
+					}
+				}
+			} else if (isStreamEnd(markers.get(marker))) {
+				if (bitsFrom(markers.get(marker)).readInteger() != streamCRC) {
+					throw new IOException("BZip2 stream CRC error");
+				}
+				streamCRC = 0;
+				streamOpen = false;
+			}
+		}
+	}
+	
+	// A real end-of-stream marker is followed by its CRC and padding, then either the end
+	// of the file or the header of the next stream
+	private boolean isStreamEnd(long bitPosition) {
+		int next = (int) ((bitPosition + 32 + 7) / 8);
+		if (next == data.limit()) {
+			return true;
+		}
+		return next + 3 <= data.limit() && data.get(next) == 'B' && data.get(next + 1) == 'Z' && data.get(next + 2) == 'h';
+	}
+	
+	private DecodedBlock takeBlock() throws IOException {
+		try {
+			return pendingBlocks.poll().get();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+	
+	@Override
+	public int read() throws IOException {
+		if (current == null || currentPosition >= current.length) {
+			if (!nextBlock()) {
+				return -1;
+			}
+		}
+		return current[currentPosition++] & 0xFF;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (current == null || currentPosition >= current.length) {
+			if (!nextBlock()) {
+				return -1;
+			}
+		}
+		int count = Math.min(len, current.length - currentPosition);
+		System.arraycopy(current, currentPosition, b, off, count);
+		currentPosition += count;
+		return count;
+	}
+	
+	@Override
+	public void close() {
+		for (Future<DecodedBlock> pending : pendingBlocks) {
+			pending.cancel(true);
+		}
+		pendingBlocks.clear();
+		current = null;
+	}
+}
@@ -0,0 +1,138 @@
+package nz.net.goddard.mcrecompress;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import org.itadaki.bzip2.BZip2OutputStream;
+
+
+// Compresses fixed-size blocks of the output concurrently, in the manner of pbzip2/pigz.
+// Each block becomes a complete bzip2 stream or gzip member, and blocks are written in
+// order, so the result is a multi-stream .bz2 or multi-member .gz that ordinary
+// decoders read as one stream.
+public class ParallelCompressionOutputStream extends OutputStream {
+	public static final int BZIP2_BLOCK_SIZE = 900000;
+	public static final int GZIP_BLOCK_SIZE = 1024 * 1024;
+	
+	private final OutputStream out;
+	private final ArchiveCompression compression;
+	private final ExecutorService pool;
+	private final int maxPendingBlocks;
+	private final Deque<Future<byte[]>> pendingBlocks;
+	private byte[] block;
+	private int blockLength;
+	private boolean closed;
+	
+	public ParallelCompressionOutputStream(OutputStream out, ArchiveCompression compression, ExecutorService pool) {
+		this(out, compression, pool, compression == ArchiveCompression.GZIP ? GZIP_BLOCK_SIZE : BZIP2_BLOCK_SIZE);
+	}
+	
+	public ParallelCompressionOutputStream(OutputStream out, ArchiveCompression compression, ExecutorService pool, int blockSize) {
+		this.out = out;
+		this.compression = compression;
+		this.pool = pool;
+		this.maxPendingBlocks = Runtime.getRuntime().availableProcessors() * 2;
+		this.pendingBlocks = new ArrayDeque<Future<byte[]>>();
+		this.block = new byte[blockSize];
+		this.blockLength = 0;
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		block[blockLength++] = (byte) b;
+		if (blockLength == block.length) {
+			submitBlock();
+		}
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int count = Math.min(len, block.length - blockLength);
+			System.arraycopy(b, off, block, blockLength, count);
+			blockLength += count;
+			off += count;
+			len -= count;
+			if (blockLength == block.length) {
+				submitBlock();
+			}
+		}
+	}
+	
+	private void submitBlock() throws IOException {
+		final byte[] data = (blockLength == block.length) ? block : Arrays.copyOf(block, blockLength);
+		final ArchiveCompression blockCompression = compression;
+		pendingBlocks.add(pool.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException {
+				return compressBlock(data, blockCompression);
+			}
+		}));
+		block = new byte[block.length];
+		blockLength = 0;
+		
+		// Bound the number of blocks held in memory
+		while (pendingBlocks.size() > maxPendingBlocks) {
+			writeNextBlock();
+		}
+	}
+	
+	private void writeNextBlock() throws IOException {
+		Future<byte[]> next = pendingBlocks.poll();
+		try {
+			out.write(next.get());
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+	
+	static byte[] compressBlock(byte[] data, ArchiveCompression compression) throws IOException {
+		ByteArrayOutputStream bytesOut = new ByteArrayOutputStream(data.length / 4);
+		OutputStream compressor;
+		if (compression == ArchiveCompression.BZIP2) {
+			compressor = new BZip2OutputStream(bytesOut);
+		} else if (compression == ArchiveCompression.GZIP) {
+			compressor = new GZIPOutputStream(bytesOut);
+		} else {
+			compressor = bytesOut;
+		}
+		compressor.write(data);
+		compressor.close();
+		return bytesOut.toByteArray();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		
+		try {
+			if (blockLength > 0 || pendingBlocks.isEmpty()) {
+				submitBlock();
+			}
+			while (!pendingBlocks.isEmpty()) {
+				writeNextBlock();
+			}
+		} finally {
+			for (Future<byte[]> pending : pendingBlocks) {
+				pending.cancel(true);
+			}
+			out.close();
+		}
+	}
+}
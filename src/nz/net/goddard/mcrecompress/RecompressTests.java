@@ -2,20 +2,45 @@ package nz.net.goddard.mcrecompress;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 import java.util.zip.InflaterInputStream;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import nz.net.goddard.mcrecompress.nbt.NBTCompound;
+import nz.net.goddard.mcrecompress.nbt.NBTReader;
+import nz.net.goddard.mcrecompress.nbt.NBTWriter;
+import nz.net.goddard.mcrecompress.server.ChunkServer;
+
 import org.itadaki.bzip2.BZip2InputStream;
+import org.jnbt.ByteArrayTag;
 import org.jnbt.CompoundTag;
+import org.jnbt.ListTag;
 import org.jnbt.NBTInputStream;
 import org.jnbt.Tag;
 import org.junit.Test;
@@ -53,6 +78,72 @@ public class RecompressTests {
     	assertEquals(7, blocks[0]);
 	}
 	
+	@Test
+	public void testParseMappedMatchesHeap() throws IOException {
+		// Mapped reader must see the same chunks as parsing a heap copy
+    	RegionFile mapped = RegionFile.readMCA(new File("./assets/test.mca"));
+    	RegionFile heap = RegionFile.parse(Files.readAllBytes(new File("./assets/test.mca").toPath()));
+    	
+    	for (int x = 0; x < 32; x++) {
+    		for (int z = 0; z < 32; z++) {
+    			ChunkData c1 = mapped.getChunk(x, z);
+    			ChunkData c2 = heap.getChunk(x, z);
+    			assertEquals(c1 == null, c2 == null);
+    			if (c1 != null) {
+    				assertEquals(c1.getTimestamp(), c2.getTimestamp());
+    			}
+    		}
+    	}
+    	compareRegions(mapped, heap);
+	}
+	
+	@Test
+	public void testLazyParse() throws IOException {
+    	RegionFile eager = RegionFile.readMCA(new File("./assets/test.mca"));
+    	RegionFile lazy = RegionFile.readMCA(new File("./assets/test.mca"), true);
+    	
+    	// Header data is available without decoding anything
+    	for (int x = 0; x < 32; x++) {
+    		for (int z = 0; z < 32; z++) {
+    			assertFalse(lazy.isChunkLoaded(x, z));
+    			assertEquals(eager.getChunk(x, z) != null, lazy.hasChunk(x, z));
+    			if (eager.getChunk(x, z) != null) {
+    				assertEquals(eager.getChunk(x, z).getTimestamp(), lazy.getTimestamp(x, z));
+    			}
+    		}
+    	}
+    	
+    	ChunkData chunk = lazy.getChunk(16, 27);
+    	assertNotNull(chunk);
+    	assertTrue(lazy.isChunkLoaded(16, 27));
+    	assertEquals(7, chunk.getSection(0).getBlocks()[0]);
+    	
+    	lazy.releaseChunk(16, 27);
+    	assertFalse(lazy.isChunkLoaded(16, 27));
+    	assertEquals(7, lazy.getChunk(16, 27).getSection(0).getBlocks()[0]);
+    	
+    	compareRegions(eager, lazy);
+	}
+	
+	@Test
+	public void testParallelRegionMatchesSequential() throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(4);
+    	RegionFile region = RegionFile.readMCA(new File("./assets/test.mca"));
+    	RegionFile parallelRegion = RegionFile.readMCA(new File("./assets/test.mca"), pool);
+    	compareRegions(region, parallelRegion);
+    	
+    	// Output must not depend on how the chunks were scheduled
+    	File sequentialFile = File.createTempFile("sequential", ".mca");
+    	sequentialFile.deleteOnExit();
+    	File parallelFile = File.createTempFile("parallel", ".mca");
+    	parallelFile.deleteOnExit();
+    	region.writeRegionFile(sequentialFile);
+    	parallelRegion.writeRegionFile(parallelFile, pool);
+    	pool.shutdown();
+    	
+    	assertTrue(Arrays.equals(Files.readAllBytes(sequentialFile.toPath()), Files.readAllBytes(parallelFile.toPath())));
+	}
+	
 	@Test
 	public void testRegenerateRegionFile() throws IOException {
 		// Read test.mca as master copy
@@ -106,6 +197,442 @@ public class RecompressTests {
     	compareRegions(region, reregion);
 	}
 	
+	@Test
+	public void testParallelCompressedArchives() throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		for (String extension : new String[] {".mri.bz2", ".mri.gz"}) {
+	    	RegionFile region = RegionFile.readMCA(new File("./assets/test.mca"));
+	    	
+	    	File tempFile = File.createTempFile("parallel", extension);
+	    	tempFile.deleteOnExit();
+	    	region.writeArchive(tempFile, extension.endsWith(".bz2") ? ArchiveCompression.BZIP2 : ArchiveCompression.GZIP, pool);
+	    	
+	    	// Several independently compressed blocks were written
+	    	byte[] fileData = Files.readAllBytes(tempFile.toPath());
+	    	int streams = 0;
+	    	for (int i = 0; i + 3 < fileData.length; ++i) {
+	    		if (extension.endsWith(".bz2") && fileData[i] == 'B' && fileData[i + 1] == 'Z' && fileData[i + 2] == 'h' && fileData[i + 3] == '9') {
+	    			streams++;
+	    		} else if (extension.endsWith(".gz") && fileData[i] == (byte) 0x1f && fileData[i + 1] == (byte) 0x8b && fileData[i + 2] == 8 && fileData[i + 3] == 0) {
+	    			streams++;
+	    		}
+	    	}
+	    	assertTrue(streams > 1);
+	    	
+	    	RegionFile reregion = RegionFile.readArchive(tempFile);
+	    	region = RegionFile.readMCA(new File("./assets/test.mca"));
+	    	compareRegions(region, reregion);
+		}
+		pool.shutdown();
+	}
+	
+	@Test
+	public void testParallelBZ2Decode() throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(4);
+    	RegionFile region = RegionFile.readMCA(new File("./assets/test.mca"));
+    	
+    	// Single-stream archive, split at block boundaries
+    	RegionFile reregion = RegionFile.readArchive(new File("./assets/test_converted.mri.bz2"), pool);
+    	compareRegions(region, reregion);
+    	
+    	// Multi-stream archive from the parallel compressor
+    	File tempFile = File.createTempFile("parallel", ".mri.bz2");
+    	tempFile.deleteOnExit();
+    	region.writeArchive(tempFile, ArchiveCompression.BZIP2, pool);
+    	reregion = RegionFile.readArchive(tempFile, pool);
+    	region = RegionFile.readMCA(new File("./assets/test.mca"));
+    	compareRegions(region, reregion);
+    	pool.shutdown();
+	}
+	
+	@Test
+	public void testStreamingArchiveMatchesTagTree() throws IOException {
+    	RegionFile region = RegionFile.readMCA(new File("./assets/test.mca"));
+    	
+    	File tempFile = File.createTempFile("streamed", ".mri");
+    	tempFile.deleteOnExit();
+    	region.writeArchive(tempFile);
+    	
+    	// Read the streamed archive back through jnbt as an independent check
+    	NBTInputStream reparser = new NBTInputStream(new ByteArrayInputStream(Files.readAllBytes(tempFile.toPath())), false);
+    	CompoundTag streamed = (CompoundTag) reparser.readTag();
+    	reparser.close();
+    	
+    	// Streaming the archive leaves the region intact, so it can still build the tree
+    	NBTCompound built = region.makeArchive();
+    	
+    	assertEquals("Region", streamed.getName());
+    	assertEquals(built.getString("MRI Version"), streamed.getValue().get("MRI Version").getValue());
+    	assertEquals(built.getList("Chunks").size(), ((ListTag) streamed.getValue().get("Chunks")).getValue().size());
+    	
+    	Map<String, Tag> streamedBlocks = ((CompoundTag) streamed.getValue().get("BlockData")).getValue();
+    	for (String key : RegionFile.combineBlockLengths.keySet()) {
+    		assertTrue(Arrays.equals(built.getCompound("BlockData").getByteArray(key), ((ByteArrayTag) streamedBlocks.get(key)).getValue()));
+    	}
+    	
+    	compareRegions(RegionFile.readMCA(new File("./assets/test.mca")), RegionFile.fromArchive(streamed));
+	}
+	
+	@Test
+	public void testStreamingReaderChunkOrder() throws IOException {
+		// Columns ahead of the chunk list are held back until the chunks are known
+    	RegionFile region = RegionFile.readMCA(new File("./assets/test.mca"));
+    	NBTCompound archive = region.makeArchive();
+    	NBTCompound reordered = new NBTCompound();
+    	reordered.put("BlockData", archive.remove("BlockData"));
+    	for (String key : archive.keys()) {
+    		reordered.put(key, archive.get(key));
+    	}
+    	
+    	ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+    	NBTWriter nbtOut = new NBTWriter(bytesOut);
+    	nbtOut.writeRootCompound("Region", reordered);
+    	nbtOut.close();
+    	
+    	RegionFile reregion = RegionFile.readArchive(new ByteArrayInputStream(bytesOut.toByteArray()));
+    	compareRegions(RegionFile.readMCA(new File("./assets/test.mca")), reregion);
+	}
+	
+	@Test
+	public void testUnfilteredColumnsStream() throws IOException {
+		// MRI 1.1 archives without filtering still stream their columns into the sections
+    	RegionFile region = RegionFile.readMCA(new File("./assets/test.mca"));
+		for (boolean strip : new boolean[] { false, true }) {
+			ArchiveOptions options = new ArchiveOptions();
+			options.setStripLighting(strip);
+			options.setPaletteBlocks(!strip);
+			NBTCompound archive = region.makeArchive(options);
+			assertEquals("1.1", archive.getString("MRI Version"));
+			assertEquals("None", archive.getCompound("BlockData").getCompound("Filters").getString("Blocks"));
+
+			ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+			region.writeArchive(bytesOut, ArchiveCompression.NONE, null, options);
+			ArchiveReader reader = new ArchiveReader(new ByteArrayInputStream(bytesOut.toByteArray()));
+			RegionFile reregion = reader.readRegion();
+			assertEquals(0, reader.countDeferredColumns());
+			assertEquals(strip, reregion.isLightingStripped());
+			if (!strip) {
+				compareRegions(RegionFile.readMCA(new File("./assets/test.mca")), reregion);
+			}
+
+			// As written before unfiltered archives listed their filters
+			archive.getCompound("BlockData").remove("Filters");
+			bytesOut = new ByteArrayOutputStream();
+			NBTWriter nbtOut = new NBTWriter(bytesOut);
+			nbtOut.writeRootCompound("Region", archive);
+			nbtOut.close();
+			reader = new ArchiveReader(new ByteArrayInputStream(bytesOut.toByteArray()));
+			RegionFile older = reader.readRegion();
+			assertEquals(0, reader.countDeferredColumns());
+			compareRegions(reregion, older);
+		}
+	}
+
+	@Test
+	public void testOutOfRangeSection() throws IOException {
+		// Sections above the 16 the columns cover keep their arrays in the chunk list
+		RegionFile region = RegionFile.readMCA(new File("./assets/test.mca"));
+		int index = 0;
+		while (region.chunkAt(index) == null) {
+			index++;
+		}
+		NBTCompound root = region.chunkAt(index).getChunkRootTag();
+		NBTCompound extra = new NBTCompound();
+		extra.put("Y", (byte) 16);
+		byte[] blocks = new byte[4096];
+		new Random(16).nextBytes(blocks);
+		extra.put("Blocks", blocks);
+		extra.put("Data", new byte[2048]);
+		root.getCompound("Level").getList("Sections").add(extra);
+		region.setChunk(index, new ChunkData(region.chunkAt(index).getTimestamp(), root));
+
+		for (boolean palette : new boolean[] { false, true }) {
+			ArchiveOptions options = new ArchiveOptions();
+			options.setPaletteBlocks(palette);
+			ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+			region.writeArchive(bytesOut, ArchiveCompression.NONE, null, options);
+			RegionFile reregion = RegionFile.readArchive(new ByteArrayInputStream(bytesOut.toByteArray()));
+
+			SectionData section = reregion.chunkAt(index).getSection(16);
+			assertTrue(Arrays.equals(blocks, section.getBlocks()));
+			assertEquals(2048, section.getData().length);
+			compareRegions(region, reregion);
+		}
+	}
+
+	@Test
+	public void testFilteredArchive() throws IOException {
+		// Each filter inverts exactly on arbitrary blocks
+		Random random = new Random(9);
+		for (int blockSize : new int[] { 2048, 4096 }) {
+			byte[] block = new byte[blockSize];
+			random.nextBytes(block);
+			BlockFilter filter = BlockFilter.forBlockSize(blockSize);
+			assertTrue(Arrays.equals(block, filter.decode(filter.encode(block))));
+		}
+		
+		ArchiveOptions options = new ArchiveOptions();
+		options.setFilterBlocks(true);
+		RegionFile region = RegionFile.readMCA(new File("./assets/test.mca"));
+		
+		NBTCompound archive = region.makeArchive(options);
+		assertEquals("1.1", archive.getString("MRI Version"));
+		assertEquals("Bit Planes", archive.getCompound("BlockData").getCompound("Filters").getString("Blocks"));
+		compareRegions(RegionFile.readMCA(new File("./assets/test.mca")), RegionFile.fromArchive(archive));
+		
+    	File tempFile = File.createTempFile("filtered", ".mri.bz2");
+    	tempFile.deleteOnExit();
+    	region.writeArchive(tempFile, ArchiveCompression.BZIP2, null, options);
+    	compareRegions(RegionFile.readMCA(new File("./assets/test.mca")), RegionFile.readArchive(tempFile));
+	}
+	
+	@Test
+	public void testStrippedLighting() throws IOException {
+		ArchiveOptions options = new ArchiveOptions();
+		options.setStripLighting(true);
+		RegionFile region = RegionFile.readMCA(new File("./assets/test.mca"));
+		
+		NBTCompound archive = region.makeArchive(options);
+		assertEquals("1.1", archive.getString("MRI Version"));
+		assertEquals(3, archive.getList("Stripped").size());
+		assertEquals(null, archive.getCompound("BlockData").getByteArray("SkyLight"));
+		assertFalse(((NBTCompound) archive.getList("Chunks").get(0)).getCompound("Level").containsKey("HeightMap"));
+		
+    	File tempFile = File.createTempFile("stripped", ".mri.bz2");
+    	tempFile.deleteOnExit();
+    	region.writeArchive(tempFile, ArchiveCompression.BZIP2, null, options);
+    	RegionFile reregion = RegionFile.readArchive(tempFile);
+    	assertTrue(reregion.isLightingStripped());
+    	
+    	// Restoring relights the region, in parallel here, the same way as relighting the original
+    	File mcaFile = File.createTempFile("relit", ".mca");
+    	mcaFile.deleteOnExit();
+    	reregion.writeRegionFile(mcaFile, new ForkJoinPool(4));
+    	RegionFile restored = RegionFile.readMCA(mcaFile);
+    	
+    	region = RegionFile.readMCA(new File("./assets/test.mca"));
+    	region.relight(null);
+    	compareRegions(region, restored);
+    	
+    	for (int x = 0; x < 32; x++) {
+    		for (int z = 0; z < 32; z++) {
+    			ChunkData chunk = restored.getChunk(x, z);
+    			if (chunk != null) {
+    				assertEquals(256, ((int[]) chunk.getChunkRootTag().getCompound("Level").get("HeightMap")).length);
+    				assertEquals(2048, chunk.getSection(0).getSkyLight().length);
+    			}
+    		}
+    	}
+	}
+	
+	@Test
+	public void testSectionStore() throws IOException {
+		File storeFile = File.createTempFile("sections", ".mrss");
+		storeFile.deleteOnExit();
+		storeFile.delete();
+		
+		SectionStore store = SectionStore.open(storeFile);
+		ArchiveOptions options = new ArchiveOptions();
+		options.setSectionStore(store);
+		RegionFile region = RegionFile.readMCA(new File("./assets/test.mca"));
+		
+    	File first = File.createTempFile("stored", ".mri.bz2");
+    	first.deleteOnExit();
+    	region.writeArchive(first, ArchiveCompression.BZIP2, null, options);
+    	int storedSections = store.size();
+    	assertTrue(storedSections > 0);
+    	
+    	// A second copy of the region adds nothing to the store
+    	File second = File.createTempFile("stored", ".mri.bz2");
+    	second.deleteOnExit();
+    	region.writeArchive(second, ArchiveCompression.BZIP2, null, options);
+    	assertEquals(storedSections, store.size());
+    	store.close();
+    	
+    	store = SectionStore.open(storeFile);
+    	assertEquals(storedSections, store.size());
+    	compareRegions(RegionFile.readMCA(new File("./assets/test.mca")), RegionFile.readArchive(first, null, store));
+    	compareRegions(RegionFile.readMCA(new File("./assets/test.mca")), RegionFile.readArchive(second, null, store));
+    	store.close();
+    	
+    	try {
+    		RegionFile.readArchive(first);
+    		fail("Archive read without its section store");
+    	} catch (IOException e) {
+    		// Expected
+    	}
+	}
+	
+	@Test
+	public void testPaletteArchive() throws IOException {
+		// Too many distinct values for a palette
+		Random random = new Random(12);
+		byte[] blocks = new byte[4096];
+		byte[] data = new byte[2048];
+		random.nextBytes(blocks);
+		random.nextBytes(data);
+		assertEquals(null, BlockPalette.encode(blocks, null, data));
+		
+		ArchiveOptions options = new ArchiveOptions();
+		options.setPaletteBlocks(true);
+		RegionFile region = RegionFile.readMCA(new File("./assets/test.mca"));
+		
+		// A section without Add should come back without one
+		SectionData noAdd = null;
+		for (int i = 0; noAdd == null; ++i) {
+			ChunkData chunk = region.getChunk(i & 31, i >> 5);
+			if (chunk != null && chunk.getSection(0) != null) {
+				noAdd = chunk.getSection(0);
+				noAdd.getSectionTag().remove("Add");
+			}
+		}
+		
+		NBTCompound archive = region.makeArchive(options);
+		assertEquals("1.1", archive.getString("MRI Version"));
+		assertEquals(0, archive.getCompound("BlockData").getByteArray("Blocks").length);
+		compareRegions(region, RegionFile.fromArchive(archive));
+		
+    	File tempFile = File.createTempFile("palette", ".mri.bz2");
+    	tempFile.deleteOnExit();
+    	region.writeArchive(tempFile, ArchiveCompression.BZIP2, null, options);
+    	RegionFile reregion = RegionFile.readArchive(tempFile);
+    	compareRegions(region, reregion);
+	}
+	
+	@Test
+	public void testSeekableArchive() throws IOException {
+		RegionFile region = RegionFile.readMCA(new File("./assets/test.mca"));
+    	File tempFile = File.createTempFile("seekable", ".mrs");
+    	tempFile.deleteOnExit();
+    	region.writeSeekableArchive(tempFile, ArchiveCompression.BZIP2, new ArchiveOptions(), new ForkJoinPool(4));
+    	
+    	// Single chunks, read one frame at a time
+    	for (int i = 0; i < 1024; i += 37) {
+    		ChunkData chunk = RegionFile.readSeekableChunk(tempFile, i & 31, i >> 5);
+    		ChunkData original = region.getChunk(i & 31, i >> 5);
+    		assertEquals(original == null, chunk == null);
+    		if (chunk != null) {
+    			assertEquals(original.getX(), chunk.getX());
+    			assertEquals(original.getTimestamp(), chunk.getTimestamp());
+    			for (int y = 0; y < 16; ++y) {
+    				assertEquals(original.getSection(y) == null, chunk.getSection(y) == null);
+    				if (chunk.getSection(y) != null) {
+    					assertTrue(Arrays.equals(original.getSection(y).getBlocks(), chunk.getSection(y).getBlocks()));
+    				}
+    			}
+    		}
+    	}
+    	
+    	SeekableArchive archive = SeekableArchive.open(tempFile);
+    	compareRegions(region, archive.readRegion());
+    	archive.close();
+	}
+	
+	@Test
+	public void testChunkServer() throws Exception {
+		RegionFile region = RegionFile.readMCA(new File("./assets/test.mca"));
+		ChunkData sample = null;
+		for (int i = 0; i < 1024 && sample == null; ++i) {
+			sample = region.chunkAt(i);
+		}
+		
+		// Named by region coordinates, as in a world
+		Path directory = Files.createTempDirectory("served");
+		File archiveFile = directory.resolve("r." + (sample.getX() >> 5) + "." + (sample.getZ() >> 5) + ".mri.bz2").toFile();
+		archiveFile.deleteOnExit();
+		directory.toFile().deleteOnExit();
+		region.writeArchive(archiveFile, ArchiveCompression.BZIP2);
+		
+		final ChunkServer server = new ChunkServer(directory, 256L * 1024 * 1024);
+		final int x = sample.getX();
+		final int z = sample.getZ();
+		
+		// Readers arriving together share a single decode
+		final byte[][] results = new byte[4][];
+		Thread[] readers = new Thread[4];
+		for (int t = 0; t < readers.length; ++t) {
+			final int reader = t;
+			readers[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						results[reader] = server.getChunkNBT(x, z);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			readers[t].start();
+		}
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		assertEquals(1, server.getRegionLoads());
+		
+		// The same NBT as the chunk restored from the archive
+		ChunkData restored = RegionFile.readArchive(archiveFile).getChunk(x & 31, z & 31);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		NBTWriter writer = new NBTWriter(expected);
+		writer.writeRootCompound("", restored.getChunkRootTag());
+		writer.close();
+		for (byte[] result : results) {
+			assertTrue(Arrays.equals(expected.toByteArray(), result));
+		}
+		
+		int port = server.startHttp(0, 2);
+		try {
+			HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/chunk?x=" + x + "&z=" + z).openConnection();
+			assertEquals(200, connection.getResponseCode());
+			DataInputStream body = new DataInputStream(connection.getInputStream());
+			byte[] served = new byte[connection.getContentLength()];
+			body.readFully(served);
+			body.close();
+			assertTrue(Arrays.equals(expected.toByteArray(), served));
+			assertEquals(1, server.getRegionLoads());
+			
+			// No archive for that region
+			assertNull(server.getChunk(x + 320, z));
+			connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/chunk?x=" + (x + 320) + "&z=" + z).openConnection();
+			assertEquals(404, connection.getResponseCode());
+		} finally {
+			server.close();
+		}
+	}
+	
+	@Test
+	public void testNBTCodecRoundTrip() throws IOException {
+		// Chunk NBT read and written by the codec comes out byte for byte the same
+		ByteBuffer mca = ByteBuffer.wrap(Files.readAllBytes(new File("./assets/test.mca").toPath()));
+		int chunksChecked = 0;
+		for (int i = 0; i < 1024; ++i) {
+			int location = mca.getInt(i * 4) >> 8;
+			if (location == 0) {
+				continue;
+			}
+			int length = mca.getInt(location * 4096);
+			InflaterInputStream inflater = new InflaterInputStream(new ByteArrayInputStream(mca.array(), location * 4096 + 5, length - 1));
+			ByteArrayOutputStream original = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int count;
+			while ((count = inflater.read(buffer)) > 0) {
+				original.write(buffer, 0, count);
+			}
+			
+			NBTReader reader = new NBTReader(new ByteArrayInputStream(original.toByteArray()));
+			NBTCompound chunk = reader.readRootCompound();
+			reader.release();
+			
+			ByteArrayOutputStream rewritten = new ByteArrayOutputStream();
+			NBTWriter writer = new NBTWriter(rewritten);
+			writer.writeRootCompound("", chunk);
+			writer.close();
+			
+			assertTrue(Arrays.equals(original.toByteArray(), rewritten.toByteArray()));
+			chunksChecked++;
+		}
+		assertEquals(349, chunksChecked);
+	}
+	
 	@Test
 	public void testConvertReadBackNine() throws IOException {
     	RegionFile region = RegionFile.readMCA(new File("./assets/nine.mca"));
@@ -189,6 +716,402 @@ public class RecompressTests {
 		Files.delete(tempDir);
 	}
 	
+	@Test
+	public void testIncrementalRepack() throws IOException {
+    	Path tempDir = Files.createTempDirectory("temp_mca");
+    	Files.copy(FileSystems.getDefault().getPath("assets/test.mca"), tempDir.resolve("test.mca"));
+    	File manifestFile = tempDir.resolve("manifest.dat").toFile();
+    	
+		MCAConverter converter = new MCAConverter(tempDir, 1);
+		RepackManifest manifest = RepackManifest.load(manifestFile);
+		converter.setManifest(manifest);
+		converter.convertMCAFiles();
+		manifest.save();
+		
+		// Incremental runs keep the region to compare against
+		assertTrue(Files.exists(tempDir.resolve("test.mca")));
+		assertTrue(Files.exists(tempDir.resolve("test.mri.bz2")));
+		RegionFile.readArchive(tempDir.resolve("test.mri.bz2").toFile());
+		
+		// Unchanged, so the next run leaves the archive alone
+		byte[] marker = {1, 2, 3};
+		Files.write(tempDir.resolve("test.mri.bz2"), marker);
+		converter = new MCAConverter(tempDir, 1);
+		manifest = RepackManifest.load(manifestFile);
+		converter.setManifest(manifest);
+		converter.convertMCAFiles();
+		manifest.save();
+		assertTrue(Arrays.equals(marker, Files.readAllBytes(tempDir.resolve("test.mri.bz2"))));
+		
+		// A chunk's timestamp moves on, so the region is packed again
+		RandomAccessFile mca = new RandomAccessFile(tempDir.resolve("test.mca").toFile(), "rw");
+		mca.seek(4096);
+		mca.writeInt(mca.readInt() + 1);
+		mca.close();
+		converter = new MCAConverter(tempDir, 1);
+		manifest = RepackManifest.load(manifestFile);
+		converter.setManifest(manifest);
+		converter.convertMCAFiles();
+		manifest.save();
+		compareRegions(RegionFile.readMCA(new File("./assets/test.mca")), RegionFile.readArchive(tempDir.resolve("test.mri.bz2").toFile()));
+		
+		Files.delete(tempDir.resolve("test.mca"));
+		Files.delete(tempDir.resolve("test.mri.bz2"));
+		Files.deleteIfExists(manifestFile.toPath());
+		Files.delete(tempDir);
+	}
+	
+	@Test
+	public void testMetricsReport() throws Exception {
+    	Path tempDir = Files.createTempDirectory("temp_mca");
+    	Files.copy(FileSystems.getDefault().getPath("assets/test.mca"), tempDir.resolve("r.0.0.mca"));
+    	File reportFile = File.createTempFile("report", ".json");
+    	reportFile.deleteOnExit();
+    	
+		MCAConverter converter = new MCAConverter(tempDir, 1);
+		converter.setReportFile(reportFile);
+		converter.convertMCAFiles();
+		
+		// Only this run's work is reported, even though other tests ran before it
+		String report = new String(Files.readAllBytes(reportFile.toPath()), "UTF-8");
+		assertTrue(report.contains("\"regions\": 1,"));
+		assertTrue(report.contains("\"failedRegions\": 0,"));
+		assertTrue(report.contains("\"parse\": {\"count\": 1,"));
+		assertTrue(report.contains("\"chunks\": 349, \"sections\": 3614"));
+		for (String stage : new String[] {"pack.read", "pack.decode", "pack.compress", "pack.write", "writeArchive"}) {
+			assertTrue(report.contains("\"" + stage + "\": {\"count\": 1,"));
+		}
+		
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName parse = new ObjectName("nz.net.goddard.mcrecompress:type=ConversionMetrics,stage=" + ObjectName.quote("parse"));
+		assertTrue((Long) server.getAttribute(parse, "Chunks") >= 349);
+		ObjectName writeArchive = new ObjectName("nz.net.goddard.mcrecompress:type=ConversionMetrics,stage=" + ObjectName.quote("writeArchive"));
+		double ratio = (Double) server.getAttribute(writeArchive, "CompressionRatio");
+		assertTrue(ratio > 0 && ratio < 1);
+		
+		Files.delete(tempDir.resolve("r.0.0.mri.bz2"));
+		Files.delete(tempDir);
+	}
+	
+	@Test
+	public void testWorldGenerator() throws IOException {
+		WorldGenerator generator = new WorldGenerator(42);
+		generator.setProfile(WorldGenerator.Profile.MODDED);
+		generator.setDensity(0.25);
+		generator.setEmptySections(0.5);
+		generator.setEntitiesPerChunk(40);
+		RegionFile region = generator.generateRegion(-1, 2, new ForkJoinPool(4));
+		
+		int chunks = 0;
+		int addSections = 0;
+		int maxEntities = 0;
+		for (int i = 0; i < 1024; ++i) {
+			ChunkData chunk = region.chunkAt(i);
+			if (chunk == null) {
+				continue;
+			}
+			chunks++;
+			assertEquals(-32 + (i & 31), chunk.getX());
+			assertEquals(64 + (i >> 5), chunk.getZ());
+			for (int y = 0; y < 16; ++y) {
+				if (chunk.getSection(y) != null && chunk.getSection(y).getBlockAdd() != null) {
+					addSections++;
+				}
+			}
+			maxEntities = Math.max(maxEntities, chunk.getChunkRootTag().getCompound("Level").getList("Entities").size());
+		}
+		assertTrue(chunks > 200 && chunks < 320);
+		assertTrue(addSections > 0);
+		assertTrue(maxEntities > 40);
+		
+		// Relit on writing, and it reads back as a region like any other
+		File tempFile = File.createTempFile("generated", ".mca");
+		tempFile.deleteOnExit();
+		region.writeRegionFile(tempFile, null);
+		RegionFile reread = RegionFile.readMCA(tempFile);
+		compareRegions(region, reread);
+		
+		// The same seed gives the same chunks, whatever the threads
+		RegionFile again = generator.generateRegion(-1, 2, null);
+		for (int i = 0; i < 1024; ++i) {
+			assertEquals(region.chunkAt(i) == null, again.chunkAt(i) == null);
+			if (region.chunkAt(i) != null) {
+				assertTrue(Arrays.equals(region.chunkAt(i).getSection(1).getBlocks(), again.chunkAt(i).getSection(1).getBlocks()));
+			}
+		}
+	}
+
+	@Test
+	public void testChunkCompressionProfiles() throws IOException {
+		RegionFile region = RegionFile.readMCA(new File("./assets/test.mca"));
+		int[] totals = new int[ChunkCompressionProfile.values().length];
+		for (int i = 0; i < 1024; ++i) {
+			ChunkData chunk = region.chunkAt(i);
+			if (chunk == null) {
+				continue;
+			}
+			byte[] original = chunk.generateChunkBlock();
+			for (ChunkCompressionProfile profile : ChunkCompressionProfile.values()) {
+				byte[] block = chunk.generateChunkBlock(profile);
+				totals[profile.ordinal()] += block.length;
+				// The same NBT, whatever the level
+				ChunkData reread = ChunkData.parse(block, 0, chunk.getTimestamp());
+				assertTrue(Arrays.equals(original, reread.generateChunkBlock()));
+			}
+		}
+		assertTrue(totals[ChunkCompressionProfile.MAX.ordinal()] <= totals[ChunkCompressionProfile.DEFAULT.ordinal()]);
+		assertTrue(totals[ChunkCompressionProfile.DEFAULT.ordinal()] < totals[ChunkCompressionProfile.FAST.ordinal()]);
+		
+		// Contexts are kept for reuse, and all freed at the end
+		assertTrue(ZlibPool.getIdleCount() > 0);
+		ZlibPool.endAll();
+		assertEquals(0, ZlibPool.getIdleCount());
+	}
+	
+	@Test
+	public void testOversizedChunk() throws IOException {
+		Path tempDir = Files.createTempDirectory("temp_mca");
+		RegionFile region = new WorldGenerator(3).generateRegion(1, -1, null);
+		ChunkData chunk = region.chunkAt(33);
+		// Random bytes don't deflate, so this chunk needs more than 255 sectors
+		byte[] junk = new byte[1200000];
+		new Random(5).nextBytes(junk);
+		chunk.getChunkRootTag().getCompound("Level").put("Junk", junk);
+		
+		File file = tempDir.resolve("r.1.-1.mca").toFile();
+		region.writeRegionFile(file, null);
+		Path external = tempDir.resolve("c." + chunk.getX() + "." + chunk.getZ() + ".mcc");
+		assertTrue(Files.exists(external));
+		ByteBuffer header = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+		assertEquals(1, header.getInt(33 * 4) & 255);
+		assertEquals(2 | 128, header.get((header.getInt(33 * 4) >> 8) * 4096 + 4) & 255);
+		
+		RegionFile reread = RegionFile.readMCA(file);
+		compareRegions(region, reread);
+		assertTrue(Arrays.equals(junk, reread.chunkAt(33).getChunkRootTag().getCompound("Level").getByteArray("Junk")));
+		
+		// Through a pack and restore, with no temporary files left behind
+		assertEquals(0, new MCAConverter(tempDir, 1).convertMCAFiles());
+		assertFalse(Files.exists(external));
+		assertEquals(0, new MCARegenerator(tempDir, 1).regenerateMCAFiles());
+		assertEquals(2, tempDir.toFile().list().length);
+		assertTrue(Files.exists(external));
+		compareRegions(region, RegionFile.readMCA(file));
+		assertEquals(0, new MCAOptimizer(tempDir, 1).optimizeMCAFiles());
+		assertEquals(2, tempDir.toFile().list().length);
+		assertTrue(Files.exists(external));
+		compareRegions(region, RegionFile.readMCA(file));
+		
+		// Only .mcc files that replace nothing are committed ahead of their region
+		Path copy = tempDir.resolve("copy.mca.t");
+		for (boolean replacing : new boolean[] { true, false }) {
+			if (!replacing) {
+				Files.delete(external);
+			}
+			try (FileChannel channel = FileChannel.open(copy, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+				RegionFileWriter writer = region.writeRegionFile(channel, null, tempDir);
+				writer.commitNewExternals();
+				assertEquals(replacing ? 4 : 3, tempDir.toFile().list().length);
+				assertTrue(Files.exists(external));
+				writer.commitExternals();
+				assertEquals(3, tempDir.toFile().list().length);
+			}
+			Files.delete(copy);
+		}
+		compareRegions(region, RegionFile.readMCA(file));
+		
+		// A stream has nowhere to put it
+		try {
+			region.writeRegionFile(new ByteArrayOutputStream(), null);
+			fail("Oversized chunk written to a stream");
+		} catch (IOException e) {
+		}
+		
+		RegionFile.deleteRegionFile(file.toPath());
+		assertFalse(Files.exists(external));
+		Files.delete(tempDir);
+	}
+	
+	@Test
+	public void testFailedRegionsCounted() throws IOException {
+		// Unreadable files are counted, and left for the user to deal with
+		Path tempDir = Files.createTempDirectory("temp_failed");
+		byte[] junk = new byte[10000];
+		new Random(3).nextBytes(junk);
+		Path archive = tempDir.resolve("r.0.0.mri.bz2");
+		Files.write(archive, junk);
+		Path mca = tempDir.resolve("r.1.0.mca");
+		Files.write(mca, junk);
+		
+		assertEquals(1, new MCARegenerator(tempDir, 1).regenerateMCAFiles());
+		assertTrue(Files.exists(archive));
+		assertEquals(1, new MCAConverter(tempDir, 1).convertMCAFiles());
+		assertTrue(Files.exists(mca));
+		assertEquals(2, tempDir.toFile().list().length);
+		
+		Files.delete(archive);
+		Files.delete(mca);
+		Files.delete(tempDir);
+	}
+	
+	@Test
+	public void testOptimizeMCA() throws IOException {
+		Path tempDir = Files.createTempDirectory("temp_mca");
+		Path file = tempDir.resolve("r.0.0.mca");
+		Files.copy(FileSystems.getDefault().getPath("assets/test.mca"), file);
+		// Dead sectors at the end, and external chunk files the region doesn't use
+		RandomAccessFile mca = new RandomAccessFile(file.toFile(), "rw");
+		mca.setLength(mca.length() + 20 * 4096);
+		mca.close();
+		Path stale = tempDir.resolve("c.3.4.mcc");
+		Path otherRegion = tempDir.resolve("c.40.4.mcc");
+		Files.write(stale, new byte[] {1});
+		Files.write(otherRegion, new byte[] {1});
+		long before = Files.size(file);
+		
+		MCAOptimizer optimizer = new MCAOptimizer(tempDir, 2);
+		optimizer.optimizeMCAFiles();
+		assertTrue(Files.size(file) < before);
+		assertEquals(before, optimizer.getBytesBefore());
+		assertEquals(Files.size(file), optimizer.getBytesAfter());
+		compareRegions(RegionFile.readMCA(new File("./assets/test.mca")), RegionFile.readMCA(file.toFile()));
+		assertFalse(Files.exists(stale));
+		assertTrue(Files.exists(otherRegion));
+		
+		Files.delete(file);
+		Files.delete(otherRegion);
+		Files.delete(tempDir);
+	}
+	
+	@Test
+	public void testMemoryBudget() throws Exception {
+		final MemoryBudget budget = new MemoryBudget(100);
+		budget.acquire(80);
+		Thread second = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					budget.acquire(50);
+				} catch (InterruptedException e) {
+				}
+			}
+		});
+		second.start();
+		second.join(300);
+		// Held back until the first region is done
+		assertTrue(second.isAlive());
+		assertEquals(80, budget.getUsed());
+		budget.release(80);
+		second.join(5000);
+		assertFalse(second.isAlive());
+		assertEquals(50, budget.getUsed());
+		budget.release(50);
+		
+		// A region over the budget still runs, on its own
+		budget.acquire(1000);
+		budget.release(1000);
+		
+		// Estimated from the chunks the region's location table lists
+		Path testFile = FileSystems.getDefault().getPath("assets/test.mca");
+		int chunks = RegionFile.readMCA(testFile.toFile()).countChunks();
+		assertEquals(chunks, MemoryBudget.countMCAChunks(testFile));
+		assertEquals(Files.size(testFile) + chunks * MemoryBudget.BYTES_PER_CHUNK, MemoryBudget.estimateRegion(testFile, Files.size(testFile)));
+	}
+	
+	@Test
+	public void testSectionStoreCommit() throws IOException {
+		File storeFile = File.createTempFile("sections", ".mrss");
+		storeFile.deleteOnExit();
+		storeFile.delete();
+		Random random = new Random(11);
+		
+		SectionStore store = SectionStore.open(storeFile);
+		byte[][] first = storedSection(random);
+		assertEquals(0, store.add(first));
+		store.close();
+		
+		// Reopened, the store keeps what it had and adds after it
+		store = SectionStore.open(storeFile);
+		byte[][] second = storedSection(random);
+		assertEquals(1, store.add(second));
+		store.commit();
+		// As if killed here, with a whole segment written past the commit
+		for (int i = 0; i < SectionStore.SEGMENT_SIZE + 10; ++i) {
+			store.add(storedSection(random));
+		}
+		
+		SectionStore reopened = SectionStore.open(storeFile);
+		assertEquals(2, reopened.size());
+		assertTrue(Arrays.equals(first[0], reopened.get(0)[0]));
+		assertTrue(Arrays.equals(second[0], reopened.get(1)[0]));
+		reopened.close();
+		
+		store.close();
+		store = SectionStore.open(storeFile);
+		assertEquals(SectionStore.SEGMENT_SIZE + 12, store.size());
+		assertTrue(Arrays.equals(second[0], store.get(1)[0]));
+		store.close();
+	}
+	
+	// Blocks only, distinct by their first few bytes
+	private static byte[][] storedSection(Random random) {
+		byte[][] arrays = new byte[RegionFile.combineKeys.length][];
+		arrays[0] = new byte[4096];
+		for (int i = 0; i < 8; ++i) {
+			arrays[0][i] = (byte) random.nextInt();
+		}
+		return arrays;
+	}
+	
+	@Test
+	public void testChecksumVerify() throws IOException {
+		CRC32C crc = new CRC32C();
+		crc.update("123456789".getBytes(StandardCharsets.US_ASCII));
+		assertEquals(0xE3069283L, crc.getValue());
+		
+		Path tempDir = Files.createTempDirectory("temp_mri");
+		RegionFile region = RegionFile.readMCA(new File("./assets/test.mca"));
+		ArchiveOptions options = new ArchiveOptions();
+		options.setChecksums(true);
+		options.setPaletteBlocks(true);
+		options.setStripLighting(true);
+		File checked = tempDir.resolve("r.0.0.mri.bz2").toFile();
+		region.writeArchive(checked, ArchiveCompression.BZIP2, null, options);
+		
+		MCAVerifier verifier = new MCAVerifier(tempDir, 2);
+		assertTrue(verifier.verifyArchives());
+		assertEquals(1, verifier.getRegionsVerified());
+		
+		// A changed block shows up in its section alone
+		RegionFile reread = RegionFile.readArchive(checked);
+		RegionChecksums stored = reread.getStoredChecksums();
+		assertFalse(stored.includesLighting());
+		reread.chunkAt(firstChunk(reread)).getSection(0).getBlocks()[100]++;
+		List<String> mismatches = stored.compare(RegionChecksums.compute(reread, false, null));
+		assertEquals(1, mismatches.size());
+		assertTrue(mismatches.get(0).contains("section"));
+		
+		// Archives without checksums can't pass
+		region.writeArchive(tempDir.resolve("r.1.0.mri.bz2").toFile(), ArchiveCompression.BZIP2, null, new ArchiveOptions());
+		verifier = new MCAVerifier(tempDir, 2);
+		assertFalse(verifier.verifyArchives());
+		assertEquals(1, verifier.getRegionsUnchecked());
+		
+		for (File file : tempDir.toFile().listFiles()) {
+			file.delete();
+		}
+		Files.delete(tempDir);
+	}
+	
+	private static int firstChunk(RegionFile region) {
+		for (int i = 0; i < 1024; ++i) {
+			if (region.chunkAt(i) != null && region.chunkAt(i).getSection(0) != null) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
 	private void compareRegions(RegionFile region, RegionFile reregion) {
     	for (int x = 0; x < 32; x++) {
     		for (int z = 0; z < 32; z++) {
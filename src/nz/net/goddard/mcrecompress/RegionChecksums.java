@@ -0,0 +1,297 @@
+package nz.net.goddard.mcrecompress;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import nz.net.goddard.mcrecompress.nbt.NBTCompound;
+import nz.net.goddard.mcrecompress.nbt.NBTList;
+import nz.net.goddard.mcrecompress.nbt.NBTTypes;
+
+
+// CRC-32C digests of a region's chunks as they were packed, so an archive can be checked
+// without writing it back out as .mca. Each chunk's tag tree is digested with compound keys
+// in sorted order, since a restored chunk needn't list its keys in the original order, and
+// with the "Last Modified" tags the archive adds left out. A chunk's own digest covers
+// everything but the contents of its sections, which are digested one by one. Lighting is
+// left out when the archive leaves it out, as relit lighting can differ from the original.
+class RegionChecksums {
+	static final String ALGORITHM = "CRC32C";
+
+	private final boolean includesLighting;
+	private final int[] chunkSums = new int[1024];
+	// Null for empty chunk slots
+	private final int[][] sectionSums = new int[1024][];
+
+	RegionChecksums(boolean includesLighting) {
+		this.includesLighting = includesLighting;
+	}
+
+	boolean includesLighting() {
+		return includesLighting;
+	}
+
+	static RegionChecksums compute(final RegionFile region, boolean includeLighting, ForkJoinPool pool) throws IOException {
+		final RegionChecksums sums = new RegionChecksums(includeLighting);
+		RegionFile.forEachChunk(pool, new RegionFile.ChunkOperation() {
+			@Override
+			public void apply(int index) throws IOException {
+				ChunkData chunk = region.chunkAt(index);
+				if (chunk != null) {
+					sums.computeChunk(index, chunk);
+				}
+			}
+		});
+		return sums;
+	}
+
+	private void computeChunk(int index, ChunkData chunk) {
+		Digest digest = new Digest(includesLighting);
+		digest.updateInt(chunk.getTimestamp());
+		digest.update(chunk.getChunkRootTag());
+		chunkSums[index] = digest.getValue();
+
+		NBTCompound level = chunk.getChunkRootTag().getCompound("Level");
+		NBTList sections = (level == null) ? null : sectionList(level.get("Sections"));
+		int[] sums = new int[(sections == null) ? 0 : sections.size()];
+		for (int s = 0; s < sums.length; ++s) {
+			digest.reset();
+			digest.update(sections.get(s));
+			sums[s] = digest.getValue();
+		}
+		sectionSums[index] = sums;
+	}
+
+	private static NBTList sectionList(Object value) {
+		if (value instanceof NBTList && ((NBTList) value).getElementType() == NBTTypes.TYPE_COMPOUND) {
+			return (NBTList) value;
+		}
+		return null;
+	}
+
+	// Takes the chunks of a region written in parts, such as a seekable archive's frames
+	void merge(RegionChecksums part) {
+		for (int i = 0; i < 1024; ++i) {
+			if (part.sectionSums[i] != null) {
+				chunkSums[i] = part.chunkSums[i];
+				sectionSums[i] = part.sectionSums[i];
+			}
+		}
+	}
+
+	// What differs between the region as packed and as read back, by region-local chunk
+	List<String> compare(RegionChecksums actual) {
+		List<String> mismatches = new ArrayList<String>();
+		for (int i = 0; i < 1024; ++i) {
+			String chunk = "chunk " + (i & 31) + ", " + (i >> 5);
+			int[] expected = sectionSums[i];
+			int[] found = actual.sectionSums[i];
+			if (expected == null && found == null) {
+				continue;
+			} else if (found == null) {
+				mismatches.add(chunk + " is missing");
+			} else if (expected == null) {
+				mismatches.add(chunk + " was not in the original");
+			} else if (chunkSums[i] != actual.chunkSums[i] || expected.length != found.length) {
+				mismatches.add(chunk + " differs");
+			} else {
+				for (int s = 0; s < expected.length; ++s) {
+					if (expected[s] != found[s]) {
+						mismatches.add(chunk + " section " + s + " differs");
+					}
+				}
+			}
+		}
+		return mismatches;
+	}
+
+	// "Section Counts" is -1 for empty slots, and "Sections" holds each chunk's sections in turn
+	NBTCompound toTag() {
+		int[] counts = new int[1024];
+		int total = 0;
+		for (int i = 0; i < 1024; ++i) {
+			counts[i] = (sectionSums[i] == null) ? -1 : sectionSums[i].length;
+			total += Math.max(0, counts[i]);
+		}
+		int[] sections = new int[total];
+		int position = 0;
+		for (int[] sums : sectionSums) {
+			if (sums != null) {
+				System.arraycopy(sums, 0, sections, position, sums.length);
+				position += sums.length;
+			}
+		}
+
+		NBTCompound tag = new NBTCompound();
+		tag.put("Algorithm", ALGORITHM);
+		tag.put("Lighting", (byte) (includesLighting ? 1 : 0));
+		tag.put("Chunks", chunkSums.clone());
+		tag.put("Section Counts", counts);
+		tag.put("Sections", sections);
+		return tag;
+	}
+
+	// Null for checksums of an algorithm this version doesn't know
+	static RegionChecksums fromTag(NBTCompound tag) throws IOException {
+		if (!ALGORITHM.equals(tag.get("Algorithm"))) {
+			return null;
+		}
+		Object lighting = tag.get("Lighting");
+		Object chunks = tag.get("Chunks");
+		Object counts = tag.get("Section Counts");
+		Object sections = tag.get("Sections");
+		if (!(chunks instanceof int[]) || ((int[]) chunks).length != 1024
+				|| !(counts instanceof int[]) || ((int[]) counts).length != 1024 || !(sections instanceof int[])) {
+			throw new IOException("Malformed archive checksums");
+		}
+
+		RegionChecksums sums = new RegionChecksums(lighting instanceof Byte && (Byte) lighting != 0);
+		System.arraycopy((int[]) chunks, 0, sums.chunkSums, 0, 1024);
+		int position = 0;
+		for (int i = 0; i < 1024; ++i) {
+			int count = ((int[]) counts)[i];
+			if (count < 0) {
+				continue;
+			} else if (position + count > ((int[]) sections).length) {
+				throw new IOException("Malformed archive checksums");
+			}
+			sums.sectionSums[i] = Arrays.copyOfRange((int[]) sections, position, position + count);
+			position += count;
+		}
+		return sums;
+	}
+
+	// Feeds a tag tree to the CRC in a fixed form: each value's type, then its payload,
+	// big-endian, with compounds' keys sorted
+	private static class Digest {
+		private final CRC32C crc = new CRC32C();
+		private final byte[] scratch = new byte[8];
+		private final boolean includeLighting;
+
+		Digest(boolean includeLighting) {
+			this.includeLighting = includeLighting;
+		}
+
+		void reset() {
+			crc.reset();
+		}
+
+		int getValue() {
+			return (int) crc.getValue();
+		}
+
+		void update(Object value) {
+			int type = NBTTypes.typeOf(value);
+			crc.update(type);
+			switch (type) {
+			case NBTTypes.TYPE_BYTE:
+				crc.update((Byte) value);
+				break;
+			case NBTTypes.TYPE_SHORT:
+				updateShort((Short) value);
+				break;
+			case NBTTypes.TYPE_INT:
+				updateInt((Integer) value);
+				break;
+			case NBTTypes.TYPE_LONG:
+				updateLong((Long) value);
+				break;
+			case NBTTypes.TYPE_FLOAT:
+				updateInt(Float.floatToRawIntBits((Float) value));
+				break;
+			case NBTTypes.TYPE_DOUBLE:
+				updateLong(Double.doubleToRawLongBits((Double) value));
+				break;
+			case NBTTypes.TYPE_BYTE_ARRAY:
+				updateInt(((byte[]) value).length);
+				crc.update((byte[]) value);
+				break;
+			case NBTTypes.TYPE_STRING:
+				updateString((String) value);
+				break;
+			case NBTTypes.TYPE_LIST:
+				NBTList list = (NBTList) value;
+				crc.update(list.getElementType());
+				updateInt(list.size());
+				for (int i = 0; i < list.size(); ++i) {
+					update(list.get(i));
+				}
+				break;
+			case NBTTypes.TYPE_COMPOUND:
+				updateCompound((NBTCompound) value);
+				break;
+			case NBTTypes.TYPE_INT_ARRAY:
+				updateInt(((int[]) value).length);
+				for (int element : (int[]) value) {
+					updateInt(element);
+				}
+				break;
+			case NBTTypes.TYPE_LONG_ARRAY:
+				updateInt(((long[]) value).length);
+				for (long element : (long[]) value) {
+					updateLong(element);
+				}
+				break;
+			}
+		}
+
+		// Sections only by their number, as they have digests of their own
+		private void updateCompound(final NBTCompound compound) {
+			Integer[] order = new Integer[compound.size()];
+			for (int i = 0; i < order.length; ++i) {
+				order[i] = i;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return compound.getName(a).compareTo(compound.getName(b));
+				}
+			});
+
+			for (int i : order) {
+				String name = compound.getName(i);
+				if (name.equals("Last Modified") || (!includeLighting && ArchiveWriter.lightingKeys.contains(name))) {
+					continue;
+				}
+				updateString(name);
+				Object value = compound.getValue(i);
+				NBTList sections = name.equals("Sections") ? sectionList(value) : null;
+				if (sections != null) {
+					crc.update(NBTTypes.TYPE_LIST);
+					updateInt(sections.size());
+				} else {
+					update(value);
+				}
+			}
+			crc.update(NBTTypes.TYPE_END);
+		}
+
+		private void updateString(String value) {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			updateShort(bytes.length);
+			crc.update(bytes);
+		}
+
+		private void updateShort(int value) {
+			scratch[0] = (byte) (value >> 8);
+			scratch[1] = (byte) value;
+			crc.update(scratch, 0, 2);
+		}
+
+		void updateInt(int value) {
+			scratch[0] = (byte) (value >> 24);
+			scratch[1] = (byte) (value >> 16);
+			scratch[2] = (byte) (value >> 8);
+			scratch[3] = (byte) value;
+			crc.update(scratch, 0, 4);
+		}
+
+		private void updateLong(long value) {
+			updateInt((int) (value >> 32));
+			updateInt((int) value);
+		}
+	}
+}
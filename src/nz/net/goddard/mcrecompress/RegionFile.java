@@ -1,36 +1,43 @@
 package nz.net.goddard.mcrecompress;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import nz.net.goddard.mcrecompress.nbt.JNBTConverter;
+import nz.net.goddard.mcrecompress.nbt.NBTCompound;
+import nz.net.goddard.mcrecompress.nbt.NBTReader;
 
-import org.itadaki.bzip2.BZip2InputStream;
 import org.itadaki.bzip2.BZip2OutputStream;
-import org.jnbt.ByteArrayTag;
 import org.jnbt.CompoundTag;
-import org.jnbt.IntTag;
-import org.jnbt.ListTag;
-import org.jnbt.NBTInputStream;
-import org.jnbt.NBTOutputStream;
-import org.jnbt.StringTag;
 import org.jnbt.Tag;
 
 
 public class RegionFile {
-	private static final String[] combineKeys = {"Blocks", "Add", "Data", "BlockLight", "SkyLight"};
+	static final String[] combineKeys = {"Blocks", "Add", "Data", "BlockLight", "SkyLight"};
 	private static final Integer[] blockLengths = {4096, 2048, 2048, 2048, 2048};
 	public static Map<String, Integer> combineBlockLengths;
 	static {
@@ -46,157 +53,340 @@ public class RegionFile {
 	
 	private ChunkData[] chunks;
 	
+	// Lazily parsed regions keep the compressed region and its header tables,
+	// decoding chunks only when they are first accessed
+	private ByteBuffer source;
+	private int[] locations;
+	private int[] timestamps;
+	private Path sourceFile;
+	private static final Pattern regionName = Pattern.compile("r\\.(-?\\d+)\\.(-?\\d+)\\.mca");
+	
+	// Set when the archive this came from left out the lighting arrays and height maps
+	private boolean lightingStripped = false;
+	private ChunkCompressionProfile chunkCompression = ChunkCompressionProfile.DEFAULT;
+	// Checksums the archive this came from was written with, if any
+	private RegionChecksums storedChecksums = null;
+	
 	private RegionFile() {
 		chunks = new ChunkData[1024];
 	}
 	
+	static RegionFile empty() {
+		return new RegionFile();
+	}
+	
 	public void setChunk(int index, ChunkData chunk) {
 		chunks[index] = chunk;
+		if (locations != null) {
+			// Replaced chunks must not be reloaded from the source
+			locations[index] = 0;
+		}
 	}
 	
 	public ChunkData getChunk(int rx, int rz) {
 		int offset = rz * 32 + rx;
-		return chunks[offset];
+		try {
+			return loadChunk(offset);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
 	}
 	
-	public static RegionFile parse(byte[] data) throws IOException {
-		RegionFile region = new RegionFile();
-		
-		byte[] locationData = Arrays.copyOfRange(data, 0, 4096);
-		byte[] timestampData = Arrays.copyOfRange(data, 4096, 4096 + 4096);
-		
-		ByteBuffer locations = ByteBuffer.wrap(locationData);
-		locations.order(ByteOrder.BIG_ENDIAN);
-		ByteBuffer timestamps = ByteBuffer.wrap(timestampData);
-		timestamps.order(ByteOrder.BIG_ENDIAN);
-		
-		for (int i = 0; i < 1024; i++) {
-			int location = (locations.getInt() >> 8);
-			int timestamp = timestamps.getInt();
-			if (location != 0) {
-				region.setChunk(i, ChunkData.parse(data, location, timestamp));
-			}
+	public ChunkData readChunk(int rx, int rz) throws IOException {
+		return loadChunk(rz * 32 + rx);
+	}
+	
+	public boolean hasChunk(int rx, int rz) {
+		int offset = rz * 32 + rx;
+		return chunks[offset] != null || (source != null && locations[offset] != 0);
+	}
+	
+	public int getTimestamp(int rx, int rz) {
+		int offset = rz * 32 + rx;
+		if (chunks[offset] != null) {
+			return chunks[offset].getTimestamp();
+		} else if (source != null && locations[offset] != 0) {
+			return timestamps[offset];
 		}
-		
-		return region;
+		return 0;
 	}
 	
-	public static RegionFile fromArchive(Tag rootTag) {
-		assert(rootTag instanceof CompoundTag);
-		
-		CompoundTag root = (CompoundTag) rootTag;
-		Tag versionTag = root.getValue().get("MRI Version");
-		assert(versionTag != null);
-		assert(versionTag instanceof StringTag);
-		assert(((StringTag) versionTag).getValue().equals("1.0"));
-		
-		RegionFile region = new RegionFile();
-		
-		ListTag chunkList = (ListTag) root.getValue().get("Chunks");
-		for (Tag chunkTag : chunkList.getValue()) {
-			CompoundTag chunkRoot = (CompoundTag) chunkTag;
-			
-			// Remove timestamp field, pass separately
-			Map<String, Tag> chunkFields = new HashMap<String, Tag>(chunkRoot.getValue());
-			IntTag timestamp = (IntTag) chunkFields.remove("Last Modified");
-			chunkRoot = new CompoundTag(chunkRoot.getName(), chunkFields);
-			
-			ChunkData chunk;
-			if (timestamp == null) {
-				chunk = new ChunkData(0, chunkTag);
+	public boolean isChunkLoaded(int rx, int rz) {
+		return chunks[rz * 32 + rx] != null;
+	}
+	
+	// Drops a decoded chunk from a lazy region; it is decoded again on next access
+	public void releaseChunk(int rx, int rz) {
+		int offset = rz * 32 + rx;
+		if (source != null && locations[offset] != 0) {
+			chunks[offset] = null;
+		}
+	}
+	
+	private ChunkData loadChunk(int index) throws IOException {
+		if (chunks[index] == null && source != null && locations[index] != 0) {
+			int compression = source.get(locations[index] * 4096 + 4) & 255;
+			if ((compression & RegionFileWriter.EXTERNAL_FLAG) != 0) {
+				chunks[index] = loadExternalChunk(index, compression & ~RegionFileWriter.EXTERNAL_FLAG);
 			} else {
-				chunk = new ChunkData(timestamp.getValue(), chunkTag);
+				chunks[index] = ChunkData.parse(source, locations[index], timestamps[index]);
 			}
-			
-			region.setChunk(chunk.getRegionIndex(), chunk);
 		}
-		
-		CompoundTag blockData = (CompoundTag) root.getValue().get("BlockData");
-		Map<String, Tag> combinedValues = blockData.getValue();
-		Map<String, InputStream> restoreInputs = new HashMap<String, InputStream>();
-		for (String key : combineKeys) {
-			if (combinedValues.containsKey(key)) {
-				restoreInputs.put(key, new ByteArrayInputStream(((ByteArrayTag) combinedValues.get(key)).getValue()));
-			}
+		return chunks[index];
+	}
+	
+	private ChunkData loadExternalChunk(int index, int compression) throws IOException {
+		int[] coordinates = (sourceFile == null) ? null : regionCoordinates(sourceFile);
+		if (coordinates == null) {
+			throw new IOException("Chunk " + index + " is stored in a .mcc file, but the region file's name isn't known");
 		}
-		
-		region.restoreBlockData(restoreInputs);
-		
-		return region;
+		Path file = RegionFileWriter.externalChunkPath(sourceFile.toAbsolutePath().getParent(),
+				coordinates[0] * 32 + (index & 31), coordinates[1] * 32 + (index >> 5));
+		return ChunkData.parseExternal(Files.readAllBytes(file), compression, timestamps[index]);
 	}
 	
-	private void restoreBlockData(Map<String, InputStream> restoreInputs) {
-		// Restore grouped data
-		for (int y = 0; y < 16; y++) {
-			for (int i = 0; i < 1024; ++i) {
-				if (chunks[i] != null) {
-					try {
-						chunks[i].regenerateYLayerData(y, combineBlockLengths, restoreInputs);
-					} catch (IOException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
+	// Region coordinates from an r.X.Z.mca style file name, or null
+	static int[] regionCoordinates(Path file) {
+		Matcher matcher = regionName.matcher(file.getFileName().toString());
+		if (!matcher.matches()) {
+			return null;
+		}
+		return new int[] {Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2))};
+	}
+	
+	// Deletes a region file, and the .mcc files of any of its chunks stored outside it
+	static void deleteRegionFile(Path file) throws IOException {
+		int[] coordinates = regionCoordinates(file);
+		if (coordinates != null) {
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				ByteBuffer header = ByteBuffer.allocate(4096);
+				while (header.hasRemaining() && channel.read(header) >= 0) {
+				}
+				ByteBuffer compression = ByteBuffer.allocate(1);
+				for (int i = 0; i < header.position() / 4; ++i) {
+					long location = (long) (header.getInt(i * 4) >>> 8) * 4096;
+					compression.clear();
+					if (location != 0 && channel.read(compression, location + 4) == 1 && (compression.get(0) & RegionFileWriter.EXTERNAL_FLAG) != 0) {
+						Files.deleteIfExists(RegionFileWriter.externalChunkPath(file.toAbsolutePath().getParent(),
+								coordinates[0] * 32 + (i & 31), coordinates[1] * 32 + (i >> 5)));
 					}
 				}
 			}
 		}
+		Files.delete(file);
 	}
 	
-	public Tag makeArchive() {
-		Map<String, Tag> rootNodes = new HashMap<String, Tag>();
-		rootNodes.put("MRI Version", new StringTag("MRI Version", "1.0"));
-
-		// Output streams
-		Map<String, OutputStream> combinedStreams = new HashMap<String, OutputStream>();
+	// Maps a whole file and pages it in, so the stage after reading doesn't wait on the disk,
+	// and the heap holds no copy of it
+	static MappedByteBuffer loadMapped(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			mapped.load();
+			return mapped;
+		}
+	}
+	
+	// The .mcc files of chunks too large for the region are read from beside this file
+	void setSourceFile(Path sourceFile) {
+		this.sourceFile = sourceFile;
+	}
+	
+	ChunkData chunkAt(int index) {
+		try {
+			return loadChunk(index);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	// Decodes every chunk not yet loaded, in parallel when a pool is given
+	public void loadAllChunks(ForkJoinPool pool) throws IOException {
+		forEachChunk(pool, new ChunkOperation() {
+			@Override
+			public void apply(int index) throws IOException {
+				loadChunk(index);
+			}
+		});
+	}
+	
+	interface ChunkOperation {
+		void apply(int index) throws IOException;
+	}
+	
+	// A pool for forEachChunk, or null to run on the calling thread. The caller shuts it down.
+	static ForkJoinPool newChunkPool(int threads) {
+		return (threads > 1) ? new ForkJoinPool(threads) : null;
+	}
+	
+	// A pool for decoding an archive's bzip2 blocks, on every core whatever the chunk
+	// parallelism, or null on a single core. The caller shuts it down.
+	static ForkJoinPool newDecodePool() {
+		return newChunkPool(Runtime.getRuntime().availableProcessors());
+	}
+	
+	// Chunk slots are independent, so ranges of them can be processed on a fork-join pool.
+	// Results are stored by index, so output order doesn't depend on scheduling.
+	private static class ChunkRangeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private static final int SPLIT_THRESHOLD = 16;
 		
-		for (int i = 0; i < combineKeys.length; i++) {
-			String key = combineKeys[i];
-			
-			combinedStreams.put(key, new ByteArrayOutputStream());
+		private final ChunkOperation operation;
+		private final int start;
+		private final int end;
+		
+		public ChunkRangeTask(ChunkOperation operation, int start, int end) {
+			this.operation = operation;
+			this.start = start;
+			this.end = end;
 		}
 		
-		// Extract grouped data
-		for (int y = 0; y < 16; y++) {
-			for (int i = 0; i < 1024; ++i) {
-				if (chunks[i] != null) {
+		@Override
+		protected void compute() {
+			if (end - start <= SPLIT_THRESHOLD) {
+				for (int i = start; i < end; ++i) {
 					try {
-						chunks[i].extractYLayerData(y, combineBlockLengths, combinedStreams);
+						operation.apply(i);
 					} catch (IOException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
+						throw new RuntimeException(e);
 					}
 				}
+			} else {
+				int middle = (start + end) >>> 1;
+				invokeAll(new ChunkRangeTask(operation, start, middle), new ChunkRangeTask(operation, middle, end));
+			}
+		}
+	}
+	
+	static void forEachChunk(ForkJoinPool pool, ChunkOperation operation) throws IOException {
+		forEachChunk(pool, 0, 1024, operation);
+	}
+	
+	// Only the slots from start up to end
+	static void forEachChunk(ForkJoinPool pool, int start, int end, ChunkOperation operation) throws IOException {
+		if (pool == null) {
+			for (int i = start; i < end; ++i) {
+				operation.apply(i);
 			}
+			return;
 		}
 		
-		// Output chunk tags
-		List<Tag> chunkTags = new ArrayList<Tag>();
+		try {
+			pool.invoke(new ChunkRangeTask(operation, start, end));
+		} catch (RuntimeException e) {
+			for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+			}
+			throw e;
+		}
+	}
+	
+	public static RegionFile parse(byte[] data) throws IOException {
+		return parse(ByteBuffer.wrap(data));
+	}
+	
+	public static RegionFile parse(ByteBuffer data) throws IOException {
+		return parse(data, null);
+	}
+	
+	public static RegionFile parse(ByteBuffer data, ForkJoinPool pool) throws IOException {
+		return parse(data, pool, null);
+	}
+	
+	// The file the data was read from, for chunks stored in .mcc files beside it
+	public static RegionFile parse(ByteBuffer data, ForkJoinPool pool, Path file) throws IOException {
+		ConversionMetrics.Timer timer = ConversionMetrics.start(ConversionMetrics.PARSE);
+		RegionFile region = parseLazy(data);
+		region.sourceFile = file;
+		region.loadAllChunks(pool);
+		
+		// Fully decoded, so don't pin the source buffer
+		region.source = null;
+		timer.stop(data.remaining(), 0, region.countChunks(), region.countSections());
+		return region;
+	}
+	
+	// Of the chunks decoded so far
+	int countChunks() {
+		int count = 0;
 		for (int i = 0; i < 1024; ++i) {
 			if (chunks[i] != null) {
-				chunkTags.add(chunks[i].generateChunkTag());
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	int countSections() {
+		int count = 0;
+		for (int i = 0; i < 1024; ++i) {
+			for (int y = 0; chunks[i] != null && y < 16; ++y) {
+				if (chunks[i].getSection(y) != null) {
+					count++;
+				}
 			}
 		}
-		Tag chunkList = new ListTag("Chunks", CompoundTag.class, chunkTags);
-		rootNodes.put("Chunks", chunkList);
+		return count;
+	}
+	
+	public static RegionFile parseLazy(ByteBuffer data) {
+		RegionFile region = new RegionFile();
+		region.source = data;
+		region.locations = new int[1024];
+		region.timestamps = new int[1024];
+		
+		// Location and timestamp tables are read in place, not copied out
+		ByteBuffer header = data.duplicate();
+		header.order(ByteOrder.BIG_ENDIAN);
+		
+		for (int i = 0; i < 1024; i++) {
+			region.locations[i] = (header.getInt(i * 4) >> 8);
+			region.timestamps[i] = header.getInt(4096 + i * 4);
+		}
 		
-		// Add block data
-		Map<String, Tag> blockDataNodes = new HashMap<String, Tag>();
-		blockDataNodes.put("Order", new StringTag("Order", "Section YZX"));
-		for (String key : combineKeys) {
-			ByteArrayOutputStream stream = (ByteArrayOutputStream) combinedStreams.get(key);
-			blockDataNodes.put(key, new ByteArrayTag(key, stream.toByteArray()));
-		}
-		rootNodes.put("BlockData", new CompoundTag("BlockData", blockDataNodes));
+		return region;
+	}
+	
+	public static RegionFile fromArchive(Tag rootTag) throws IOException {
+		return fromArchive(JNBTConverter.toCompound((CompoundTag) rootTag));
+	}
+	
+	public static RegionFile fromArchive(NBTCompound root) throws IOException {
+		ConversionMetrics.Timer timer = ConversionMetrics.start(ConversionMetrics.FROM_ARCHIVE);
+		RegionFile region = ArchiveReader.fromArchiveTree(root);
+		timer.stop(0, 0, region.countChunks(), region.countSections());
+		return region;
+	}
+	
+	// Builds the whole archive tree in memory; writeArchive streams it instead
+	public NBTCompound makeArchive() throws IOException {
+		return makeArchive(new ArchiveOptions());
+	}
+	
+	public NBTCompound makeArchive(ArchiveOptions options) throws IOException {
+		ConversionMetrics.Timer timer = ConversionMetrics.start(ConversionMetrics.MAKE_ARCHIVE);
+		ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+		ArchiveWriter writer = new ArchiveWriter(bytesOut, options);
+		writer.writeRegion(this);
+		writer.close();
 		
-		// Root tag
-		CompoundTag root = new CompoundTag("Region", rootNodes);
-		return root;
+		NBTReader reader = new NBTReader(new ByteArrayInputStream(bytesOut.toByteArray()));
+		try {
+			return reader.readRootCompound();
+		} finally {
+			reader.release();
+			timer.stop(0, bytesOut.size(), countChunks(), countSections());
+		}
 	}
 	
 	public void writeArchive(File file) throws IOException {
 		writeArchive(file, deduceCompression(file));
 	}
 	
-	private static ArchiveCompression deduceCompression(File file) {
+	static ArchiveCompression deduceCompression(File file) {
 		if (file.toString().endsWith(".bz2")) {
 			return ArchiveCompression.BZIP2;
 		} else if (file.toString().endsWith(".gz")) {
@@ -207,96 +397,229 @@ public class RegionFile {
 	}
 
 	public void writeArchive(File file, ArchiveCompression compression) throws IOException {
-		OutputStream fileOut = new FileOutputStream(file);
-		if (compression == ArchiveCompression.BZIP2) {
-			fileOut = new BZip2OutputStream(fileOut);
+		writeArchive(file, compression, null);
+	}
+	
+	// With a pool, the archive is compressed in independent blocks on the pool's threads
+	public void writeArchive(File file, ArchiveCompression compression, ExecutorService pool) throws IOException {
+		writeArchive(file, compression, pool, new ArchiveOptions());
+	}
+	
+	public void writeArchive(File file, ArchiveCompression compression, ExecutorService pool, ArchiveOptions options) throws IOException {
+		writeArchive(new BufferedOutputStream(new FileOutputStream(file)), compression, pool, options);
+	}
+	
+	// Compresses the archive onto out, which is closed afterwards
+	public void writeArchive(OutputStream out, ArchiveCompression compression, ExecutorService pool, ArchiveOptions options) throws IOException {
+		ConversionMetrics.Timer timer = ConversionMetrics.start(ConversionMetrics.WRITE_ARCHIVE);
+		CountingOutputStream compressedOut = new CountingOutputStream(out);
+		out = compressedOut;
+		if (pool != null && compression != ArchiveCompression.NONE) {
+			out = new ParallelCompressionOutputStream(out, compression, pool);
+		} else if (compression == ArchiveCompression.BZIP2) {
+			out = new BZip2OutputStream(out);
+		} else if (compression == ArchiveCompression.GZIP) {
+			out = new BufferedOutputStream(new GZIPOutputStream(out));
+		}
+		
+		CountingOutputStream rawOut = new CountingOutputStream(out);
+		ArchiveWriter writer = new ArchiveWriter(rawOut, options);
+		try {
+			writer.writeRegion(this);
+			writer.close();
+		} finally {
+			// Also ends the compressor's pending blocks after a failure; a second close does nothing
+			out.close();
+		}
+		timer.stop(rawOut.getCount(), compressedOut.getCount(), countChunks(), countSections());
+	}
+	
+	// Seekable archives (.mrs) compress groups of chunks separately, so single chunks can be read quickly
+	public void writeSeekableArchive(File file, ArchiveCompression compression, ArchiveOptions options, ExecutorService pool) throws IOException {
+		SeekableArchive.write(this, file, compression, options, pool);
+	}
+	
+	public static ChunkData readSeekableChunk(File file, int rx, int rz) throws IOException {
+		try (SeekableArchive archive = SeekableArchive.open(file)) {
+			return archive.readChunk(rx, rz);
 		}
-		NBTOutputStream nbtOut = new NBTOutputStream(fileOut, compression == ArchiveCompression.GZIP);
-		nbtOut.writeTag(makeArchive());
-		nbtOut.close();
 	}
 	
 	public static RegionFile readArchive(File file) throws IOException {
 		return readArchive(file, deduceCompression(file));
 	}
+	
+	public static RegionFile readArchive(File file, ExecutorService pool) throws IOException {
+		return readArchive(file, deduceCompression(file), pool);
+	}
+	
+	public static RegionFile readArchive(File file, ExecutorService pool, SectionStore store) throws IOException {
+		return readArchive(file, deduceCompression(file), pool, store);
+	}
 		
 	public static RegionFile readArchive(File file, ArchiveCompression compression) throws IOException {
-    	byte[] fileData = Files.readAllBytes(file.toPath());
-    	NBTInputStream reparser;
-    	if (compression == ArchiveCompression.BZIP2) {
-    		reparser = new NBTInputStream(new BZip2InputStream(new ByteArrayInputStream(fileData), false), false);
-    	} else {
-    		reparser = new NBTInputStream(new ByteArrayInputStream(fileData), compression == ArchiveCompression.GZIP);
-    	}
-    	Tag root = reparser.readTag();
-    	RegionFile region = RegionFile.fromArchive(root);
-    	return region;
+		return readArchive(file, compression, null);
 	}
 	
-	public static RegionFile readMCA(File file) throws IOException {
-    	byte[] fileData = Files.readAllBytes(file.toPath());
-    	return RegionFile.parse(fileData);
+	// With a pool, bzip2 blocks are decoded concurrently
+	public static RegionFile readArchive(File file, ArchiveCompression compression, ExecutorService pool) throws IOException {
+		return readArchive(file, compression, pool, null);
 	}
-
-	public void writeRegionFile(File file) throws IOException {
-		byte[][] chunkDataBlocks = new byte[1024][];
-		int[] chunkOffsets = new int[1024];
-		int[] chunkPositionHeaders = new int[1024];
-		
-		for (int i = 0; i < 1024; ++i) {
-			if (chunks[i] != null) {
-				try {
-					chunkDataBlocks[i] = chunks[i].generateChunkBlock();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
+	
+	public static RegionFile readArchive(File file, ArchiveCompression compression, ExecutorService pool, SectionStore store) throws IOException {
+		if (pool != null && compression == ArchiveCompression.BZIP2) {
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				MappedByteBuffer fileData = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				return readArchive(fileData, compression, pool, store);
 			}
 		}
-
-		int position = 2;
-		for (int i = 0; i < 1024; ++i) {
-			
-			if (chunkDataBlocks[i] != null) {
-				int size = chunkDataBlocks[i].length;
-				int chunks = size / 4096;
-				chunkOffsets[i] = position * 4096;
-				chunkPositionHeaders[i] = (position << 8) + (chunks & 255);
-				position += chunks;
+		
+		try (InputStream fileIn = new BufferedInputStream(new FileInputStream(file))) {
+			if (compression == ArchiveCompression.BZIP2) {
+				return readArchive(new ConcatenatedBZip2InputStream(fileIn), store);
+			} else if (compression == ArchiveCompression.GZIP) {
+				return readArchive(new GZIPInputStream(fileIn), store);
 			} else {
-				chunkOffsets[i] = 0;
+				return readArchive(fileIn, store);
 			}
 		}
-		int finalLength = position * 4096;
-		
-		FileOutputStream fileOut = new FileOutputStream(file);
-		DataOutputStream out = new DataOutputStream(fileOut);
-		
-		// Chunk positions
-		for (int i = 0; i < 1024; ++i) {
-			out.writeInt(chunkPositionHeaders[i]);
+	}
+	
+	// Reads an archive already in memory, such as a whole file read ahead of time
+	public static RegionFile readArchive(ByteBuffer data, ArchiveCompression compression, ExecutorService pool, SectionStore store) throws IOException {
+		if (pool != null && compression == ArchiveCompression.BZIP2) {
+			return readArchive(new ParallelBZip2InputStream(data, pool), store);
+		} else if (compression == ArchiveCompression.BZIP2) {
+			return readArchive(new ConcatenatedBZip2InputStream(new ByteBufferInputStream(data)), store);
+		} else if (compression == ArchiveCompression.GZIP) {
+			return readArchive(new GZIPInputStream(new ByteBufferInputStream(data)), store);
+		} else {
+			return readArchive(new ByteBufferInputStream(data), store);
 		}
-		
-		// Timestamps
-		for (int i = 0; i < 1024; ++i) {
-			if (chunks[i] != null) {
-				out.writeInt(chunks[i].getTimestamp());
-			} else {
-				out.writeInt(0);
+	}
+	
+	// Reads an uncompressed MRI stream
+	public static RegionFile readArchive(InputStream in) throws IOException {
+		return readArchive(in, null);
+	}
+	
+	public static RegionFile readArchive(InputStream in, SectionStore store) throws IOException {
+		ConversionMetrics.Timer timer = ConversionMetrics.start(ConversionMetrics.READ_ARCHIVE);
+		CountingInputStream rawIn = new CountingInputStream(in);
+		RegionFile region = new ArchiveReader(new BufferedInputStream(rawIn), store).readRegion();
+		timer.stop(rawIn.getCount(), 0, region.countChunks(), region.countSections());
+		return region;
+	}
+	
+	public static RegionFile readMCA(File file) throws IOException {
+		return readMCA(file, false);
+	}
+	
+	public static RegionFile readMCA(File file, boolean lazy) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer fileData = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (lazy) {
+				RegionFile region = RegionFile.parseLazy(fileData);
+				region.setSourceFile(file.toPath());
+				return region;
 			}
+			return RegionFile.parse(fileData, null, file.toPath());
 		}
-		
-		int outAmount = 1024 * 8;
-		// Chunk data
-		for (int i = 0; i < 1024; ++i) {
-			if (chunkDataBlocks[i] != null) {
-				assert(outAmount == chunkOffsets[i]);
-				out.write(chunkDataBlocks[i]);
-				outAmount += chunkDataBlocks[i].length;
-			}
+	}
+	
+	public static RegionFile readMCA(File file, ForkJoinPool pool) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer fileData = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return RegionFile.parse(fileData, pool, file.toPath());
+		}
+	}
+
+	public void writeRegionFile(File file) throws IOException {
+		writeRegionFile(file, null);
+	}
+	
+	// Deflate settings for the chunks when the region is written in .mca form
+	public void setChunkCompression(ChunkCompressionProfile chunkCompression) {
+		this.chunkCompression = chunkCompression;
+	}
+	
+	public ChunkCompressionProfile getChunkCompression() {
+		return chunkCompression;
+	}
+	
+	public boolean isLightingStripped() {
+		return lightingStripped;
+	}
+	
+	void setLightingStripped(boolean lightingStripped) {
+		this.lightingStripped = lightingStripped;
+	}
+	
+	RegionChecksums getStoredChecksums() {
+		return storedChecksums;
+	}
+	
+	void setStoredChecksums(RegionChecksums storedChecksums) {
+		this.storedChecksums = storedChecksums;
+	}
+	
+	// Recomputes lighting and height maps, in parallel per chunk when a pool is given
+	public void relight(ForkJoinPool pool) throws IOException {
+		new Relighter(pool).relight(this);
+		lightingStripped = false;
+	}
+	
+	// Chunks too large for the region are written to .mcc files beside it
+	public void writeRegionFile(File file, ForkJoinPool pool) throws IOException {
+		RegionFileWriter writer;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			writer = writeRegionFile(channel, pool, file.getAbsoluteFile().toPath().getParent());
+		}
+		writer.commitExternals();
+	}
+	
+	// Writes onto an open channel. Oversized chunks are left in temporary .mcc files until the
+	// returned writer's commitExternals, or removed if the write fails.
+	RegionFileWriter writeRegionFile(FileChannel channel, ForkJoinPool pool, Path externalDirectory) throws IOException {
+		ConversionMetrics.Timer timer = ConversionMetrics.start(ConversionMetrics.WRITE_REGION_FILE);
+		relightIfStripped(pool);
+		RegionFileWriter writer = new RegionFileWriter(this, externalDirectory);
+		long length;
+		try {
+			length = writer.write(channel, pool);
+		} catch (IOException | RuntimeException e) {
+			writer.discardExternals();
+			throw e;
+		}
+		timer.stop(0, length, countChunks(), countSections());
+		return writer;
+	}
+	
+	public void writeRegionFile(OutputStream fileOut, ForkJoinPool pool) throws IOException {
+		writeRegionFile(fileOut, pool, null);
+	}
+	
+	// Writes the region in .mca form onto out, which is closed afterwards. Chunks too large
+	// for the region go to .mcc files in externalDirectory, or fail the write without one.
+	public void writeRegionFile(OutputStream fileOut, ForkJoinPool pool, Path externalDirectory) throws IOException {
+		ConversionMetrics.Timer timer = ConversionMetrics.start(ConversionMetrics.WRITE_REGION_FILE);
+		relightIfStripped(pool);
+		RegionFileWriter writer = new RegionFileWriter(this, externalDirectory);
+		long length;
+		try {
+			length = writer.write(fileOut, pool);
+		} catch (IOException | RuntimeException e) {
+			writer.discardExternals();
+			throw e;
+		}
+		writer.commitExternals();
+		timer.stop(0, length, countChunks(), countSections());
+	}
+	
+	// Minecraft expects every section to carry its lighting
+	private void relightIfStripped(ForkJoinPool pool) throws IOException {
+		if (lightingStripped) {
+			relight(pool);
 		}
-		
-		assert(outAmount == finalLength);
-		
-		out.close();
 	}
 }
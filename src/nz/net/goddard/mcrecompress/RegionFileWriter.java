@@ -0,0 +1,193 @@
+package nz.net.goddard.mcrecompress;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+
+// Writes a region in .mca form. Onto a file, chunks are compressed a batch at a time and
+// each batch's blocks written with one gathering write, leaving the header to be filled in
+// last; onto a stream, every block has to be ready before the header can go out.
+//
+// The location table only has a byte for each chunk's sector count, so, as the game does,
+// a chunk of more than 255 sectors is written to c.X.Z.mcc beside the region instead,
+// leaving a one sector block with the external flag set on its compression type. The .mcc
+// files are written under temporary names, and only moved into place by commitExternals
+// once the caller has the region file itself written, so a failed write leaves nothing
+// behind for the old region to trip over.
+class RegionFileWriter {
+	static final int SECTOR_BYTES = 4096;
+	static final int MAX_CHUNK_SECTORS = 255;
+	static final int EXTERNAL_FLAG = 128;
+	private static final int HEADER_SECTORS = 2;
+	// Chunks compressed before their blocks are written out
+	private static final int BATCH_SIZE = 64;
+
+	private final RegionFile region;
+	private final Path externalDirectory;
+	// Temporary and final paths of the .mcc files written
+	private final List<Path[]> externals = new ArrayList<Path[]>();
+	private final Set<List<Integer>> externalChunks = new HashSet<List<Integer>>();
+	private final ByteBuffer header = ByteBuffer.allocate(HEADER_SECTORS * SECTOR_BYTES);
+	private int sector = HEADER_SECTORS;
+
+	// Without an external directory, a chunk too large for the region is an error
+	RegionFileWriter(RegionFile region, Path externalDirectory) {
+		this.region = region;
+		this.externalDirectory = externalDirectory;
+	}
+
+	static Path externalChunkPath(Path directory, int chunkX, int chunkZ) {
+		return directory.resolve("c." + chunkX + "." + chunkZ + ".mcc");
+	}
+
+	// Returns the region file's length
+	long write(FileChannel channel, ForkJoinPool pool) throws IOException {
+		byte[][] blocks = new byte[BATCH_SIZE][];
+		for (int start = 0; start < 1024; start += BATCH_SIZE) {
+			long position = (long) sector * SECTOR_BYTES;
+			generateBlocks(blocks, start, pool);
+			List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(BATCH_SIZE);
+			for (byte[] block : blocks) {
+				if (block != null) {
+					buffers.add(ByteBuffer.wrap(block));
+				}
+			}
+			writeFully(channel, buffers.toArray(new ByteBuffer[buffers.size()]), position);
+		}
+
+		header.clear();
+		writeFully(channel, new ByteBuffer[] {header}, 0);
+		channel.truncate((long) sector * SECTOR_BYTES);
+		return (long) sector * SECTOR_BYTES;
+	}
+
+	// Closes out afterwards
+	long write(OutputStream out, ForkJoinPool pool) throws IOException {
+		List<byte[]> allBlocks = new ArrayList<byte[]>();
+		byte[][] blocks = new byte[BATCH_SIZE][];
+		for (int start = 0; start < 1024; start += BATCH_SIZE) {
+			generateBlocks(blocks, start, pool);
+			for (byte[] block : blocks) {
+				if (block != null) {
+					allBlocks.add(block);
+				}
+			}
+		}
+
+		try {
+			out.write(header.array());
+			for (byte[] block : allBlocks) {
+				out.write(block);
+			}
+		} finally {
+			out.close();
+		}
+		return (long) sector * SECTOR_BYTES;
+	}
+
+	// Compresses the batch of chunks from start, then places them, in slot order
+	private void generateBlocks(final byte[][] blocks, final int start, ForkJoinPool pool) throws IOException {
+		RegionFile.forEachChunk(pool, start, start + blocks.length, new RegionFile.ChunkOperation() {
+			@Override
+			public void apply(int index) throws IOException {
+				ChunkData chunk = region.chunkAt(index);
+				blocks[index - start] = (chunk == null) ? null : generateBlock(chunk);
+			}
+		});
+
+		for (int i = 0; i < blocks.length; ++i) {
+			int index = start + i;
+			if (blocks[i] == null) {
+				continue;
+			}
+			int sectors = blocks[i].length / SECTOR_BYTES;
+			if (sector + sectors >= 1 << 24) {
+				throw new IOException("Region is too large for a region file");
+			}
+			header.putInt(index * 4, (sector << 8) | sectors);
+			header.putInt(SECTOR_BYTES + index * 4, region.chunkAt(index).getTimestamp());
+			sector += sectors;
+		}
+	}
+
+	private byte[] generateBlock(ChunkData chunk) throws IOException {
+		byte[] block = chunk.generateChunkBlock(region.getChunkCompression());
+		if (block.length / SECTOR_BYTES <= MAX_CHUNK_SECTORS) {
+			return block;
+		}
+		if (externalDirectory == null) {
+			throw new IOException("Chunk " + chunk.getX() + ", " + chunk.getZ() + " is too large for a region file");
+		}
+
+		// The external file holds just the compressed NBT
+		ByteBuffer blockHeader = ByteBuffer.wrap(block);
+		int length = blockHeader.getInt(0);
+		Path tempFile = Files.createTempFile(externalDirectory, "c.", ".mcc.t");
+		synchronized (externals) {
+			externals.add(new Path[] {tempFile, externalChunkPath(externalDirectory, chunk.getX(), chunk.getZ())});
+			externalChunks.add(Arrays.asList(chunk.getX(), chunk.getZ()));
+		}
+		try (OutputStream out = Files.newOutputStream(tempFile)) {
+			out.write(block, 5, length - 1);
+		}
+
+		byte[] stub = new byte[SECTOR_BYTES];
+		ByteBuffer stubHeader = ByteBuffer.wrap(stub);
+		stubHeader.putInt(0, 1);
+		stubHeader.put(4, (byte) (block[4] | EXTERNAL_FLAG));
+		return stub;
+	}
+
+	// World chunk coordinates of the chunks written to .mcc files
+	Set<List<Integer>> getExternalChunks() {
+		return externalChunks;
+	}
+
+	// Moves the .mcc files that don't replace existing ones into place, leaving the rest
+	// for commitExternals. No region can be reading from those yet.
+	void commitNewExternals() throws IOException {
+		Iterator<Path[]> pending = externals.iterator();
+		while (pending.hasNext()) {
+			Path[] external = pending.next();
+			if (!Files.exists(external[1])) {
+				Files.move(external[0], external[1], StandardCopyOption.ATOMIC_MOVE);
+				pending.remove();
+			}
+		}
+	}
+
+	// Moves the .mcc files into place, replacing any from before
+	void commitExternals() throws IOException {
+		for (Path[] external : externals) {
+			Files.move(external[0], external[1], StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		externals.clear();
+	}
+
+	void discardExternals() throws IOException {
+		for (Path[] external : externals) {
+			Files.deleteIfExists(external[0]);
+		}
+		externals.clear();
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer[] buffers, long position) throws IOException {
+		channel.position(position);
+		for (ByteBuffer buffer : buffers) {
+			while (buffer.hasRemaining()) {
+				channel.write(buffers);
+			}
+		}
+	}
+}
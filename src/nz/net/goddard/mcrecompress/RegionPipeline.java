@@ -0,0 +1,181 @@
+package nz.net.goddard.mcrecompress;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+// Passes region files through a series of stages, each with its own threads, joined by
+// bounded queues. A stage that falls behind fills its queue and blocks the one before it,
+// so only a few regions are held in memory at once while the disk and CPU stages overlap.
+// Regions go in largest first, so a big region isn't left running alone at the end.
+// Each stage's time, and the time it spends waiting on its neighbours, is recorded in
+// ConversionMetrics as <prefix>.<stage>.
+//
+// With a MemoryBudget, a region only enters the pipeline once its estimated working set
+// fits, so the threads given are an upper bound and fewer regions run at once when they
+// are large. The time spent waiting for room is recorded as <prefix>.admit.
+class RegionPipeline<J extends RegionPipeline.Job> {
+	static class Job {
+		final Path file;
+		final long size;
+		// Estimated memory held while the region is in the pipeline
+		long workingSet;
+		// Set by a stage to skip the remaining stages
+		boolean finished = false;
+
+		Job(Path file) throws IOException {
+			this.file = file;
+			this.size = Files.size(file);
+			this.workingSet = size;
+		}
+	}
+
+	interface Stage<J> {
+		void process(J job) throws IOException;
+	}
+
+	private static class StageEntry<J> {
+		final String name;
+		final int threads;
+		final Stage<J> stage;
+		final String metricsName;
+
+		StageEntry(String name, int threads, Stage<J> stage, String metricsName) {
+			this.name = name;
+			this.threads = threads;
+			this.stage = stage;
+			this.metricsName = metricsName;
+		}
+	}
+
+	private final Logger logger;
+	private final String metricsPrefix;
+	private final List<StageEntry<J>> stages = new ArrayList<StageEntry<J>>();
+	private final AtomicInteger failed = new AtomicInteger();
+	private MemoryBudget budget = null;
+
+	RegionPipeline(Logger logger, String metricsPrefix) {
+		this.logger = logger;
+		this.metricsPrefix = metricsPrefix;
+	}
+
+	void setMemoryBudget(MemoryBudget budget) {
+		this.budget = budget;
+	}
+
+	// Each stage queues at most as many regions as it has threads
+	void addStage(String name, int threads, Stage<J> stage) {
+		stages.add(new StageEntry<J>(name, Math.max(1, threads), stage, metricsPrefix + "." + name));
+	}
+
+	// Returns once every job has been through every stage, or failed, with the number that failed
+	int run(List<J> jobs) throws InterruptedException {
+		List<J> ordered = new ArrayList<J>(jobs);
+		Collections.sort(ordered, new Comparator<J>() {
+			@Override
+			public int compare(J a, J b) {
+				return Long.compare(b.size, a.size);
+			}
+		});
+
+		final CountDownLatch remaining = new CountDownLatch(ordered.size());
+		List<BlockingQueue<J>> queues = new ArrayList<BlockingQueue<J>>();
+		for (StageEntry<J> entry : stages) {
+			queues.add(new ArrayBlockingQueue<J>(entry.threads));
+		}
+
+		List<ExecutorService> workers = new ArrayList<ExecutorService>();
+		try {
+			for (int i = 0; i < stages.size(); ++i) {
+				ExecutorService stageWorkers = Executors.newFixedThreadPool(stages.get(i).threads);
+				workers.add(stageWorkers);
+				BlockingQueue<J> next = (i + 1 < stages.size()) ? queues.get(i + 1) : null;
+				for (int t = 0; t < stages.get(i).threads; ++t) {
+					stageWorkers.execute(new StageWorker(stages.get(i), queues.get(i), next, remaining));
+				}
+			}
+
+			ConversionMetrics.Stage admission = ConversionMetrics.stage(metricsPrefix + ".admit");
+			for (J job : ordered) {
+				if (budget != null) {
+					long waitStart = System.nanoTime();
+					budget.acquire(job.workingSet);
+					admission.recordWait(System.nanoTime() - waitStart);
+				}
+				queues.get(0).put(job);
+			}
+			remaining.await();
+		} finally {
+			for (ExecutorService stageWorkers : workers) {
+				stageWorkers.shutdownNow();
+			}
+		}
+		return failed.get();
+	}
+
+	private class StageWorker implements Runnable {
+		private final StageEntry<J> entry;
+		private final BlockingQueue<J> input;
+		private final BlockingQueue<J> output;
+		private final CountDownLatch remaining;
+
+		StageWorker(StageEntry<J> entry, BlockingQueue<J> input, BlockingQueue<J> output, CountDownLatch remaining) {
+			this.entry = entry;
+			this.input = input;
+			this.output = output;
+			this.remaining = remaining;
+		}
+
+		@Override
+		public void run() {
+			ConversionMetrics.Stage metrics = ConversionMetrics.stage(entry.metricsName);
+			try {
+				while (true) {
+					long waitStart = System.nanoTime();
+					J job = input.take();
+					metrics.recordWait(System.nanoTime() - waitStart);
+
+					ConversionMetrics.Timer timer = ConversionMetrics.start(entry.metricsName);
+					try {
+						entry.stage.process(job);
+					} catch (IOException | RuntimeException e) {
+						logger.log(Level.SEVERE, "Failed to " + entry.name + " " + job.file + ": " + e);
+						job.finished = true;
+						failed.incrementAndGet();
+					} catch (OutOfMemoryError e) {
+						// Only this region is lost; left to kill the thread, it would stall the pipeline
+						logger.log(Level.SEVERE, "Out of memory trying to " + entry.name + " " + job.file + ", try a smaller memory budget");
+						job.finished = true;
+						failed.incrementAndGet();
+					}
+					timer.stop(job.size, 0, 0, 0);
+
+					if (job.finished || output == null) {
+						if (budget != null) {
+							budget.release(job.workingSet);
+						}
+						remaining.countDown();
+					} else {
+						waitStart = System.nanoTime();
+						output.put(job);
+						metrics.recordWait(System.nanoTime() - waitStart);
+					}
+				}
+			} catch (InterruptedException e) {
+				// Shut down once the pipeline is done
+			}
+		}
+	}
+}
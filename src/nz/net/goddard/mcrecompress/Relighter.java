@@ -0,0 +1,348 @@
+package nz.net.goddard.mcrecompress;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import nz.net.goddard.mcrecompress.nbt.NBTCompound;
+
+
+// Recomputes BlockLight, SkyLight and HeightMap for a region whose archive left them out.
+// Each chunk is lit on its own first, in parallel, then one queue over the whole region
+// carries light across chunk borders. Light only ever rises while it spreads, so seeding
+// the second pass with the chunks' own results gives the same answer as lighting the
+// region in one go.
+//
+// Opacity and emission come from the vanilla block table below. Ids it doesn't list
+// (including mod blocks) are taken to be opaque and dark, so relit modded worlds can
+// differ from what the game would have stored.
+public class Relighter {
+	private static final int SKY = 0;
+	private static final int BLOCK = 1;
+
+	private static final byte[] OPACITY = new byte[4096];
+	private static final byte[] EMISSION = new byte[4096];
+	static {
+		Arrays.fill(OPACITY, (byte) 15);
+		int[] transparent = {
+			0, 6, 20, 26, 27, 28, 31, 32, 37, 38, 39, 40, 50, 51, 54, 55, 59, 63, 64, 65,
+			66, 68, 69, 70, 71, 72, 75, 76, 77, 78, 81, 83, 85, 90, 92, 93, 94, 95, 96, 101,
+			102, 104, 105, 106, 107, 111, 113, 115, 116, 117, 118, 119, 120, 122, 127, 130, 131, 132, 139, 140,
+			141, 142, 143, 144, 145, 146, 147, 148, 149, 150, 151, 154, 157, 160, 166, 171, 175
+		};
+		for (int id : transparent) {
+			OPACITY[id] = 0;
+		}
+		OPACITY[8] = OPACITY[9] = 3;		// Water
+		OPACITY[79] = 3;					// Ice
+		OPACITY[18] = OPACITY[161] = 1;		// Leaves
+		OPACITY[30] = 1;					// Cobweb
+
+		int[][] emitters = {
+			{10, 15}, {11, 15}, {39, 1}, {50, 14}, {51, 15}, {62, 13}, {74, 9}, {76, 7}, {89, 15}, {90, 11},
+			{91, 15}, {94, 9}, {117, 1}, {119, 15}, {120, 1}, {122, 1}, {124, 15}, {130, 7}, {138, 15}, {150, 9},
+			{169, 15}
+		};
+		for (int[] emitter : emitters) {
+			EMISSION[emitter[0]] = (byte) emitter[1];
+		}
+	}
+
+	private final ForkJoinPool pool;
+
+	public Relighter(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	public void relight(final RegionFile region) throws IOException {
+		final ChunkLight[] lights = new ChunkLight[1024];
+		RegionFile.forEachChunk(pool, new RegionFile.ChunkOperation() {
+			@Override
+			public void apply(int index) {
+				ChunkData chunk = region.chunkAt(index);
+				if (chunk != null) {
+					lights[index] = new ChunkLight(chunk);
+					lights[index].lightWithinChunk(lights, index);
+				}
+			}
+		});
+
+		for (int channel = SKY; channel <= BLOCK; ++channel) {
+			spreadAcrossBorders(lights, channel);
+		}
+
+		RegionFile.forEachChunk(pool, new RegionFile.ChunkOperation() {
+			@Override
+			public void apply(int index) {
+				if (lights[index] != null) {
+					lights[index].store();
+				}
+			}
+		});
+	}
+
+	// Seeds the region-wide queue with every border block that can brighten its neighbour
+	private static void spreadAcrossBorders(ChunkLight[] lights, int channel) {
+		PositionQueue queue = new PositionQueue();
+		for (int index = 0; index < 1024; ++index) {
+			ChunkLight light = lights[index];
+			if (light == null) {
+				continue;
+			}
+			int height = light.sectionCount * 16;
+			for (int y = 0; y < height; ++y) {
+				for (int i = 0; i < 16; ++i) {
+					offerNeighbour(lights, channel, queue, index, position(0, y, i), -1, 0);
+					offerNeighbour(lights, channel, queue, index, position(15, y, i), 1, 0);
+					offerNeighbour(lights, channel, queue, index, position(i, y, 0), 0, -1);
+					offerNeighbour(lights, channel, queue, index, position(i, y, 15), 0, 1);
+				}
+			}
+		}
+		propagate(lights, channel, queue, true);
+	}
+
+	private static void offerNeighbour(ChunkLight[] lights, int channel, PositionQueue queue, int index, int position, int dx, int dz) {
+		int level = lights[index].getLight(channel, position);
+		if (level > 1) {
+			int target = neighbour(index, position, dx, 0, dz, true);
+			if (target >= 0) {
+				spreadTo(lights, channel, queue, level, target);
+			}
+		}
+	}
+
+	// Breadth-first spread from the queued positions. Without crossBorders light stays in its chunk.
+	private static void propagate(ChunkLight[] lights, int channel, PositionQueue queue, boolean crossBorders) {
+		while (!queue.isEmpty()) {
+			int node = queue.poll();
+			int index = node >>> 16;
+			int level = lights[index].getLight(channel, node & 0xFFFF);
+			if (level <= 1) {
+				continue;
+			}
+			for (int direction = 0; direction < 6; ++direction) {
+				int target = neighbour(index, node & 0xFFFF, DX[direction], DY[direction], DZ[direction], crossBorders);
+				if (target >= 0) {
+					spreadTo(lights, channel, queue, level, target);
+				}
+			}
+		}
+	}
+
+	private static final int[] DX = {-1, 1, 0, 0, 0, 0};
+	private static final int[] DY = {0, 0, -1, 1, 0, 0};
+	private static final int[] DZ = {0, 0, 0, 0, -1, 1};
+
+	private static void spreadTo(ChunkLight[] lights, int channel, PositionQueue queue, int level, int target) {
+		ChunkLight light = lights[target >>> 16];
+		if (light == null || !light.isStored(target & 0xFFFF)) {
+			return;
+		}
+		int spread = level - Math.max(1, light.getOpacity(target & 0xFFFF));
+		if (spread > light.getLight(channel, target & 0xFFFF)) {
+			light.setLight(channel, target & 0xFFFF, spread);
+			queue.add(target);
+		}
+	}
+
+	// Packs a chunk index and block position into one int, or -1 outside the region
+	private static int neighbour(int index, int position, int dx, int dy, int dz, boolean crossBorders) {
+		int x = (position & 15) + dx;
+		int z = ((position >> 4) & 15) + dz;
+		int y = (position >> 8) + dy;
+		if (y < 0 || y > 255) {
+			return -1;
+		}
+
+		int chunkX = index & 31;
+		int chunkZ = index >> 5;
+		if (x < 0 || x > 15 || z < 0 || z > 15) {
+			if (!crossBorders) {
+				return -1;
+			}
+			chunkX += x >> 4;
+			chunkZ += z >> 4;
+			if (chunkX < 0 || chunkX > 31 || chunkZ < 0 || chunkZ > 31) {
+				return -1;
+			}
+			x &= 15;
+			z &= 15;
+		}
+		return ((chunkZ * 32 + chunkX) << 16) | position(x, y, z);
+	}
+
+	private static int position(int x, int y, int z) {
+		return (y << 8) | (z << 4) | x;
+	}
+
+	// Working light for one chunk, one byte per block. Sections up to one above the
+	// highest stored section are kept, so light can come down onto the top blocks.
+	private static class ChunkLight {
+		private final ChunkData chunk;
+		private final int sectionCount;
+		private final byte[][] opacity;
+		private final byte[][][] light;
+		private final int[] heightMap = new int[256];
+
+		public ChunkLight(ChunkData chunk) {
+			this.chunk = chunk;
+
+			int top = -1;
+			for (int y = 0; y < 16; ++y) {
+				if (lightedSection(y) != null) {
+					top = y;
+				}
+			}
+			sectionCount = Math.min(16, top + 2);
+			opacity = new byte[sectionCount][];
+			light = new byte[2][sectionCount][4096];
+
+			for (int y = 0; y < sectionCount; ++y) {
+				SectionData section = lightedSection(y);
+				if (section == null) {
+					continue;
+				}
+				byte[] blocks = section.getBlocks();
+				byte[] add = section.getBlockAdd();
+				byte[] sectionOpacity = new byte[4096];
+				byte[] blockLight = light[BLOCK][y];
+				for (int i = 0; i < 4096; ++i) {
+					int id = (blocks[i] & 255) | (nibble(add, i) << 8);
+					sectionOpacity[i] = OPACITY[id];
+					blockLight[i] = EMISSION[id];
+				}
+				opacity[y] = sectionOpacity;
+			}
+		}
+
+		private SectionData lightedSection(int y) {
+			SectionData section = chunk.getSection(y);
+			if (section == null || section.getBlocks() == null || section.getBlocks().length != 4096) {
+				return null;
+			}
+			return section;
+		}
+
+		public boolean isStored(int position) {
+			return (position >> 12) < sectionCount;
+		}
+
+		public int getOpacity(int position) {
+			byte[] section = opacity[position >> 12];
+			return (section == null) ? 0 : section[position & 4095];
+		}
+
+		public int getLight(int channel, int position) {
+			if (!isStored(position)) {
+				return (channel == SKY) ? 15 : 0;
+			}
+			return light[channel][position >> 12][position & 4095];
+		}
+
+		public void setLight(int channel, int position, int level) {
+			light[channel][position >> 12][position & 4095] = (byte) level;
+		}
+
+		public void lightWithinChunk(ChunkLight[] lights, int index) {
+			int stored = sectionCount * 16;
+			for (int column = 0; column < 256; ++column) {
+				int height = 0;
+				for (int y = stored - 1; y >= 0; --y) {
+					if (getOpacity((y << 8) | column) > 0) {
+						height = y + 1;
+						break;
+					}
+				}
+				heightMap[column] = height;
+				for (int y = height; y < stored; ++y) {
+					setLight(SKY, (y << 8) | column, 15);
+				}
+			}
+
+			// Open sky only needs to spread where it is beside or above a lower surface
+			PositionQueue queue = new PositionQueue();
+			int chunkBits = index << 16;
+			for (int column = 0; column < 256; ++column) {
+				int x = column & 15;
+				int z = column >> 4;
+				int height = heightMap[column];
+				int reach = height + 1;
+				if (x > 0) reach = Math.max(reach, heightMap[column - 1]);
+				if (x < 15) reach = Math.max(reach, heightMap[column + 1]);
+				if (z > 0) reach = Math.max(reach, heightMap[column - 16]);
+				if (z < 15) reach = Math.max(reach, heightMap[column + 16]);
+				for (int y = height; y < Math.min(reach, stored); ++y) {
+					queue.add(chunkBits | (y << 8) | column);
+				}
+			}
+			propagate(lights, SKY, queue, false);
+
+			for (int y = 0; y < sectionCount; ++y) {
+				byte[] blockLight = light[BLOCK][y];
+				for (int i = 0; i < 4096; ++i) {
+					if (blockLight[i] > 1) {
+						queue.add(chunkBits | (y << 12) | i);
+					}
+				}
+			}
+			propagate(lights, BLOCK, queue, false);
+		}
+
+		// Writes the light back into the chunk's own sections
+		public void store() {
+			for (int y = 0; y < sectionCount; ++y) {
+				SectionData section = lightedSection(y);
+				if (section != null) {
+					section.setByteBlock("BlockLight", packNibbles(light[BLOCK][y]));
+					section.setByteBlock("SkyLight", packNibbles(light[SKY][y]));
+				}
+			}
+			NBTCompound level = chunk.getChunkRootTag().getCompound("Level");
+			if (level != null) {
+				level.put("HeightMap", heightMap);
+			}
+		}
+	}
+
+	private static int nibble(byte[] data, int index) {
+		int packed = data[index >> 1];
+		return ((index & 1) == 0) ? (packed & 15) : ((packed >> 4) & 15);
+	}
+
+	private static byte[] packNibbles(byte[] values) {
+		byte[] packed = new byte[values.length / 2];
+		for (int i = 0; i < packed.length; ++i) {
+			packed[i] = (byte) ((values[2 * i] & 15) | ((values[2 * i + 1] & 15) << 4));
+		}
+		return packed;
+	}
+
+	// Growable FIFO of packed positions
+	private static class PositionQueue {
+		private int[] items = new int[4096];
+		private int head = 0;
+		private int tail = 0;
+
+		public void add(int item) {
+			if (tail == items.length) {
+				if (head > items.length / 2) {
+					System.arraycopy(items, head, items, 0, tail - head);
+				} else {
+					items = Arrays.copyOf(items, items.length * 2);
+					System.arraycopy(items, head, items, 0, tail - head);
+				}
+				tail -= head;
+				head = 0;
+			}
+			items[tail++] = item;
+		}
+
+		public boolean isEmpty() {
+			return head == tail;
+		}
+
+		public int poll() {
+			return items[head++];
+		}
+	}
+}
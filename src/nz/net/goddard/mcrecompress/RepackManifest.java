@@ -0,0 +1,145 @@
+package nz.net.goddard.mcrecompress;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import nz.net.goddard.mcrecompress.nbt.NBTCompound;
+import nz.net.goddard.mcrecompress.nbt.NBTReader;
+import nz.net.goddard.mcrecompress.nbt.NBTWriter;
+
+
+// Record of the regions packed by earlier runs, for incremental packing. Each region has
+// its chunk timestamps and a CRC-32 of each chunk's stored bytes, taken straight from the
+// .mca without decompressing anything, and the archive it was packed to. Stored as NBT.
+public class RepackManifest {
+	private static final int VERSION = 1;
+
+	private final File file;
+	private final NBTCompound regions;
+
+	private RepackManifest(File file, NBTCompound regions) {
+		this.file = file;
+		this.regions = regions;
+	}
+
+	// Loads a manifest, or starts an empty one if the file doesn't exist yet
+	public static RepackManifest load(File file) throws IOException {
+		if (!file.exists()) {
+			return new RepackManifest(file, new NBTCompound());
+		}
+
+		InputStream fileIn = new BufferedInputStream(new FileInputStream(file));
+		NBTReader reader = new NBTReader(fileIn);
+		try {
+			NBTCompound root = reader.readRootCompound();
+			if (root.getInt("Version", 0) != VERSION || root.getCompound("Regions") == null) {
+				throw new IOException("Unsupported repack manifest " + file);
+			}
+			return new RepackManifest(file, root.getCompound("Regions"));
+		} finally {
+			reader.release();
+			fileIn.close();
+		}
+	}
+
+	// Per-chunk timestamps and checksums of a region file's contents
+	public static class RegionSummary {
+		final int[] timestamps = new int[1024];
+		final int[] checksums = new int[1024];
+
+		private RegionSummary() {
+		}
+		
+		public static RegionSummary summarise(ByteBuffer mca) {
+			RegionSummary summary = new RegionSummary();
+			summary.read(mca);
+			return summary;
+		}
+		
+		private void read(ByteBuffer mca) {
+			ByteBuffer data = mca.duplicate();
+			data.order(ByteOrder.BIG_ENDIAN);
+			CRC32 crc = new CRC32();
+			byte[] buffer = new byte[65536];
+			for (int i = 0; i < 1024; ++i) {
+				timestamps[i] = data.getInt(4096 + i * 4);
+				int offset = (data.getInt(i * 4) >> 8) * 4096;
+				if (offset == 0 || offset + 4 > data.limit()) {
+					continue;
+				}
+
+				// Length field, compression type and payload
+				int remaining = Math.min(data.getInt(offset) + 4, data.limit() - offset);
+				data.position(offset);
+				crc.reset();
+				while (remaining > 0) {
+					int count = Math.min(remaining, buffer.length);
+					data.get(buffer, 0, count);
+					crc.update(buffer, 0, count);
+					remaining -= count;
+				}
+				checksums[i] = (int) crc.getValue();
+			}
+		}
+
+		public int countChangedChunks(RegionSummary previous) {
+			int changed = 0;
+			for (int i = 0; i < 1024; ++i) {
+				if (previous == null || timestamps[i] != previous.timestamps[i] || checksums[i] != previous.checksums[i]) {
+					changed++;
+				}
+			}
+			return changed;
+		}
+	}
+
+	// The summary recorded for a region, as long as the archive it was packed to is still there
+	public synchronized RegionSummary getPacked(String region, File archive) {
+		NBTCompound entry = regions.getCompound(region);
+		if (entry == null || !archive.getName().equals(entry.getString("Archive")) || !archive.exists()) {
+			return null;
+		}
+
+		Object timestamps = entry.get("Timestamps");
+		Object checksums = entry.get("Checksums");
+		if (!(timestamps instanceof int[]) || !(checksums instanceof int[])
+				|| ((int[]) timestamps).length != 1024 || ((int[]) checksums).length != 1024) {
+			return null;
+		}
+		RegionSummary summary = new RegionSummary();
+		System.arraycopy(timestamps, 0, summary.timestamps, 0, 1024);
+		System.arraycopy(checksums, 0, summary.checksums, 0, 1024);
+		return summary;
+	}
+
+	public synchronized void setPacked(String region, File archive, RegionSummary summary) {
+		NBTCompound entry = new NBTCompound();
+		entry.put("Archive", archive.getName());
+		entry.put("Timestamps", Arrays.copyOf(summary.timestamps, 1024));
+		entry.put("Checksums", Arrays.copyOf(summary.checksums, 1024));
+		regions.put(region, entry);
+	}
+
+	// Written beside the old manifest and moved over it, so a failed save leaves the old one
+	public synchronized void save() throws IOException {
+		NBTCompound root = new NBTCompound();
+		root.put("Version", VERSION);
+		root.put("Regions", regions);
+
+		File tempFile = new File(file.getPath() + ".t");
+		NBTWriter writer = new NBTWriter(new BufferedOutputStream(new FileOutputStream(tempFile)));
+		writer.writeRootCompound("Manifest", root);
+		writer.close();
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+}
@@ -1,32 +1,22 @@
 package nz.net.goddard.mcrecompress;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Map;
 
-import org.jnbt.ByteArrayTag;
-import org.jnbt.CompoundTag;
-import org.jnbt.IntTag;
-import org.jnbt.StringTag;
-import org.jnbt.Tag;
+import nz.net.goddard.mcrecompress.nbt.NBTCompound;
 
 
 public class SectionData {
-	private CompoundTag sectionTag;
+	private NBTCompound sectionTag;
 
-	public SectionData(CompoundTag sectionTag) {
+	public SectionData(NBTCompound sectionTag) {
 		this.sectionTag = sectionTag;
 	}
 	
 	public int getY() {
-		try {
-			int y1 = ((IntTag) sectionTag.getValue().get("Y")).getValue();
-			return y1;
-		} catch (RuntimeException e) {
-			return -1;
+		Object y = sectionTag.get("Y");
+		if (y instanceof Number) {
+			return ((Number) y).intValue();
 		}
+		return -1;
 	}
 	
 	public byte[] getBlocks() {
@@ -54,55 +44,37 @@ public class SectionData {
 	}
 	
 	protected byte[] getByteBlock(String tagName) {
-		try {
-			byte[] y1 = ((ByteArrayTag) sectionTag.getValue().get(tagName)).getValue();
-			return y1;
-		} catch (RuntimeException e) {
-			return null;
-		}
+		return sectionTag.getByteArray(tagName);
+	}
+	
+	public void setByteBlock(String tagName, byte[] data) {
+		sectionTag.put(tagName, data);
 	}
-		public CompoundTag getSectionTag() {
+	
+	public NBTCompound getSectionTag() {
 		return sectionTag;
 	}
 
-	public void setSectionTag(CompoundTag sectionTag) {
+	public void setSectionTag(NBTCompound sectionTag) {
 		this.sectionTag = sectionTag;
 	}
 	
-	public void extractBlockData(Map<String, Integer> blockSizes, Map<String, OutputStream> combinedOutputs) throws IOException {
-		Map<String, Tag> residualFields = new HashMap<String, Tag>(sectionTag.getValue());
-		for (String key : new ArrayList<String>(sectionTag.getValue().keySet())) {
-			if (combinedOutputs.containsKey(key) && residualFields.containsKey(key)) {
-				ByteArrayTag value = (ByteArrayTag) residualFields.get(key);
-				if (blockSizes.get(key).equals(value.getValue().length)) {
-					combinedOutputs.get(key).write(value.getValue());
-					residualFields.remove(key);
-					residualFields.put(key + "Storage", new StringTag(key + "Storage", "BlockData"));
-				}
-			}
-		}
-		sectionTag = new CompoundTag(sectionTag.getName(), residualFields);
+	// Whether this section's array for key is stored in the grouped block data
+	public boolean isGrouped(String key, Map<String, Integer> blockSizes) {
+		byte[] value = sectionTag.getByteArray(key);
+		return blockSizes.containsKey(key) && value != null && blockSizes.get(key).equals(value.length);
 	}
 	
-	public Map<String, Tag> getTagFields() {
-		return sectionTag.getValue();
+	public boolean isStoredInBlockData(String key) {
+		return isStoredIn(key, "BlockData");
 	}
-
-	public String getTagName() {
-		return sectionTag.getName();
+	
+	public boolean isStoredIn(String key, String storage) {
+		return !sectionTag.containsKey(key) && storage.equals(sectionTag.getString(key + "Storage"));
 	}
-
-	public void regenerateBlockData(Map<String, Integer> blockSizes,
-			Map<String, InputStream> combinedStreams) throws IOException {
-		Map<String, Tag> residualFields = new HashMap<String, Tag>(sectionTag.getValue());
-		for (String key : new ArrayList<String>(combinedStreams.keySet())) {
-			if (!residualFields.containsKey(key) && residualFields.containsKey(key + "Storage") && residualFields.get(key + "Storage").getValue().equals("BlockData")) {
-				byte[] sectionData = new byte[blockSizes.get(key)];
-				combinedStreams.get(key).read(sectionData);
-				residualFields.remove(key + "Storage");
-				residualFields.put(key, new ByteArrayTag(key, sectionData));
-			}
-		}
-		sectionTag = new CompoundTag(sectionTag.getName(), residualFields);
+	
+	// Puts a grouped array back in place of its storage marker
+	public void restoreByteBlock(String key, byte[] data) {
+		sectionTag.replace(key + "Storage", key, data);
 	}
 }
@@ -0,0 +1,338 @@
+package nz.net.goddard.mcrecompress;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.itadaki.bzip2.BZip2InputStream;
+import org.itadaki.bzip2.BZip2OutputStream;
+
+
+// World-wide content-addressed store for the grouped arrays of sections. Each distinct
+// section is kept once, under a sequential id that archives record as "SectionRef".
+//
+// The file is a header and a run of segments of up to SEGMENT_SIZE sections, each its
+// first id, section count and length, the bzip2-compressed arrays, and the SHA-1 of each
+// section so a later run can keep adding to it. Within a segment the arrays are grouped by
+// key, as in the archives' BlockData, so similar data still compresses together.
+//
+// Segments are only ever appended. The header ends with the length of the file that has
+// been committed, which commit() moves on only once the segments before it are synced to
+// disk, so a run that is killed part way leaves the store as it was at its last commit.
+// Anything past that length is overwritten by the next run.
+public class SectionStore implements Closeable {
+	private static final int MAGIC = 0x4D525353;		// "MRSS"
+	private static final int VERSION = 2;
+	private static final int COMMITTED_OFFSET = 24;
+	private static final int HEADER_LENGTH = 32;
+	private static final int SEGMENT_HEADER_LENGTH = 12;
+	private static final int HASH_LENGTH = 20;
+	static final int SEGMENT_SIZE = 1024;
+	// Each decoded segment is around 12MB
+	private static final int CACHED_SEGMENTS = 4;
+
+	private final RandomAccessFile file;
+	private final String storeId;
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private final List<ByteBuffer> hashes = new ArrayList<ByteBuffer>();
+	private final Map<ByteBuffer, Integer> ids = new HashMap<ByteBuffer, Integer>();
+	private long dataEnd;
+
+	// Sections added since the last segment was written
+	private final List<byte[][]> pending = new ArrayList<byte[][]>();
+
+	private final Map<Integer, byte[][][]> segmentCache = new LinkedHashMap<Integer, byte[][][]>(CACHED_SEGMENTS, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, byte[][][]> eldest) {
+			return size() > CACHED_SEGMENTS;
+		}
+	};
+
+	private static class Segment {
+		final long offset;
+		final int length;
+		final int firstId;
+		final int count;
+
+		Segment(long offset, int length, int firstId, int count) {
+			this.offset = offset;
+			this.length = length;
+			this.firstId = firstId;
+			this.count = count;
+		}
+	}
+
+	private SectionStore(RandomAccessFile file, String storeId) {
+		this.file = file;
+		this.storeId = storeId;
+	}
+
+	// Opens a store, creating an empty one if the file doesn't exist yet
+	public static SectionStore open(File path) throws IOException {
+		boolean exists = path.exists() && path.length() > 0;
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		try {
+			if (!exists) {
+				UUID uuid = UUID.randomUUID();
+				file.writeInt(MAGIC);
+				file.writeInt(VERSION);
+				file.writeLong(uuid.getMostSignificantBits());
+				file.writeLong(uuid.getLeastSignificantBits());
+				file.writeLong(HEADER_LENGTH);
+				file.getFD().sync();
+				SectionStore store = new SectionStore(file, uuid.toString());
+				store.dataEnd = HEADER_LENGTH;
+				return store;
+			}
+
+			if (file.readInt() != MAGIC) {
+				throw new IOException("Not a section store: " + path);
+			} else if (file.readInt() != VERSION) {
+				throw new IOException("Section store " + path + " is from a different version");
+			}
+			SectionStore store = new SectionStore(file, new UUID(file.readLong(), file.readLong()).toString());
+			store.readSegments(file.readLong());
+			return store;
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	private void readSegments(long committed) throws IOException {
+		if (committed < HEADER_LENGTH || committed > file.length()) {
+			throw new IOException("Section store is truncated");
+		}
+		long position = HEADER_LENGTH;
+		while (position < committed) {
+			file.seek(position);
+			int firstId = file.readInt();
+			int count = file.readInt();
+			int length = file.readInt();
+			if (firstId != hashes.size() || count <= 0 || length < 0) {
+				throw new IOException("Section store is corrupt at " + position);
+			}
+			segments.add(new Segment(position + SEGMENT_HEADER_LENGTH, length, firstId, count));
+
+			file.seek(position + SEGMENT_HEADER_LENGTH + length);
+			byte[] segmentHashes = readBytes((long) count * HASH_LENGTH);
+			for (int i = 0; i < count; ++i) {
+				ByteBuffer key = ByteBuffer.wrap(Arrays.copyOfRange(segmentHashes, i * HASH_LENGTH, (i + 1) * HASH_LENGTH));
+				ids.put(key, hashes.size());
+				hashes.add(key);
+			}
+			position += SEGMENT_HEADER_LENGTH + length + (long) count * HASH_LENGTH;
+		}
+		if (position != committed) {
+			throw new IOException("Section store is corrupt at " + position);
+		}
+		dataEnd = committed;
+	}
+
+	private byte[] readBytes(long length) throws IOException {
+		byte[] data = new byte[(int) length];
+		file.readFully(data);
+		return data;
+	}
+
+	public String getStoreId() {
+		return storeId;
+	}
+
+	public synchronized int size() {
+		return hashes.size();
+	}
+
+	// Arrays of a section in combineKeys order, null where the section doesn't have one
+	static byte[][] sectionArrays(SectionData section, List<String> keys) {
+		byte[][] arrays = new byte[RegionFile.combineKeys.length][];
+		for (int k = 0; k < arrays.length; ++k) {
+			String key = RegionFile.combineKeys[k];
+			if (keys.contains(key) && section.isGrouped(key, RegionFile.combineBlockLengths)) {
+				arrays[k] = section.getByteBlock(key);
+			}
+		}
+		return arrays;
+	}
+
+	// Returns the id of a section with these arrays, adding it if it isn't stored yet
+	public int add(byte[][] arrays) throws IOException {
+		ByteBuffer hash = ByteBuffer.wrap(hash(arrays));
+		synchronized (this) {
+			Integer id = ids.get(hash);
+			if (id != null) {
+				return id;
+			}
+
+			id = hashes.size();
+			hashes.add(hash);
+			ids.put(hash, id);
+			// Copied, as the section may go on to be changed before the segment is written
+			byte[][] copy = new byte[arrays.length][];
+			for (int k = 0; k < arrays.length; ++k) {
+				copy[k] = (arrays[k] == null) ? null : arrays[k].clone();
+			}
+			pending.add(copy);
+			if (pending.size() == SEGMENT_SIZE) {
+				writeSegment();
+			}
+			return id;
+		}
+	}
+
+	private static byte[] hash(byte[][] arrays) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		for (byte[] array : arrays) {
+			// Absent arrays hash differently from empty ones
+			digest.update((byte) (array == null ? 0 : 1));
+			if (array != null) {
+				digest.update(array);
+			}
+		}
+		return digest.digest();
+	}
+
+	// Segment payload: section count, a presence mask per section, then each key's arrays
+	private void writeSegment() throws IOException {
+		ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+		BZip2OutputStream compressed = new BZip2OutputStream(bytesOut);
+		DataOutputStream out = new DataOutputStream(compressed);
+		out.writeInt(pending.size());
+		for (byte[][] arrays : pending) {
+			int mask = 0;
+			for (int k = 0; k < arrays.length; ++k) {
+				if (arrays[k] != null) {
+					mask |= 1 << k;
+				}
+			}
+			out.writeByte(mask);
+		}
+		for (int k = 0; k < RegionFile.combineKeys.length; ++k) {
+			for (byte[][] arrays : pending) {
+				if (arrays[k] != null) {
+					out.write(arrays[k]);
+				}
+			}
+		}
+		out.close();
+
+		byte[] segment = bytesOut.toByteArray();
+		int firstId = hashes.size() - pending.size();
+		ByteArrayOutputStream recordOut = new ByteArrayOutputStream(SEGMENT_HEADER_LENGTH + segment.length + pending.size() * HASH_LENGTH);
+		DataOutputStream record = new DataOutputStream(recordOut);
+		record.writeInt(firstId);
+		record.writeInt(pending.size());
+		record.writeInt(segment.length);
+		record.write(segment);
+		for (int id = firstId; id < hashes.size(); ++id) {
+			record.write(hashes.get(id).array());
+		}
+
+		file.seek(dataEnd);
+		file.write(recordOut.toByteArray());
+		segments.add(new Segment(dataEnd + SEGMENT_HEADER_LENGTH, segment.length, firstId, pending.size()));
+		dataEnd += recordOut.size();
+		pending.clear();
+	}
+
+	private byte[][][] readSegment(int index) throws IOException {
+		byte[][][] sections = segmentCache.get(index);
+		if (sections != null) {
+			return sections;
+		}
+
+		Segment segment = segments.get(index);
+		file.seek(segment.offset);
+		byte[] compressed = readBytes(segment.length);
+		DataInputStream in = new DataInputStream(new BZip2InputStream(new ByteArrayInputStream(compressed), false));
+		int count = in.readInt();
+		int[] masks = new int[count];
+		for (int i = 0; i < count; ++i) {
+			masks[i] = in.readUnsignedByte();
+		}
+		sections = new byte[count][RegionFile.combineKeys.length][];
+		for (int k = 0; k < RegionFile.combineKeys.length; ++k) {
+			int blockSize = RegionFile.combineBlockLengths.get(RegionFile.combineKeys[k]);
+			for (int i = 0; i < count; ++i) {
+				if ((masks[i] & (1 << k)) != 0) {
+					sections[i][k] = new byte[blockSize];
+					in.readFully(sections[i][k]);
+				}
+			}
+		}
+		in.close();
+
+		segmentCache.put(index, sections);
+		return sections;
+	}
+
+	// Arrays stored under id, in combineKeys order
+	public synchronized byte[][] get(int id) throws IOException {
+		if (id < 0 || id >= hashes.size()) {
+			throw new IOException("Section " + id + " is not in the section store");
+		}
+
+		int firstPending = hashes.size() - pending.size();
+		if (id >= firstPending) {
+			return pending.get(id - firstPending);
+		}
+
+		int low = 0;
+		int high = segments.size() - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (segments.get(middle).firstId <= id) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		Segment segment = segments.get(low);
+		return readSegment(low)[id - segment.firstId];
+	}
+
+	// Writes out any partial segment and makes everything added so far durable. Archives
+	// referring to the new sections must not be the only copy of a region before this.
+	public synchronized void commit() throws IOException {
+		if (!pending.isEmpty()) {
+			writeSegment();
+		}
+		file.seek(COMMITTED_OFFSET);
+		if (file.readLong() == dataEnd) {
+			return;
+		}
+		file.getFD().sync();
+		file.seek(COMMITTED_OFFSET);
+		file.writeLong(dataEnd);
+		file.getFD().sync();
+	}
+
+	public synchronized void close() throws IOException {
+		try {
+			commit();
+		} finally {
+			file.close();
+		}
+	}
+}
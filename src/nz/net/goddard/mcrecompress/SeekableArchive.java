@@ -0,0 +1,272 @@
+package nz.net.goddard.mcrecompress;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.GZIPInputStream;
+
+
+// Seekable MRI container (.mrs). The region's chunks are split into frames of FRAME_CHUNKS
+// consecutive slots, and each frame is an ordinary MRI archive of just those chunks,
+// compressed on its own. A footer maps each chunk slot to its frame, so one chunk can be
+// read by decompressing a single frame.
+//
+// Layout: magic, version, compression; the frames; then the footer, holding the frame
+// count, each frame's offset and length, and the frame of each of the 1024 slots (-1 if
+// empty), followed by the footer's offset and the magic again.
+public class SeekableArchive implements Closeable {
+	private static final int MAGIC = 0x4D52534B;		// "MRSK"
+	private static final int VERSION = 1;
+	private static final int HEADER_LENGTH = 9;
+	private static final int TRAILER_LENGTH = 12;
+	static final int FRAME_CHUNKS = 32;
+
+	private final FileChannel channel;
+	private final ArchiveCompression compression;
+	private final long[] frameOffsets;
+	private final int[] frameLengths;
+	private final short[] chunkFrames = new short[1024];
+	private final SectionStore sectionStore;
+
+	private SeekableArchive(FileChannel channel, SectionStore sectionStore) throws IOException {
+		this.channel = channel;
+		this.sectionStore = sectionStore;
+
+		ByteBuffer header = read(0, HEADER_LENGTH);
+		if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+			throw new IOException("Not a seekable MRI archive");
+		}
+		int compressionType = header.get();
+		if (compressionType < 0 || compressionType >= ArchiveCompression.values().length) {
+			throw new IOException("Unknown seekable MRI compression " + compressionType);
+		}
+		compression = ArchiveCompression.values()[compressionType];
+
+		ByteBuffer trailer = read(channel.size() - TRAILER_LENGTH, TRAILER_LENGTH);
+		long footerOffset = trailer.getLong();
+		if (trailer.getInt() != MAGIC) {
+			throw new IOException("Seekable MRI archive has no footer");
+		}
+
+		ByteBuffer footer = read(footerOffset, (int) (channel.size() - TRAILER_LENGTH - footerOffset));
+		int frameCount = footer.getInt();
+		frameOffsets = new long[frameCount];
+		frameLengths = new int[frameCount];
+		for (int i = 0; i < frameCount; ++i) {
+			frameOffsets[i] = footer.getLong();
+			frameLengths[i] = footer.getInt();
+		}
+		for (int i = 0; i < 1024; ++i) {
+			chunkFrames[i] = footer.getShort();
+			if (chunkFrames[i] >= frameCount) {
+				throw new IOException("Seekable MRI index refers to a missing frame");
+			}
+		}
+	}
+
+	public static SeekableArchive open(File file) throws IOException {
+		return open(file, null);
+	}
+
+	// The section store is only needed for archives written with one
+	public static SeekableArchive open(File file, SectionStore sectionStore) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			return new SeekableArchive(channel, sectionStore);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Seekable MRI archive is truncated");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	public boolean hasChunk(int rx, int rz) {
+		return chunkFrames[rz * 32 + rx] >= 0;
+	}
+
+	// Decompresses only the frame holding the chunk. Null if the slot is empty.
+	// Stripped lighting is recomputed from the frame's chunks alone.
+	public ChunkData readChunk(int rx, int rz) throws IOException {
+		int index = rz * 32 + rx;
+		if (chunkFrames[index] < 0) {
+			return null;
+		}
+		RegionFile frame = readFrame(chunkFrames[index]);
+		if (frame.isLightingStripped()) {
+			frame.relight(null);
+		}
+		return frame.chunkAt(index);
+	}
+
+	// Decompresses every frame into one region. Each frame's checksums cover its own chunks.
+	public RegionFile readRegion() throws IOException {
+		RegionFile region = RegionFile.empty();
+		for (int frame = 0; frame < frameOffsets.length; ++frame) {
+			RegionFile frameRegion = readFrame(frame);
+			for (int i = 0; i < 1024; ++i) {
+				if (frameRegion.chunkAt(i) != null) {
+					region.setChunk(i, frameRegion.chunkAt(i));
+				}
+			}
+			if (frameRegion.isLightingStripped()) {
+				region.setLightingStripped(true);
+			}
+			RegionChecksums frameChecksums = frameRegion.getStoredChecksums();
+			if (frameChecksums != null) {
+				if (region.getStoredChecksums() == null) {
+					region.setStoredChecksums(new RegionChecksums(frameChecksums.includesLighting()));
+				}
+				region.getStoredChecksums().merge(frameChecksums);
+			}
+		}
+		return region;
+	}
+
+	private RegionFile readFrame(int frame) throws IOException {
+		ByteBuffer frameData = read(frameOffsets[frame], frameLengths[frame]);
+		InputStream in = new ByteArrayInputStream(frameData.array());
+		if (compression == ArchiveCompression.BZIP2) {
+			in = new ConcatenatedBZip2InputStream(in);
+		} else if (compression == ArchiveCompression.GZIP) {
+			in = new GZIPInputStream(in);
+		}
+		return RegionFile.readArchive(in, sectionStore);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	public static void write(RegionFile region, File file, ArchiveCompression compression, ArchiveOptions options, ExecutorService pool) throws IOException {
+		write(region, new FileOutputStream(file), compression, options, pool);
+	}
+
+	// Writes the region as frames, each built and compressed on the pool when one is given.
+	// The stream is closed afterwards.
+	public static void write(RegionFile region, OutputStream fileOut, ArchiveCompression compression, ArchiveOptions options, ExecutorService pool) throws IOException {
+		List<RegionFile> frames = new ArrayList<RegionFile>();
+		short[] chunkFrames = new short[1024];
+		for (int start = 0; start < 1024; start += FRAME_CHUNKS) {
+			RegionFile frame = null;
+			for (int i = start; i < start + FRAME_CHUNKS; ++i) {
+				chunkFrames[i] = -1;
+				if (region.chunkAt(i) != null) {
+					if (frame == null) {
+						frame = RegionFile.empty();
+						frame.setLightingStripped(region.isLightingStripped());
+						frames.add(frame);
+					}
+					frame.setChunk(i, region.chunkAt(i));
+					chunkFrames[i] = (short) (frames.size() - 1);
+				}
+			}
+		}
+
+		List<Future<byte[]>> encoded = new ArrayList<Future<byte[]>>();
+		for (RegionFile frame : frames) {
+			FrameTask task = new FrameTask(frame, compression, options);
+			if (pool != null) {
+				encoded.add(pool.submit(task));
+			} else {
+				FutureTask<byte[]> future = new FutureTask<byte[]>(task);
+				future.run();
+				encoded.add(future);
+			}
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeByte(compression.ordinal());
+
+			long[] offsets = new long[frames.size()];
+			int[] lengths = new int[frames.size()];
+			long position = HEADER_LENGTH;
+			for (int frame = 0; frame < frames.size(); ++frame) {
+				byte[] data = getFrame(encoded.get(frame));
+				out.write(data);
+				offsets[frame] = position;
+				lengths[frame] = data.length;
+				position += data.length;
+			}
+
+			out.writeInt(frames.size());
+			for (int frame = 0; frame < frames.size(); ++frame) {
+				out.writeLong(offsets[frame]);
+				out.writeInt(lengths[frame]);
+			}
+			for (int i = 0; i < 1024; ++i) {
+				out.writeShort(chunkFrames[i]);
+			}
+			out.writeLong(position);
+			out.writeInt(MAGIC);
+		} finally {
+			out.close();
+			for (Future<byte[]> frame : encoded) {
+				frame.cancel(false);
+			}
+		}
+	}
+
+	private static byte[] getFrame(Future<byte[]> frame) throws IOException {
+		try {
+			return frame.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while compressing frames", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Frame compression failed", e.getCause());
+		}
+	}
+
+	private static class FrameTask implements Callable<byte[]> {
+		private final RegionFile frame;
+		private final ArchiveCompression compression;
+		private final ArchiveOptions options;
+
+		public FrameTask(RegionFile frame, ArchiveCompression compression, ArchiveOptions options) {
+			this.frame = frame;
+			this.compression = compression;
+			this.options = options;
+		}
+
+		@Override
+		public byte[] call() throws IOException {
+			ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+			ArchiveWriter writer = new ArchiveWriter(bytesOut, options);
+			writer.writeRegion(frame);
+			writer.close();
+			return ParallelCompressionOutputStream.compressBlock(bytesOut.toByteArray(), compression);
+		}
+	}
+}
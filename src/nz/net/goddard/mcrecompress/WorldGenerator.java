@@ -0,0 +1,311 @@
+package nz.net.goddard.mcrecompress;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+
+import nz.net.goddard.mcrecompress.nbt.NBTCompound;
+import nz.net.goddard.mcrecompress.nbt.NBTList;
+import nz.net.goddard.mcrecompress.nbt.NBTTypes;
+
+
+// Writes synthetic Anvil worlds for scale and soak testing. Terrain comes from seeded value
+// noise, so the same seed always gives the same world, whatever the thread count. Lighting
+// and height maps are left to the Relighter, as for archives packed without them.
+//
+// Profiles: FLAT is a four block superflat; HILLS has rolling stone, dirt and grass terrain
+// with water, ores and torches; MODDED is HILLS with block ids above 255 in Add arrays,
+// as Forge worlds have.
+public class WorldGenerator {
+	public enum Profile {
+		FLAT, HILLS, MODDED
+	}
+
+	private static final int SEA_LEVEL = 62;
+	private static final long BASE_TIME = 1400000000L;
+
+	private final long seed;
+	private Profile profile = Profile.HILLS;
+	private double density = 1.0;
+	private double emptySections = 0.0;
+	private int entitiesPerChunk = 2;
+	private final Logger logger = Logger.getLogger("main");
+
+	public WorldGenerator(long seed) {
+		this.seed = seed;
+	}
+
+	public void setProfile(Profile profile) {
+		this.profile = profile;
+	}
+
+	// Fraction of chunk slots filled; 1 gives full 1024-chunk regions
+	public void setDensity(double density) {
+		this.density = density;
+	}
+
+	// Chance of an empty air section being kept above the terrain, as left by removed blocks
+	public void setEmptySections(double emptySections) {
+		this.emptySections = emptySections;
+	}
+
+	// Average entities per chunk; set high for large entity lists
+	public void setEntitiesPerChunk(int entitiesPerChunk) {
+		this.entitiesPerChunk = entitiesPerChunk;
+	}
+
+	// Writes regionsX by regionsZ regions, from r.0.0.mca, into directory
+	public void generateWorld(Path directory, int regionsX, int regionsZ, ForkJoinPool pool) throws IOException {
+		Files.createDirectories(directory);
+		for (int rz = 0; rz < regionsZ; ++rz) {
+			for (int rx = 0; rx < regionsX; ++rx) {
+				File file = directory.resolve("r." + rx + "." + rz + ".mca").toFile();
+				logger.info("Generating " + file);
+				generateRegion(rx, rz, pool).writeRegionFile(file, pool);
+			}
+		}
+	}
+
+	// Lighting is computed when the region is written
+	public RegionFile generateRegion(final int regionX, final int regionZ, ForkJoinPool pool) throws IOException {
+		final RegionFile region = RegionFile.empty();
+		final boolean[] filled = new boolean[1024];
+		Random slots = new Random(seed ^ (regionX * 341873128712L + regionZ * 132897987541L));
+		for (int i = 0; i < 1024; ++i) {
+			filled[i] = slots.nextDouble() < density;
+		}
+
+		RegionFile.forEachChunk(pool, new RegionFile.ChunkOperation() {
+			@Override
+			public void apply(int index) throws IOException {
+				if (filled[index]) {
+					region.setChunk(index, generateChunk(regionX * 32 + (index & 31), regionZ * 32 + (index >> 5)));
+				}
+			}
+		});
+		region.setLightingStripped(true);
+		return region;
+	}
+
+	ChunkData generateChunk(int chunkX, int chunkZ) {
+		Random random = new Random(seed * 31 + chunkX * 341873128712L + chunkZ * 132897987541L);
+		int[] heights = new int[256];
+		byte[] biomes = new byte[256];
+		for (int z = 0; z < 16; ++z) {
+			for (int x = 0; x < 16; ++x) {
+				int worldX = chunkX * 16 + x;
+				int worldZ = chunkZ * 16 + z;
+				heights[z * 16 + x] = (profile == Profile.FLAT) ? 3 : terrainHeight(worldX, worldZ);
+				biomes[z * 16 + x] = (byte) (noise(worldX, worldZ, 128, 7) > 0.6 ? 4 : 1);
+			}
+		}
+
+		int top = SEA_LEVEL;
+		for (int height : heights) {
+			top = Math.max(top, height);
+		}
+		int sectionCount = (profile == Profile.FLAT) ? 1 : top / 16 + 1;
+
+		NBTList sections = new NBTList(NBTTypes.TYPE_COMPOUND);
+		for (int y = 0; y < 16; ++y) {
+			if (y < sectionCount) {
+				sections.add(terrainSection(y, heights, random));
+			} else if (random.nextDouble() < emptySections) {
+				sections.add(section(y, new byte[4096], new byte[2048], null));
+			}
+		}
+
+		NBTCompound level = new NBTCompound();
+		level.put("xPos", chunkX);
+		level.put("zPos", chunkZ);
+		level.put("LastUpdate", (long) random.nextInt(1000000));
+		level.put("LightPopulated", (byte) 1);
+		level.put("TerrainPopulated", (byte) 1);
+		level.put("V", (byte) 1);
+		level.put("InhabitedTime", (long) random.nextInt(100000));
+		level.put("Biomes", biomes);
+		level.put("HeightMap", new int[256]);
+		level.put("Sections", sections);
+		level.put("Entities", entities(chunkX, chunkZ, heights, random));
+		level.put("TileEntities", new NBTList(NBTTypes.TYPE_COMPOUND));
+
+		NBTCompound root = new NBTCompound();
+		root.put("Level", level);
+		return new ChunkData((int) (BASE_TIME + random.nextInt(86400 * 30)), root);
+	}
+
+	private NBTCompound terrainSection(int sectionY, int[] heights, Random random) {
+		byte[] blocks = new byte[4096];
+		byte[] data = new byte[2048];
+		byte[] add = null;
+		for (int i = 0; i < 4096; ++i) {
+			int y = sectionY * 16 + (i >> 8);
+			int height = heights[i & 255];
+			int id = 0;
+			int meta = 0;
+			if (y == 0) {
+				id = 7;
+			} else if (profile == Profile.FLAT) {
+				id = (y < height) ? 3 : (y == height ? 2 : 0);
+			} else if (y < height - 3) {
+				id = 1;
+				double roll = random.nextDouble();
+				if (roll < 0.01) {
+					id = 16;
+				} else if (roll < 0.016 && y < 64) {
+					id = 15;
+				} else if (roll < 0.02 && profile == Profile.MODDED) {
+					// Modded ores, each with a few variants
+					id = 600 + random.nextInt(4);
+					meta = random.nextInt(3);
+				} else if (roll < 0.03) {
+					id = 0;
+				}
+			} else if (y < height) {
+				id = (height < SEA_LEVEL + 2) ? 12 : 3;
+			} else if (y == height) {
+				id = (height < SEA_LEVEL + 2) ? 12 : 2;
+			} else if (y <= SEA_LEVEL) {
+				id = 9;
+			} else if (y == height + 1 && height > SEA_LEVEL + 1) {
+				double roll = random.nextDouble();
+				if (roll < 0.1) {
+					id = 31;
+					meta = 1;
+				} else if (roll < 0.102) {
+					id = 50;
+					meta = 5;
+				} else if (roll < 0.104 && profile == Profile.MODDED) {
+					id = 2000 + random.nextInt(16);
+					meta = random.nextInt(16);
+				}
+			}
+
+			blocks[i] = (byte) id;
+			setNibble(data, i, meta);
+			if (id > 255) {
+				if (add == null) {
+					add = new byte[2048];
+				}
+				setNibble(add, i, id >> 8);
+			}
+		}
+		return section(sectionY, blocks, data, add);
+	}
+
+	private static NBTCompound section(int y, byte[] blocks, byte[] data, byte[] add) {
+		NBTCompound section = new NBTCompound();
+		section.put("Y", (byte) y);
+		section.put("Blocks", blocks);
+		if (add != null) {
+			section.put("Add", add);
+		}
+		section.put("Data", data);
+		section.put("BlockLight", new byte[2048]);
+		section.put("SkyLight", new byte[2048]);
+		return section;
+	}
+
+	private NBTList entities(int chunkX, int chunkZ, int[] heights, Random random) {
+		NBTList entities = new NBTList(NBTTypes.TYPE_COMPOUND);
+		int count = (entitiesPerChunk == 0) ? 0 : random.nextInt(entitiesPerChunk * 2 + 1);
+		for (int e = 0; e < count; ++e) {
+			int column = random.nextInt(256);
+			double x = chunkX * 16 + (column & 15) + random.nextDouble();
+			double z = chunkZ * 16 + (column >> 4) + random.nextDouble();
+			double y = Math.max(heights[column], SEA_LEVEL) + 1;
+
+			NBTCompound entity = new NBTCompound();
+			boolean item = random.nextBoolean();
+			entity.put("id", item ? "Item" : "Zombie");
+			entity.put("Pos", doubles(x, y, z));
+			entity.put("Motion", doubles(0.0, -0.0784, 0.0));
+			NBTList rotation = new NBTList(NBTTypes.TYPE_FLOAT);
+			rotation.add(random.nextFloat() * 360);
+			rotation.add(0.0f);
+			entity.put("Rotation", rotation);
+			entity.put("FallDistance", 0.0f);
+			entity.put("Fire", (short) -1);
+			entity.put("Air", (short) 300);
+			entity.put("OnGround", (byte) 1);
+			entity.put("Dimension", 0);
+			entity.put("Invulnerable", (byte) 0);
+			entity.put("PortalCooldown", 0);
+			entity.put("UUIDMost", random.nextLong());
+			entity.put("UUIDLeast", random.nextLong());
+			if (item) {
+				NBTCompound stack = new NBTCompound();
+				stack.put("id", (short) (1 + random.nextInt(20)));
+				stack.put("Damage", (short) 0);
+				stack.put("Count", (byte) (1 + random.nextInt(64)));
+				entity.put("Item", stack);
+				entity.put("Age", (short) random.nextInt(6000));
+				entity.put("Health", (short) 5);
+			} else {
+				entity.put("HealF", 20.0f);
+				entity.put("Health", (short) 20);
+				entity.put("AbsorptionAmount", 0.0f);
+				entity.put("CanPickUpLoot", (byte) 0);
+				entity.put("PersistenceRequired", (byte) 0);
+			}
+			entities.add(entity);
+		}
+		return entities;
+	}
+
+	private static NBTList doubles(double a, double b, double c) {
+		NBTList list = new NBTList(NBTTypes.TYPE_DOUBLE);
+		list.add(a);
+		list.add(b);
+		list.add(c);
+		return list;
+	}
+
+	// Rolling hills around sea level, from two octaves of noise
+	private int terrainHeight(int x, int z) {
+		double height = 56 + 28 * noise(x, z, 64, 1) + 8 * noise(x, z, 16, 2);
+		return Math.max(1, Math.min(250, (int) height));
+	}
+
+	// Smoothly interpolated lattice noise in [0, 1)
+	private double noise(int x, int z, int scale, int octave) {
+		int cellX = floorDiv(x, scale);
+		int cellZ = floorDiv(z, scale);
+		double fx = smooth((x - cellX * scale) / (double) scale);
+		double fz = smooth((z - cellZ * scale) / (double) scale);
+		double top = lerp(lattice(cellX, cellZ, octave), lattice(cellX + 1, cellZ, octave), fx);
+		double bottom = lerp(lattice(cellX, cellZ + 1, octave), lattice(cellX + 1, cellZ + 1, octave), fx);
+		return lerp(top, bottom, fz);
+	}
+
+	private double lattice(int x, int z, int octave) {
+		long hash = seed + octave * 0x9E3779B97F4A7C15L + x * 0xC2B2AE3D27D4EB4FL + z * 0x165667B19E3779F9L;
+		hash ^= hash >>> 33;
+		hash *= 0xFF51AFD7ED558CCDL;
+		hash ^= hash >>> 33;
+		return (hash >>> 11) / (double) (1L << 53);
+	}
+
+	private static int floorDiv(int a, int b) {
+		return (a >= 0) ? a / b : -((-a + b - 1) / b);
+	}
+
+	private static double smooth(double t) {
+		return t * t * (3 - 2 * t);
+	}
+
+	private static double lerp(double a, double b, double t) {
+		return a + (b - a) * t;
+	}
+
+	private static void setNibble(byte[] array, int index, int value) {
+		if ((index & 1) == 0) {
+			array[index >> 1] = (byte) ((array[index >> 1] & 0xF0) | value);
+		} else {
+			array[index >> 1] = (byte) ((array[index >> 1] & 0x0F) | (value << 4));
+		}
+	}
+}
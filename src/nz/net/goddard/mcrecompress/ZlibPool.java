@@ -0,0 +1,88 @@
+package nz.net.goddard.mcrecompress;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+// Shared zlib contexts for chunk compression. Each Inflater or Deflater holds native
+// memory until end() is called, which the JVM otherwise leaves to finalization, so a
+// context is taken for a chunk, reset and returned afterwards, and ended straight away
+// when the pool already holds enough. endAll() frees every idle context.
+class ZlibPool {
+	// Enough for every thread of a busy conversion to hold one of each
+	private static final int MAX_IDLE = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+	
+	private static final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+	private static final AtomicInteger idleInflaters = new AtomicInteger();
+	private static final Map<ChunkCompressionProfile, ConcurrentLinkedQueue<Deflater>> deflaters = new EnumMap<ChunkCompressionProfile, ConcurrentLinkedQueue<Deflater>>(ChunkCompressionProfile.class);
+	private static final AtomicInteger idleDeflaters = new AtomicInteger();
+	static {
+		for (ChunkCompressionProfile profile : ChunkCompressionProfile.values()) {
+			deflaters.put(profile, new ConcurrentLinkedQueue<Deflater>());
+		}
+	}
+	
+	private ZlibPool() {
+	}
+	
+	static Inflater takeInflater() {
+		Inflater inflater = inflaters.poll();
+		if (inflater == null) {
+			return new Inflater();
+		}
+		idleInflaters.decrementAndGet();
+		return inflater;
+	}
+	
+	static void returnInflater(Inflater inflater) {
+		if (idleInflaters.incrementAndGet() > MAX_IDLE) {
+			idleInflaters.decrementAndGet();
+			inflater.end();
+			return;
+		}
+		inflater.reset();
+		inflaters.add(inflater);
+	}
+	
+	static Deflater takeDeflater(ChunkCompressionProfile profile) {
+		Deflater deflater = deflaters.get(profile).poll();
+		if (deflater == null) {
+			deflater = new Deflater(profile.getLevel());
+			deflater.setStrategy(profile.getStrategy());
+			return deflater;
+		}
+		idleDeflaters.decrementAndGet();
+		return deflater;
+	}
+	
+	static void returnDeflater(ChunkCompressionProfile profile, Deflater deflater) {
+		if (idleDeflaters.incrementAndGet() > MAX_IDLE) {
+			idleDeflaters.decrementAndGet();
+			deflater.end();
+			return;
+		}
+		deflater.reset();
+		deflaters.get(profile).add(deflater);
+	}
+	
+	static int getIdleCount() {
+		return idleInflaters.get() + idleDeflaters.get();
+	}
+	
+	// Frees the native memory of every idle context, as once a conversion is done
+	static void endAll() {
+		for (Inflater inflater = inflaters.poll(); inflater != null; inflater = inflaters.poll()) {
+			idleInflaters.decrementAndGet();
+			inflater.end();
+		}
+		for (ConcurrentLinkedQueue<Deflater> queue : deflaters.values()) {
+			for (Deflater deflater = queue.poll(); deflater != null; deflater = queue.poll()) {
+				idleDeflaters.decrementAndGet();
+				deflater.end();
+			}
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package nz.net.goddard.mcrecompress.nbt;
+import java.util.Map;
+
+import org.jnbt.ByteArrayTag;
+import org.jnbt.ByteTag;
+import org.jnbt.CompoundTag;
+import org.jnbt.DoubleTag;
+import org.jnbt.FloatTag;
+import org.jnbt.IntArrayTag;
+import org.jnbt.IntTag;
+import org.jnbt.ListTag;
+import org.jnbt.LongTag;
+import org.jnbt.NBTUtils;
+import org.jnbt.ShortTag;
+import org.jnbt.StringTag;
+import org.jnbt.Tag;
+
+
+// Converts jnbt tag trees for callers that still read NBT through jnbt
+public final class JNBTConverter {
+	private JNBTConverter() {
+	}
+	
+	public static NBTCompound toCompound(CompoundTag tag) {
+		NBTCompound compound = new NBTCompound(tag.getValue().size());
+		for (Map.Entry<String, Tag> field : tag.getValue().entrySet()) {
+			compound.put(field.getKey(), toValue(field.getValue()));
+		}
+		return compound;
+	}
+	
+	public static Object toValue(Tag tag) {
+		if (tag instanceof CompoundTag) {
+			return toCompound((CompoundTag) tag);
+		} else if (tag instanceof ListTag) {
+			ListTag listTag = (ListTag) tag;
+			NBTList list = new NBTList(NBTUtils.getTypeCode(listTag.getType()), listTag.getValue().size());
+			for (Tag element : listTag.getValue()) {
+				list.add(toValue(element));
+			}
+			return list;
+		} else if (tag instanceof ByteTag || tag instanceof ShortTag || tag instanceof IntTag
+				|| tag instanceof LongTag || tag instanceof FloatTag || tag instanceof DoubleTag
+				|| tag instanceof ByteArrayTag || tag instanceof StringTag || tag instanceof IntArrayTag) {
+			return tag.getValue();
+		}
+		throw new IllegalArgumentException("Unsupported tag " + tag.getClass().getName());
+	}
+}
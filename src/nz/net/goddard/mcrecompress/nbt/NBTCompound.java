@@ -0,0 +1,143 @@
+package nz.net.goddard.mcrecompress.nbt;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+// Mutable compound tag. Fields are kept in their original order in two parallel arrays;
+// compounds in chunk data are small, so a linear scan beats hashing and allocates nothing.
+public class NBTCompound {
+	private String[] names;
+	private Object[] values;
+	private int size;
+	
+	public NBTCompound() {
+		this(8);
+	}
+	
+	public NBTCompound(int capacity) {
+		names = new String[Math.max(capacity, 1)];
+		values = new Object[Math.max(capacity, 1)];
+		size = 0;
+	}
+	
+	private int indexOf(String name) {
+		// Names from NBTReader are shared instances, so identity usually matches first
+		for (int i = 0; i < size; ++i) {
+			if (names[i] == name) {
+				return i;
+			}
+		}
+		for (int i = 0; i < size; ++i) {
+			if (names[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public String getName(int index) {
+		return names[index];
+	}
+	
+	public Object getValue(int index) {
+		return values[index];
+	}
+	
+	public boolean containsKey(String name) {
+		return indexOf(name) >= 0;
+	}
+	
+	public Object get(String name) {
+		int index = indexOf(name);
+		return (index < 0) ? null : values[index];
+	}
+	
+	public List<String> keys() {
+		return new ArrayList<String>(Arrays.asList(names).subList(0, size));
+	}
+	
+	public void put(String name, Object value) {
+		NBTTypes.typeOf(value);
+		int index = indexOf(name);
+		if (index >= 0) {
+			values[index] = value;
+			return;
+		}
+		
+		if (size == names.length) {
+			names = Arrays.copyOf(names, size * 2);
+			values = Arrays.copyOf(values, size * 2);
+		}
+		names[size] = name;
+		values[size] = value;
+		size++;
+	}
+	
+	// Replaces a field with one of another name in the same position
+	public void replace(String oldName, String newName, Object value) {
+		NBTTypes.typeOf(value);
+		int index = indexOf(oldName);
+		if (index < 0) {
+			put(newName, value);
+			return;
+		}
+		
+		int existing = indexOf(newName);
+		if (existing >= 0 && existing != index) {
+			removeAt(existing);
+			if (existing < index) {
+				index--;
+			}
+		}
+		names[index] = newName;
+		values[index] = value;
+	}
+	
+	public Object remove(String name) {
+		int index = indexOf(name);
+		if (index < 0) {
+			return null;
+		}
+		Object value = values[index];
+		removeAt(index);
+		return value;
+	}
+	
+	private void removeAt(int index) {
+		System.arraycopy(names, index + 1, names, index, size - index - 1);
+		System.arraycopy(values, index + 1, values, index, size - index - 1);
+		size--;
+		names[size] = null;
+		values[size] = null;
+	}
+	
+	public NBTCompound getCompound(String name) {
+		Object value = get(name);
+		return (value instanceof NBTCompound) ? (NBTCompound) value : null;
+	}
+	
+	public NBTList getList(String name) {
+		Object value = get(name);
+		return (value instanceof NBTList) ? (NBTList) value : null;
+	}
+	
+	public byte[] getByteArray(String name) {
+		Object value = get(name);
+		return (value instanceof byte[]) ? (byte[]) value : null;
+	}
+	
+	public String getString(String name) {
+		Object value = get(name);
+		return (value instanceof String) ? (String) value : null;
+	}
+	
+	public int getInt(String name, int defaultValue) {
+		Object value = get(name);
+		return (value instanceof Number) ? ((Number) value).intValue() : defaultValue;
+	}
+}
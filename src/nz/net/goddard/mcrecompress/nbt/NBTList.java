@@ -0,0 +1,51 @@
+package nz.net.goddard.mcrecompress.nbt;
+import java.util.ArrayList;
+
+
+// Mutable list tag; all elements share one tag type
+public class NBTList {
+	private int elementType;
+	private final ArrayList<Object> elements;
+	
+	public NBTList(int elementType) {
+		this(elementType, 8);
+	}
+	
+	public NBTList(int elementType, int capacity) {
+		this.elementType = elementType;
+		this.elements = new ArrayList<Object>(capacity);
+	}
+	
+	public int getElementType() {
+		return elementType;
+	}
+	
+	public int size() {
+		return elements.size();
+	}
+	
+	public Object get(int index) {
+		return elements.get(index);
+	}
+	
+	public void add(Object value) {
+		int type = NBTTypes.typeOf(value);
+		if (elements.isEmpty() && elementType == NBTTypes.TYPE_END) {
+			elementType = type;
+		} else if (type != elementType) {
+			throw new IllegalArgumentException("List of type " + elementType + " can't hold type " + type);
+		}
+		elements.add(value);
+	}
+	
+	public void set(int index, Object value) {
+		if (NBTTypes.typeOf(value) != elementType) {
+			throw new IllegalArgumentException("List of type " + elementType + " can't hold type " + NBTTypes.typeOf(value));
+		}
+		elements.set(index, value);
+	}
+	
+	public Object remove(int index) {
+		return elements.remove(index);
+	}
+}
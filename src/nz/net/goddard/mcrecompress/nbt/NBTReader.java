@@ -0,0 +1,346 @@
+package nz.net.goddard.mcrecompress.nbt;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+
+// Reads NBT into NBTCompound/NBTList values. The read buffer is borrowed from a per-thread
+// pool and returned by release(), and tag names are decoded once per thread and shared.
+public class NBTReader {
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 65536;
+	private static final ThreadLocal<byte[]> pooledBuffers = new ThreadLocal<byte[]>();
+	private static final ThreadLocal<NameCache> nameCaches = new ThreadLocal<NameCache>() {
+		@Override
+		protected NameCache initialValue() {
+			return new NameCache();
+		}
+	};
+	
+	private final InputStream in;
+	private byte[] buffer;
+	private int position;
+	private int limit;
+	private final NameCache names;
+	
+	public NBTReader(InputStream in) {
+		this.in = in;
+		this.buffer = pooledBuffers.get();
+		if (buffer == null) {
+			buffer = new byte[BUFFER_SIZE];
+		} else {
+			pooledBuffers.set(null);
+		}
+		this.position = 0;
+		this.limit = 0;
+		this.names = nameCaches.get();
+	}
+	
+	// Hands the buffer back to this thread's pool. Unread buffered input is discarded.
+	public void release() {
+		if (buffer != null) {
+			pooledBuffers.set(buffer);
+			buffer = null;
+		}
+	}
+	
+	private void fill(int needed) throws IOException {
+		if (limit - position >= needed) {
+			return;
+		}
+		System.arraycopy(buffer, position, buffer, 0, limit - position);
+		limit -= position;
+		position = 0;
+		while (limit < needed) {
+			int count = in.read(buffer, limit, buffer.length - limit);
+			if (count < 0) {
+				throw new EOFException();
+			}
+			limit += count;
+		}
+	}
+	
+	public int readType() throws IOException {
+		return readByte() & 0xFF;
+	}
+	
+	public byte readByte() throws IOException {
+		fill(1);
+		return buffer[position++];
+	}
+	
+	public short readShort() throws IOException {
+		fill(2);
+		int value = ((buffer[position] & 0xFF) << 8) | (buffer[position + 1] & 0xFF);
+		position += 2;
+		return (short) value;
+	}
+	
+	public int readInt() throws IOException {
+		fill(4);
+		int value = ((buffer[position] & 0xFF) << 24) | ((buffer[position + 1] & 0xFF) << 16)
+				| ((buffer[position + 2] & 0xFF) << 8) | (buffer[position + 3] & 0xFF);
+		position += 4;
+		return value;
+	}
+	
+	public long readLong() throws IOException {
+		long high = readInt() & 0xFFFFFFFFL;
+		long low = readInt() & 0xFFFFFFFFL;
+		return (high << 32) | low;
+	}
+	
+	public void readFully(byte[] b) throws IOException {
+		readFully(b, 0, b.length);
+	}
+	
+	public void readFully(byte[] b, int off, int len) throws IOException {
+		int buffered = Math.min(len, limit - position);
+		System.arraycopy(buffer, position, b, off, buffered);
+		position += buffered;
+		off += buffered;
+		len -= buffered;
+		
+		if (len > 0 && len <= buffer.length / 2) {
+			fill(len);
+			System.arraycopy(buffer, position, b, off, len);
+			position += len;
+			return;
+		}
+		
+		// Large arrays go straight from the stream to their destination
+		while (len > 0) {
+			int count = in.read(b, off, len);
+			if (count < 0) {
+				throw new EOFException();
+			}
+			off += count;
+			len -= count;
+		}
+	}
+	
+	public void skip(long count) throws IOException {
+		int buffered = (int) Math.min(count, limit - position);
+		position += buffered;
+		count -= buffered;
+		while (count > 0) {
+			int chunk = (int) Math.min(count, buffer.length);
+			fill(chunk);
+			position += chunk;
+			count -= chunk;
+		}
+	}
+	
+	public String readName() throws IOException {
+		int length = readShort() & 0xFFFF;
+		if (length > buffer.length) {
+			byte[] bytes = new byte[length];
+			readFully(bytes);
+			return new String(bytes, CHARSET);
+		}
+		fill(length);
+		String name = names.lookup(buffer, position, length);
+		position += length;
+		return name;
+	}
+	
+	private String readString() throws IOException {
+		int length = readShort() & 0xFFFF;
+		byte[] bytes = new byte[length];
+		readFully(bytes);
+		return new String(bytes, CHARSET);
+	}
+	
+	// Reads a named compound (the root of a chunk or archive); its name is discarded
+	public NBTCompound readRootCompound() throws IOException {
+		int type = readType();
+		if (type != NBTTypes.TYPE_COMPOUND) {
+			throw new IOException("Expected a compound tag, found type " + type);
+		}
+		readName();
+		return readCompound();
+	}
+	
+	public NBTCompound readCompound() throws IOException {
+		NBTCompound compound = new NBTCompound();
+		int type;
+		while ((type = readType()) != NBTTypes.TYPE_END) {
+			String name = readName();
+			compound.put(name, readPayload(type));
+		}
+		return compound;
+	}
+	
+	public Object readPayload(int type) throws IOException {
+		switch (type) {
+		case NBTTypes.TYPE_BYTE:
+			return readByte();
+		case NBTTypes.TYPE_SHORT:
+			return readShort();
+		case NBTTypes.TYPE_INT:
+			return readInt();
+		case NBTTypes.TYPE_LONG:
+			return readLong();
+		case NBTTypes.TYPE_FLOAT:
+			return Float.intBitsToFloat(readInt());
+		case NBTTypes.TYPE_DOUBLE:
+			return Double.longBitsToDouble(readLong());
+		case NBTTypes.TYPE_BYTE_ARRAY: {
+			byte[] bytes = new byte[readInt()];
+			readFully(bytes);
+			return bytes;
+		}
+		case NBTTypes.TYPE_STRING:
+			return readString();
+		case NBTTypes.TYPE_LIST: {
+			int elementType = readType();
+			int length = readInt();
+			NBTList list = new NBTList(elementType, length);
+			for (int i = 0; i < length; ++i) {
+				list.add(readPayload(elementType));
+			}
+			return list;
+		}
+		case NBTTypes.TYPE_COMPOUND:
+			return readCompound();
+		case NBTTypes.TYPE_INT_ARRAY: {
+			int[] ints = new int[readInt()];
+			for (int i = 0; i < ints.length; ++i) {
+				ints[i] = readInt();
+			}
+			return ints;
+		}
+		case NBTTypes.TYPE_LONG_ARRAY: {
+			long[] longs = new long[readInt()];
+			for (int i = 0; i < longs.length; ++i) {
+				longs[i] = readLong();
+			}
+			return longs;
+		}
+		default:
+			throw new IOException("Invalid tag type " + type);
+		}
+	}
+	
+	public void skipPayload(int type) throws IOException {
+		switch (type) {
+		case NBTTypes.TYPE_BYTE:
+			skip(1);
+			break;
+		case NBTTypes.TYPE_SHORT:
+			skip(2);
+			break;
+		case NBTTypes.TYPE_INT:
+		case NBTTypes.TYPE_FLOAT:
+			skip(4);
+			break;
+		case NBTTypes.TYPE_LONG:
+		case NBTTypes.TYPE_DOUBLE:
+			skip(8);
+			break;
+		case NBTTypes.TYPE_BYTE_ARRAY:
+			skip(readInt() & 0xFFFFFFFFL);
+			break;
+		case NBTTypes.TYPE_STRING:
+			skip(readShort() & 0xFFFF);
+			break;
+		case NBTTypes.TYPE_LIST: {
+			int elementType = readType();
+			int length = readInt();
+			for (int i = 0; i < length; ++i) {
+				skipPayload(elementType);
+			}
+			break;
+		}
+		case NBTTypes.TYPE_COMPOUND: {
+			int fieldType;
+			while ((fieldType = readType()) != NBTTypes.TYPE_END) {
+				skip(readShort() & 0xFFFF);
+				skipPayload(fieldType);
+			}
+			break;
+		}
+		case NBTTypes.TYPE_INT_ARRAY:
+			skip((readInt() & 0xFFFFFFFFL) * 4);
+			break;
+		case NBTTypes.TYPE_LONG_ARRAY:
+			skip((readInt() & 0xFFFFFFFFL) * 8);
+			break;
+		default:
+			throw new IOException("Invalid tag type " + type);
+		}
+	}
+	
+	// Small open-addressed table from name bytes to the decoded String.
+	// Chunk data uses a few dozen distinct names, so this stays tiny.
+	private static class NameCache {
+		private static final int MAX_ENTRIES = 512;
+		private byte[][] keys = new byte[64][];
+		private String[] values = new String[64];
+		private int count = 0;
+		
+		String lookup(byte[] data, int off, int len) {
+			int hash = 1;
+			for (int i = off; i < off + len; ++i) {
+				hash = 31 * hash + data[i];
+			}
+			int mask = keys.length - 1;
+			int slot = hash & mask;
+			while (keys[slot] != null) {
+				if (matches(keys[slot], data, off, len)) {
+					return values[slot];
+				}
+				slot = (slot + 1) & mask;
+			}
+			
+			String name = new String(data, off, len, CHARSET);
+			if (count < MAX_ENTRIES) {
+				if ((count + 1) * 2 > keys.length) {
+					grow();
+					return lookup(data, off, len);
+				}
+				byte[] key = new byte[len];
+				System.arraycopy(data, off, key, 0, len);
+				keys[slot] = key;
+				values[slot] = name;
+				count++;
+			}
+			return name;
+		}
+		
+		private static boolean matches(byte[] key, byte[] data, int off, int len) {
+			if (key.length != len) {
+				return false;
+			}
+			for (int i = 0; i < len; ++i) {
+				if (key[i] != data[off + i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		private void grow() {
+			byte[][] oldKeys = keys;
+			String[] oldValues = values;
+			keys = new byte[oldKeys.length * 2][];
+			values = new String[oldKeys.length * 2];
+			int mask = keys.length - 1;
+			for (int i = 0; i < oldKeys.length; ++i) {
+				if (oldKeys[i] != null) {
+					int hash = 1;
+					for (byte b : oldKeys[i]) {
+						hash = 31 * hash + b;
+					}
+					int slot = hash & mask;
+					while (keys[slot] != null) {
+						slot = (slot + 1) & mask;
+					}
+					keys[slot] = oldKeys[i];
+					values[slot] = oldValues[i];
+				}
+			}
+		}
+	}
+}
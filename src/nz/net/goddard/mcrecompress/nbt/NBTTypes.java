@@ -0,0 +1,52 @@
+package nz.net.goddard.mcrecompress.nbt;
+
+
+// Tag type IDs, and the Java class used for each tag value:
+// Byte, Short, Integer, Long, Float, Double, byte[], String, NBTList, NBTCompound, int[], long[]
+public final class NBTTypes {
+	public static final int TYPE_END = 0;
+	public static final int TYPE_BYTE = 1;
+	public static final int TYPE_SHORT = 2;
+	public static final int TYPE_INT = 3;
+	public static final int TYPE_LONG = 4;
+	public static final int TYPE_FLOAT = 5;
+	public static final int TYPE_DOUBLE = 6;
+	public static final int TYPE_BYTE_ARRAY = 7;
+	public static final int TYPE_STRING = 8;
+	public static final int TYPE_LIST = 9;
+	public static final int TYPE_COMPOUND = 10;
+	public static final int TYPE_INT_ARRAY = 11;
+	public static final int TYPE_LONG_ARRAY = 12;
+	
+	private NBTTypes() {
+	}
+	
+	public static int typeOf(Object value) {
+		if (value instanceof Byte) {
+			return TYPE_BYTE;
+		} else if (value instanceof Short) {
+			return TYPE_SHORT;
+		} else if (value instanceof Integer) {
+			return TYPE_INT;
+		} else if (value instanceof Long) {
+			return TYPE_LONG;
+		} else if (value instanceof Float) {
+			return TYPE_FLOAT;
+		} else if (value instanceof Double) {
+			return TYPE_DOUBLE;
+		} else if (value instanceof byte[]) {
+			return TYPE_BYTE_ARRAY;
+		} else if (value instanceof String) {
+			return TYPE_STRING;
+		} else if (value instanceof NBTList) {
+			return TYPE_LIST;
+		} else if (value instanceof NBTCompound) {
+			return TYPE_COMPOUND;
+		} else if (value instanceof int[]) {
+			return TYPE_INT_ARRAY;
+		} else if (value instanceof long[]) {
+			return TYPE_LONG_ARRAY;
+		}
+		throw new IllegalArgumentException("Not an NBT value: " + (value == null ? "null" : value.getClass().getName()));
+	}
+}
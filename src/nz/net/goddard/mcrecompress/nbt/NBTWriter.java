@@ -0,0 +1,203 @@
+package nz.net.goddard.mcrecompress.nbt;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+
+// Writes NBT values, or NBT structure piece by piece for streaming output. Like NBTReader
+// it borrows its buffer from a per-thread pool; close() or finish() hands it back.
+public class NBTWriter {
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 65536;
+	private static final ThreadLocal<byte[]> pooledBuffers = new ThreadLocal<byte[]>();
+	
+	private final OutputStream out;
+	private byte[] buffer;
+	private int position;
+	
+	public NBTWriter(OutputStream out) {
+		this.out = out;
+		this.buffer = pooledBuffers.get();
+		if (buffer == null) {
+			buffer = new byte[BUFFER_SIZE];
+		} else {
+			pooledBuffers.set(null);
+		}
+		this.position = 0;
+	}
+	
+	private void ensure(int needed) throws IOException {
+		if (buffer.length - position < needed) {
+			flushBuffer();
+		}
+	}
+	
+	private void flushBuffer() throws IOException {
+		if (position > 0) {
+			out.write(buffer, 0, position);
+			position = 0;
+		}
+	}
+	
+	public void writeByte(int value) throws IOException {
+		ensure(1);
+		buffer[position++] = (byte) value;
+	}
+	
+	public void writeShort(int value) throws IOException {
+		ensure(2);
+		buffer[position++] = (byte) (value >>> 8);
+		buffer[position++] = (byte) value;
+	}
+	
+	public void writeInt(int value) throws IOException {
+		ensure(4);
+		buffer[position++] = (byte) (value >>> 24);
+		buffer[position++] = (byte) (value >>> 16);
+		buffer[position++] = (byte) (value >>> 8);
+		buffer[position++] = (byte) value;
+	}
+	
+	public void writeLong(long value) throws IOException {
+		writeInt((int) (value >>> 32));
+		writeInt((int) value);
+	}
+	
+	public void writeBytes(byte[] b) throws IOException {
+		writeBytes(b, 0, b.length);
+	}
+	
+	public void writeBytes(byte[] b, int off, int len) throws IOException {
+		if (len > buffer.length / 2) {
+			flushBuffer();
+			out.write(b, off, len);
+			return;
+		}
+		ensure(len);
+		System.arraycopy(b, off, buffer, position, len);
+		position += len;
+	}
+	
+	private void writeUTF(String value) throws IOException {
+		byte[] bytes = value.getBytes(CHARSET);
+		writeShort(bytes.length);
+		writeBytes(bytes);
+	}
+	
+	// Type and name of a named tag; the payload must follow
+	public void beginTag(int type, String name) throws IOException {
+		writeByte(type);
+		writeUTF(name);
+	}
+	
+	public void beginCompound(String name) throws IOException {
+		beginTag(NBTTypes.TYPE_COMPOUND, name);
+	}
+	
+	public void endCompound() throws IOException {
+		writeByte(NBTTypes.TYPE_END);
+	}
+	
+	public void beginList(String name, int elementType, int length) throws IOException {
+		beginTag(NBTTypes.TYPE_LIST, name);
+		writeByte(elementType);
+		writeInt(length);
+	}
+	
+	public void beginByteArray(String name, int length) throws IOException {
+		beginTag(NBTTypes.TYPE_BYTE_ARRAY, name);
+		writeInt(length);
+	}
+	
+	public void writeField(String name, Object value) throws IOException {
+		beginTag(NBTTypes.typeOf(value), name);
+		writePayload(value);
+	}
+	
+	public void writeRootCompound(String name, NBTCompound compound) throws IOException {
+		beginCompound(name);
+		writeCompoundPayload(compound);
+	}
+	
+	public void writeCompoundPayload(NBTCompound compound) throws IOException {
+		for (int i = 0; i < compound.size(); ++i) {
+			writeField(compound.getName(i), compound.getValue(i));
+		}
+		endCompound();
+	}
+	
+	public void writePayload(Object value) throws IOException {
+		switch (NBTTypes.typeOf(value)) {
+		case NBTTypes.TYPE_BYTE:
+			writeByte((Byte) value);
+			break;
+		case NBTTypes.TYPE_SHORT:
+			writeShort((Short) value);
+			break;
+		case NBTTypes.TYPE_INT:
+			writeInt((Integer) value);
+			break;
+		case NBTTypes.TYPE_LONG:
+			writeLong((Long) value);
+			break;
+		case NBTTypes.TYPE_FLOAT:
+			writeInt(Float.floatToIntBits((Float) value));
+			break;
+		case NBTTypes.TYPE_DOUBLE:
+			writeLong(Double.doubleToLongBits((Double) value));
+			break;
+		case NBTTypes.TYPE_BYTE_ARRAY: {
+			byte[] bytes = (byte[]) value;
+			writeInt(bytes.length);
+			writeBytes(bytes);
+			break;
+		}
+		case NBTTypes.TYPE_STRING:
+			writeUTF((String) value);
+			break;
+		case NBTTypes.TYPE_LIST: {
+			NBTList list = (NBTList) value;
+			writeByte(list.getElementType());
+			writeInt(list.size());
+			for (int i = 0; i < list.size(); ++i) {
+				writePayload(list.get(i));
+			}
+			break;
+		}
+		case NBTTypes.TYPE_COMPOUND:
+			writeCompoundPayload((NBTCompound) value);
+			break;
+		case NBTTypes.TYPE_INT_ARRAY: {
+			int[] ints = (int[]) value;
+			writeInt(ints.length);
+			for (int entry : ints) {
+				writeInt(entry);
+			}
+			break;
+		}
+		case NBTTypes.TYPE_LONG_ARRAY: {
+			long[] longs = (long[]) value;
+			writeInt(longs.length);
+			for (long entry : longs) {
+				writeLong(entry);
+			}
+			break;
+		}
+		}
+	}
+	
+	// Flushes buffered output to the stream and returns the buffer to the pool
+	public void finish() throws IOException {
+		if (buffer != null) {
+			flushBuffer();
+			out.flush();
+			pooledBuffers.set(buffer);
+			buffer = null;
+		}
+	}
+	
+	public void close() throws IOException {
+		finish();
+		out.close();
+	}
+}
@@ -0,0 +1,219 @@
+package nz.net.goddard.mcrecompress.server;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import nz.net.goddard.mcrecompress.ChunkData;
+import nz.net.goddard.mcrecompress.RegionFile;
+import nz.net.goddard.mcrecompress.SeekableArchive;
+import nz.net.goddard.mcrecompress.SectionStore;
+import nz.net.goddard.mcrecompress.nbt.NBTWriter;
+
+
+// Read-only access to the chunks of an archived world, by world chunk coordinates, without
+// restoring it to .mca files. Decoded regions are kept in a RegionCache, so repeated reads
+// of a region only pay for decompression once.
+//
+// The HTTP endpoint answers GET /chunk?x=X&z=Z with the chunk's uncompressed NBT, as it
+// would be stored in a region file, or 404 if the chunk isn't there. It only listens on
+// the loopback address.
+public class ChunkServer implements Closeable {
+	private final static Logger logger = Logger.getLogger("main");
+
+	// Preferred in this order when a region has been archived more than once
+	static final String[] archiveExtensions = {".mrs", ".mri.bz2", ".mri.gz", ".mri"};
+
+	private final Path directory;
+	private final RegionCache cache;
+	private SectionStore sectionStore = null;
+	private ForkJoinPool regionPool = null;
+	private HttpServer httpServer = null;
+	private ExecutorService httpThreads = null;
+
+	public ChunkServer(Path directory, long cacheBytes) {
+		this.directory = directory;
+		this.cache = new RegionCache(cacheBytes, new RegionCache.Loader() {
+			@Override
+			public RegionFile load(String name) throws IOException {
+				return loadRegion(name);
+			}
+		});
+	}
+
+	// Needed for archives written with a section store
+	public void setSectionStore(SectionStore sectionStore) {
+		this.sectionStore = sectionStore;
+	}
+
+	// Used to decode bzip2 blocks and relight regions concurrently
+	public void setRegionPool(ForkJoinPool regionPool) {
+		this.regionPool = regionPool;
+	}
+
+	private File findArchive(String name) {
+		for (String extension : archiveExtensions) {
+			File file = directory.resolve(name + extension).toFile();
+			if (file.isFile()) {
+				return file;
+			}
+		}
+		return null;
+	}
+
+	private RegionFile loadRegion(String name) throws IOException {
+		File file = findArchive(name);
+		if (file == null) {
+			return null;
+		}
+
+		logger.info("Loading " + file);
+		RegionFile region;
+		if (file.getName().endsWith(".mrs")) {
+			try (SeekableArchive archive = SeekableArchive.open(file, sectionStore)) {
+				region = archive.readRegion();
+			}
+		} else {
+			region = RegionFile.readArchive(file, regionPool, sectionStore);
+		}
+
+		// Relit once here rather than on every read
+		if (region.isLightingStripped()) {
+			region.relight(regionPool);
+		}
+		return region;
+	}
+
+	// Null if the chunk or its region doesn't exist. The chunk is shared with other
+	// callers through the cache, so it must not be modified.
+	public ChunkData getChunk(int chunkX, int chunkZ) throws IOException {
+		RegionFile region = cache.get("r." + (chunkX >> 5) + "." + (chunkZ >> 5));
+		if (region == null) {
+			return null;
+		}
+		return region.getChunk(chunkX & 31, chunkZ & 31);
+	}
+
+	// The chunk's NBT, uncompressed, or null if it doesn't exist
+	public byte[] getChunkNBT(int chunkX, int chunkZ) throws IOException {
+		ChunkData chunk = getChunk(chunkX, chunkZ);
+		if (chunk == null) {
+			return null;
+		}
+
+		ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+		NBTWriter writer = new NBTWriter(bytesOut);
+		writer.writeRootCompound("", chunk.getChunkRootTag());
+		writer.close();
+		return bytesOut.toByteArray();
+	}
+
+	public long getCacheHits() {
+		return cache.getHits();
+	}
+
+	public long getRegionLoads() {
+		return cache.getLoads();
+	}
+
+	public long getCachedBytes() {
+		return cache.getUsedBytes();
+	}
+
+	// Port 0 picks a free port; the one chosen is returned
+	public synchronized int startHttp(int port, int threads) throws IOException {
+		if (httpServer != null) {
+			throw new IOException("Chunk server is already listening");
+		}
+
+		httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		httpServer.createContext("/chunk", new ChunkHandler());
+		httpThreads = Executors.newFixedThreadPool(threads);
+		httpServer.setExecutor(httpThreads);
+		httpServer.start();
+		return httpServer.getAddress().getPort();
+	}
+
+	@Override
+	public synchronized void close() {
+		if (httpServer != null) {
+			httpServer.stop(0);
+			httpThreads.shutdown();
+			httpServer = null;
+		}
+	}
+
+	private static Map<String, String> parseQuery(URI uri) {
+		Map<String, String> params = new HashMap<String, String>();
+		String query = uri.getRawQuery();
+		if (query == null) {
+			return params;
+		}
+		for (String param : query.split("&")) {
+			int split = param.indexOf('=');
+			if (split > 0) {
+				params.put(param.substring(0, split), param.substring(split + 1));
+			}
+		}
+		return params;
+	}
+
+	private class ChunkHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				if (!"GET".equals(exchange.getRequestMethod())) {
+					exchange.sendResponseHeaders(405, -1);
+					return;
+				}
+
+				Map<String, String> params = parseQuery(exchange.getRequestURI());
+				int x, z;
+				try {
+					x = Integer.parseInt(params.get("x"));
+					z = Integer.parseInt(params.get("z"));
+				} catch (NumberFormatException e) {
+					exchange.sendResponseHeaders(400, -1);
+					return;
+				}
+
+				byte[] nbt;
+				try {
+					nbt = getChunkNBT(x, z);
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Failed to serve chunk " + x + ", " + z, e);
+					exchange.sendResponseHeaders(500, -1);
+					return;
+				}
+				if (nbt == null) {
+					exchange.sendResponseHeaders(404, -1);
+					return;
+				}
+
+				exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+				exchange.sendResponseHeaders(200, nbt.length);
+				OutputStream body = exchange.getResponseBody();
+				body.write(nbt);
+				body.close();
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package nz.net.goddard.mcrecompress.server;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import nz.net.goddard.mcrecompress.RegionFile;
+
+
+// Least-recently-used cache of decoded regions, bounded by their estimated size in memory.
+// A region being loaded is shared by every thread asking for it, so no region is decoded
+// twice at once. Regions bigger than the whole cache are returned without being kept.
+class RegionCache {
+	interface Loader {
+		// Null if there is no such region
+		RegionFile load(String name) throws IOException;
+	}
+	
+	private static class Entry {
+		final RegionFile region;
+		final long size;
+		
+		Entry(RegionFile region, long size) {
+			this.region = region;
+			this.size = size;
+		}
+	}
+	
+	private final long capacity;
+	private final Loader loader;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private final Map<String, FutureTask<RegionFile>> loading = new HashMap<String, FutureTask<RegionFile>>();
+	private long used = 0;
+	private long hits = 0;
+	private long loads = 0;
+	
+	RegionCache(long capacity, Loader loader) {
+		this.capacity = capacity;
+		this.loader = loader;
+	}
+	
+	RegionFile get(final String name) throws IOException {
+		FutureTask<RegionFile> task;
+		boolean owner = false;
+		synchronized (this) {
+			Entry entry = entries.get(name);
+			if (entry != null) {
+				hits++;
+				return entry.region;
+			}
+			
+			task = loading.get(name);
+			if (task == null) {
+				task = new FutureTask<RegionFile>(new Callable<RegionFile>() {
+					@Override
+					public RegionFile call() throws IOException {
+						return loader.load(name);
+					}
+				});
+				loading.put(name, task);
+				loads++;
+				owner = true;
+			}
+		}
+		
+		// The first thread to ask decodes the region, the rest wait for it
+		if (owner) {
+			task.run();
+		}
+		try {
+			RegionFile region = task.get();
+			if (owner && region != null) {
+				add(name, region);
+			}
+			return region;
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while loading " + name, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Failed to load " + name, e.getCause());
+		} finally {
+			if (owner) {
+				synchronized (this) {
+					loading.remove(name);
+				}
+			}
+		}
+	}
+	
+	private synchronized void add(String name, RegionFile region) {
+		long size = estimateSize(region);
+		if (size > capacity) {
+			return;
+		}
+		
+		entries.put(name, new Entry(region, size));
+		used += size;
+		Iterator<Entry> eldest = entries.values().iterator();
+		while (used > capacity && eldest.hasNext()) {
+			used -= eldest.next().size;
+			eldest.remove();
+		}
+	}
+	
+	// Grouped arrays dominate a decoded region, so count those and a little per chunk
+	static long estimateSize(RegionFile region) {
+		long size = 0;
+		for (int z = 0; z < 32; ++z) {
+			for (int x = 0; x < 32; ++x) {
+				if (region.isChunkLoaded(x, z)) {
+					size += 8192;
+					for (int y = 0; y < 16; ++y) {
+						if (region.getChunk(x, z).getSection(y) != null) {
+							size += 12288;
+						}
+					}
+				}
+			}
+		}
+		return size;
+	}
+	
+	synchronized long getUsedBytes() {
+		return used;
+	}
+	
+	synchronized long getHits() {
+		return hits;
+	}
+	
+	synchronized long getLoads() {
+		return loads;
+	}
+}
@@ -5,45 +5,391 @@ import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
 
+import nz.net.goddard.mcrecompress.ArchiveOptions;
+import nz.net.goddard.mcrecompress.ChunkCompressionProfile;
 import nz.net.goddard.mcrecompress.MCAConverter;
+import nz.net.goddard.mcrecompress.MCAOptimizer;
 import nz.net.goddard.mcrecompress.MCARegenerator;
+import nz.net.goddard.mcrecompress.MCAVerifier;
+import nz.net.goddard.mcrecompress.RepackManifest;
+import nz.net.goddard.mcrecompress.SectionStore;
+import nz.net.goddard.mcrecompress.WorldGenerator;
+import nz.net.goddard.mcrecompress.server.ChunkServer;
 
 public class CommandLineInterface {
 	public static void main(String[] args) {
-		if (args.length > 1) {
-			switch (args[0]) {
+		String mode = null;
+		String target = null;
+		int regionThreads = 1;
+		int ioThreads = 1;
+		int decodeThreads = 1;
+		int compressThreads = 1;
+		ArchiveOptions archiveOptions = new ArchiveOptions();
+		String sectionStorePath = null;
+		String manifestPath = null;
+		String reportPath = null;
+		int worldSize = 1;
+		long seed = 0;
+		WorldGenerator.Profile profile = WorldGenerator.Profile.HILLS;
+		ChunkCompressionProfile chunkCompression = ChunkCompressionProfile.DEFAULT;
+		double density = 1.0;
+		double emptySections = 0.0;
+		int entitiesPerChunk = 2;
+		boolean seekable = false;
+		int port = 25580;
+		long cacheMegabytes = 512;
+		long memoryMegabytes = 0;
+		
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
 			case "--compress":
-				System.err.println("Compressing " + args[1]);
-				MCAConverter converter = new MCAConverter(FileSystems.getDefault().getPath("."), 1);
+			case "--decompress":
+			case "--optimize":
+			case "--verify":
+			case "--serve":
+			case "--generate":
+				if (i + 1 >= args.length) {
+					usage();
+				}
+				mode = args[i];
+				target = args[++i];
+				break;
+			case "--region-threads":
+				if (i + 1 >= args.length) {
+					usage();
+				}
 				try {
-					converter.convertSingleMCA(FileSystems.getDefault().getPath(args[1]));
-				} catch (IOException e) {
-					System.err.println(e.getMessage());
-					System.exit(1);
+					regionThreads = Integer.parseInt(args[++i]);
+				} catch (NumberFormatException e) {
+					usage();
+				}
+				break;
+			case "--io-threads":
+			case "--decode-threads":
+			case "--compress-threads":
+				if (i + 1 >= args.length) {
+					usage();
+				}
+				try {
+					int stageThreads = Integer.parseInt(args[i + 1]);
+					if (args[i].equals("--io-threads")) {
+						ioThreads = stageThreads;
+					} else if (args[i].equals("--decode-threads")) {
+						decodeThreads = stageThreads;
+					} else {
+						compressThreads = stageThreads;
+					}
+					i++;
+				} catch (NumberFormatException e) {
+					usage();
+				}
+				break;
+			case "--world-size":
+			case "--entities":
+				if (i + 1 >= args.length) {
+					usage();
+				}
+				try {
+					int value = Integer.parseInt(args[i + 1]);
+					if (args[i].equals("--world-size")) {
+						worldSize = value;
+					} else {
+						entitiesPerChunk = value;
+					}
+					i++;
+				} catch (NumberFormatException e) {
+					usage();
+				}
+				break;
+			case "--density":
+			case "--empty-sections":
+				if (i + 1 >= args.length) {
+					usage();
+				}
+				try {
+					double value = Double.parseDouble(args[i + 1]);
+					if (args[i].equals("--density")) {
+						density = value;
+					} else {
+						emptySections = value;
+					}
+					i++;
+				} catch (NumberFormatException e) {
+					usage();
+				}
+				break;
+			case "--seed":
+				if (i + 1 >= args.length) {
+					usage();
+				}
+				try {
+					seed = Long.parseLong(args[++i]);
+				} catch (NumberFormatException e) {
+					usage();
+				}
+				break;
+			case "--profile":
+				if (i + 1 >= args.length) {
+					usage();
+				}
+				try {
+					profile = WorldGenerator.Profile.valueOf(args[++i].toUpperCase(Locale.ROOT));
+				} catch (IllegalArgumentException e) {
+					usage();
+				}
+				break;
+			case "--chunk-compression":
+				if (i + 1 >= args.length) {
+					usage();
+				}
+				try {
+					chunkCompression = ChunkCompressionProfile.valueOf(args[++i].toUpperCase(Locale.ROOT));
+				} catch (IllegalArgumentException e) {
+					usage();
+				}
+				break;
+			case "--port":
+				if (i + 1 >= args.length) {
+					usage();
+				}
+				try {
+					port = Integer.parseInt(args[++i]);
+				} catch (NumberFormatException e) {
+					usage();
+				}
+				break;
+			case "--cache-mb":
+				if (i + 1 >= args.length) {
+					usage();
+				}
+				try {
+					cacheMegabytes = Long.parseLong(args[++i]);
+				} catch (NumberFormatException e) {
+					usage();
+				}
+				break;
+			case "--memory-mb":
+				if (i + 1 >= args.length) {
+					usage();
+				}
+				try {
+					memoryMegabytes = Long.parseLong(args[++i]);
+				} catch (NumberFormatException e) {
+					usage();
+				}
+				break;
+			case "--filter-blocks":
+				archiveOptions.setFilterBlocks(true);
+				break;
+			case "--seekable":
+				seekable = true;
+				break;
+			case "--palette":
+				archiveOptions.setPaletteBlocks(true);
+				break;
+			case "--strip-lighting":
+				archiveOptions.setStripLighting(true);
+				break;
+			case "--checksums":
+				archiveOptions.setChecksums(true);
+				break;
+			case "--incremental":
+				if (i + 1 >= args.length) {
+					usage();
+				}
+				manifestPath = args[++i];
+				break;
+			case "--report":
+				if (i + 1 >= args.length) {
+					usage();
+				}
+				reportPath = args[++i];
+				break;
+			case "--section-store":
+				if (i + 1 >= args.length) {
+					usage();
+				}
+				sectionStorePath = args[++i];
+				break;
+			default:
+				usage();
+			}
+		}
+		
+		if (mode == null) {
+			usage();
+		}
+		
+		File targetFile = new File(target);
+		File reportFile = (reportPath == null) ? null : new File(reportPath);
+		SectionStore sectionStore = null;
+		boolean failed = false;
+		try {
+			if (sectionStorePath != null) {
+				sectionStore = SectionStore.open(new File(sectionStorePath));
+				archiveOptions.setSectionStore(sectionStore);
+			}
+			
+			// Regions that failed to pack, unpack or optimize, left as they were
+			int regionsFailed = 0;
+			// A directory is converted as a world, replacing its files in place
+			switch (mode) {
+			case "--compress":
+				System.err.println("Compressing " + target);
+				MCAConverter converter = new MCAConverter(targetFile.isDirectory() ? targetFile.toPath() : FileSystems.getDefault().getPath("."), 1);
+				converter.setRegionParallelism(regionThreads);
+				converter.setStageThreads(ioThreads, decodeThreads, compressThreads);
+				converter.setArchiveOptions(archiveOptions);
+				converter.setSeekable(seekable);
+				converter.setReportFile(reportFile);
+				if (memoryMegabytes > 0) {
+					converter.setMemoryBudget(memoryMegabytes * 1024 * 1024);
+				}
+				RepackManifest manifest = null;
+				if (manifestPath != null) {
+					manifest = RepackManifest.load(new File(manifestPath));
+					converter.setManifest(manifest);
+				}
+				if (targetFile.isDirectory()) {
+					regionsFailed = converter.convertMCAFiles();
+				} else {
+					regionsFailed = converter.convertSingleMCA(targetFile.toPath());
+				}
+				if (manifest != null) {
+					manifest.save();
 				}
 				break;
 			case "--decompress":
-				System.err.println("Unpacking " + args[1]);
-				MCARegenerator regen = new MCARegenerator(FileSystems.getDefault().getPath("."), 1);
+				System.err.println("Unpacking " + target);
+				MCARegenerator regen = new MCARegenerator(targetFile.isDirectory() ? targetFile.toPath() : FileSystems.getDefault().getPath("."), 1);
+				regen.setRegionParallelism(regionThreads);
+				regen.setStageThreads(ioThreads, decodeThreads, compressThreads);
+				regen.setSectionStore(sectionStore);
+				regen.setReportFile(reportFile);
+				regen.setChunkCompression(chunkCompression);
+				if (memoryMegabytes > 0) {
+					regen.setMemoryBudget(memoryMegabytes * 1024 * 1024);
+				}
+				if (targetFile.isDirectory()) {
+					regionsFailed = regen.regenerateMCAFiles();
+				} else {
+					regionsFailed = regen.regenerateSingleMCA(targetFile.toPath());
+				}
+				break;
+			case "--optimize":
+				System.err.println("Optimizing " + target);
+				MCAOptimizer optimizer = new MCAOptimizer(targetFile.isDirectory() ? targetFile.toPath() : FileSystems.getDefault().getPath("."), 1);
+				optimizer.setRegionParallelism(regionThreads);
+				optimizer.setStageThreads(ioThreads, decodeThreads, compressThreads);
+				optimizer.setReportFile(reportFile);
+				optimizer.setChunkCompression(chunkCompression);
+				if (memoryMegabytes > 0) {
+					optimizer.setMemoryBudget(memoryMegabytes * 1024 * 1024);
+				}
+				if (targetFile.isDirectory()) {
+					regionsFailed = optimizer.optimizeMCAFiles();
+				} else {
+					regionsFailed = optimizer.optimizeSingleMCA(targetFile.toPath());
+				}
+				System.err.println("Region files went from " + optimizer.getBytesBefore() + " to " + optimizer.getBytesAfter() + " bytes");
+				break;
+			case "--verify":
+				System.err.println("Verifying " + target);
+				MCAVerifier verifier = new MCAVerifier(targetFile.isDirectory() ? targetFile.toPath() : FileSystems.getDefault().getPath("."), 1);
+				verifier.setRegionParallelism(regionThreads);
+				verifier.setStageThreads(ioThreads, decodeThreads);
+				verifier.setSectionStore(sectionStore);
+				verifier.setReportFile(reportFile);
+				if (memoryMegabytes > 0) {
+					verifier.setMemoryBudget(memoryMegabytes * 1024 * 1024);
+				}
+				boolean passed;
+				if (targetFile.isDirectory()) {
+					passed = verifier.verifyArchives();
+				} else {
+					passed = verifier.verifySingleArchive(targetFile.toPath());
+				}
+				System.err.println(verifier.getRegionsVerified() + " regions matched, " + verifier.getRegionsMismatched() + " differed, "
+						+ verifier.getRegionsUnchecked() + " had no checksums and " + verifier.getRegionsFailed() + " could not be read");
+				failed = !passed;
+				break;
+			case "--serve":
+				// Runs until killed, reading from the store, so it is left open
+				ChunkServer server = new ChunkServer(targetFile.toPath(), cacheMegabytes * 1024 * 1024);
+				server.setSectionStore(sectionStore);
+				if (regionThreads > 1) {
+					server.setRegionPool(new ForkJoinPool(regionThreads));
+				}
+				int boundPort = server.startHttp(port, Math.max(2, Runtime.getRuntime().availableProcessors()));
+				System.err.println("Serving " + target + " on http://127.0.0.1:" + boundPort + "/chunk?x=X&z=Z");
+				sectionStore = null;
+				return;
+			case "--generate":
+				System.err.println("Generating " + worldSize + "x" + worldSize + " regions in " + target);
+				WorldGenerator generator = new WorldGenerator(seed);
+				generator.setProfile(profile);
+				generator.setDensity(density);
+				generator.setEmptySections(emptySections);
+				generator.setEntitiesPerChunk(entitiesPerChunk);
+				generator.generateWorld(targetFile.toPath(), worldSize, worldSize, regionThreads > 1 ? new ForkJoinPool(regionThreads) : null);
+				break;
+			}
+			if (regionsFailed > 0) {
+				System.err.println(regionsFailed + " regions failed");
+				failed = true;
+			}
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			failed = true;
+		} finally {
+			// Also after a failure, as the archives already written may refer to new sections
+			if (sectionStore != null) {
 				try {
-					regen.regenerateSingleMCA(FileSystems.getDefault().getPath(args[1]));
+					sectionStore.close();
 				} catch (IOException e) {
 					System.err.println(e.getMessage());
-					System.exit(1);
+					failed = true;
 				}
-				break;
 			}
-		} else {
-			usage();
+		}
+		if (failed) {
+			System.exit(1);
 		}
 	}
 	
 	private static void usage() {
 		System.err.println("Usage: java -jar mcrecompress.jar [options]");
 		System.err.println("Options:");
-		System.err.println("  --compress MCA");
-		System.err.println("  --decompress MRI");
+		System.err.println("  --compress MCA|DIR");
+		System.err.println("  --decompress MRI|DIR");
+		System.err.println("  --optimize MCA|DIR   rewrite .mca files in place, compacted and recompressed with --chunk-compression");
+		System.err.println("  --verify MRI|DIR     check archives against their checksums, without writing .mca files");
+		System.err.println("  --serve DIR          serve chunk NBT from the archives in DIR over HTTP on the loopback address");
+		System.err.println("  --generate DIR       write a synthetic world of --world-size N by N regions (default 1) into DIR");
+		System.err.println("  --profile P          terrain for --generate: flat, hills or modded (default hills)");
+		System.err.println("  --density F          fraction of chunks generated in each region (default 1)");
+		System.err.println("  --empty-sections F   chance of each empty section above the terrain being kept (default 0)");
+		System.err.println("  --entities N         average entities per generated chunk (default 2)");
+		System.err.println("  --seed N             seed for --generate (default 0)");
+		System.err.println("  --chunk-compression P deflate level of restored or optimized .mca chunks: fast, default or max (default default)");
+		System.err.println("  --port N             port for --serve (default 25580)");
+		System.err.println("  --cache-mb N         memory for decoded regions kept by --serve (default 512)");
+		System.err.println("  --region-threads N   threads used within a single region (default 1; unpacking and verifying decode bzip2 on every core)");
+		System.err.println("  --io-threads N       threads reading and writing region files (default 1)");
+		System.err.println("  --decode-threads N   regions decoded at once (default 1)");
+		System.err.println("  --compress-threads N regions compressed (or encoded, when unpacking) at once (default 1)");
+		System.err.println("  --memory-mb N        heap the regions in flight may take between them (default 3/4 of the heap)");
+		System.err.println("  --filter-blocks      split nibble arrays into planes and bit-shuffle Blocks (MRI 1.1)");
+		System.err.println("  --seekable           write .mrs archives, compressed in frames so single chunks can be read quickly");
+		System.err.println("  --palette            store Blocks, Add and Data as a palette per section (MRI 1.1)");
+		System.err.println("  --strip-lighting     leave out lighting and height maps, recomputed on restore (MRI 1.1)");
+		System.err.println("  --checksums          store CRC-32C checksums of each chunk and section, for --verify");
+		System.err.println("  --incremental FILE   only pack regions changed since the runs recorded in FILE, keeping the .mca files");
+		System.err.println("  --report FILE        write stage timings and counters for the run to FILE as JSON");
+		System.err.println("  --section-store FILE keep sections in a store shared by every region of a world (MRI 1.1)");
 		System.exit(1);
 	}
 
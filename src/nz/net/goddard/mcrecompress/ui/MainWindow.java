@@ -134,7 +134,7 @@ public class MainWindow extends JFrame {
 		Runnable task = new Runnable() {
 			public void run() {
 				Path dir = FileSystems.getDefault().getPath(pathField.getText());
-				MCAConverter converter = new MCAConverter(dir, 2);
+				MCAConverter converter = new MCAConverter(dir, Runtime.getRuntime().availableProcessors());
 				try {
 					converter.convertMCAFiles();
 				} catch (IOException e) {
@@ -163,7 +163,7 @@ public class MainWindow extends JFrame {
 		Runnable task = new Runnable() {
 			public void run() {
 				Path dir = FileSystems.getDefault().getPath(pathField.getText());
-				MCARegenerator regen = new MCARegenerator(dir, 2);
+				MCARegenerator regen = new MCARegenerator(dir, Runtime.getRuntime().availableProcessors());
 				try {
 					regen.regenerateMCAFiles();
 				} catch (IOException e) {